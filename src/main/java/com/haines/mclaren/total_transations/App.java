@@ -4,12 +4,20 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.haines.mclaren.total_transations.api.Consumer;
 import com.haines.mclaren.total_transations.api.DomainFactory;
 import com.haines.mclaren.total_transations.domain.UserEvent;
-import com.haines.mclaren.total_transations.domain.UserEvent.ImmutableUserEvent;
-import com.haines.mclaren.total_transations.domain.UserEventDeserializer;
+import com.haines.mclaren.total_transations.domain.UserEvent.FlyweightUserEvent;
 import com.haines.mclaren.total_transations.domain.UserTransactionDomainFactory;
 import com.haines.mclaren.total_transations.io.Feeder;
 
@@ -33,6 +41,41 @@ public class App implements Closeable{
 		}
 	}
 	
+	/**
+	 * Processes each of the supplied feeders on its own thread, each feeding the consumer directly. Blocks until all the
+	 * feeders have been drained. The consumer has to be safe to call from multiple threads.
+	 * @param feeders
+	 * @throws IOException
+	 */
+	public void process(Collection<? extends Feeder<? extends UserEvent>> feeders) throws IOException{
+		
+		AtomicInteger nextThreadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(feeders.size(), 1), r -> new Thread(r, "ingestion_worker_"+nextThreadNumber.getAndIncrement()));
+		
+		try{
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(feeders.size());
+			
+			for (Feeder<? extends UserEvent> feeder: feeders){
+				tasks.add(() -> {
+					process(feeder);
+					
+					return null;
+				});
+			}
+			
+			for (Future<Void> result: executor.invokeAll(tasks)){
+				result.get();
+			}
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted whilst processing feeders", e);
+		} catch (ExecutionException e){
+			throw new IOException("unable to process feeder", e.getCause());
+		} finally{
+			executor.shutdown();
+		}
+	}
+	
 	@Override
 	public void close() throws IOException {
 		consumer.close();
@@ -45,8 +88,8 @@ public class App implements Closeable{
 	
 	public static void main(String[] args) throws IOException, ClassNotFoundException{
 		
-		if (args.length != 4){
-			throw new IllegalArgumentException("USUAGE: java "+App.class.getName()+" {numAggregatorWorkerThreads} {topN} {numInMemoryItemsPerExecutor} {diskInput} {diskOutput}");
+		if (args.length != 5 && args.length != 6){
+			throw new IllegalArgumentException("USUAGE: java "+App.class.getName()+" {numAggregatorWorkerThreads} {topN} {numInMemoryItemsPerExecutor} {diskInput} {diskOutput} [{numIngestionThreads}]");
 		}
 		
 		int numAggregatorWorkerThreads = Integer.parseInt(args[0]);
@@ -55,11 +98,31 @@ public class App implements Closeable{
 		
 		Path diskInput = Paths.get(args[3]);
 		Path diskOutput = Paths.get(args[4]);
+		int numIngestionThreads = args.length > 5?Integer.parseInt(args[5]):1;
+		
+		if (numAggregatorWorkerThreads == 0 && numIngestionThreads > 1){
+			throw new IllegalArgumentException("Aggregating on the ingestion thread (0 aggregator worker threads) is only supported with a single ingestion thread");
+		}
+		
+		UserTransactionDomainFactory domainFactory = new UserTransactionDomainFactory(numAggregatorWorkerThreads, topN, diskOutput, numInMemoryItemsPerExecutor);
 		
-		try(App app = createApp(new UserTransactionDomainFactory(numAggregatorWorkerThreads, topN, diskOutput, numInMemoryItemsPerExecutor))){
+		try(App app = createApp(domainFactory)){
 			
-			try(Feeder<ImmutableUserEvent> feeder = Feeder.FACTORY.createFileFeeder(diskInput, UserEventDeserializer.IMMUTABLE_DESERIALIZER, true)){
-				app.process(feeder);
+			if (numIngestionThreads > 1){
+				// split the input into ranges that are each parsed on their own thread
+				
+				List<Feeder<FlyweightUserEvent>> feeders = Feeder.FACTORY.createFileRangeFeeders(diskInput, domainFactory::createDeserializer, true, numIngestionThreads);
+				try{
+					app.process(feeders);
+				} finally{
+					for (Feeder<FlyweightUserEvent> feeder: feeders){
+						feeder.close();
+					}
+				}
+			} else{
+				try(Feeder<FlyweightUserEvent> feeder = Feeder.FACTORY.createFileFeeder(diskInput, domainFactory.createDeserializer(), true)){
+					app.process(feeder);
+				}
 			}
 		}
 	}
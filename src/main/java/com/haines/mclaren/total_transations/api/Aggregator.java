@@ -3,17 +3,32 @@ package com.haines.mclaren.total_transations.api;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import com.haines.mclaren.total_transations.api.Event.MutableEvent;
 import com.haines.mclaren.total_transations.util.CollectionUtil;
+import com.haines.mclaren.total_transations.util.CounterMap;
+import com.haines.mclaren.total_transations.util.DenseCounterMap;
+import com.haines.mclaren.total_transations.util.EvictionPolicy;
+import com.haines.mclaren.total_transations.util.KeyDictionary;
 import com.haines.mclaren.total_transations.util.InMemorySimpleMap;
+import com.haines.mclaren.total_transations.util.MemoryBudget;
 import com.haines.mclaren.total_transations.util.SimpleMap;
+import com.haines.mclaren.total_transations.util.WindowMap;
 
 public abstract class Aggregator<E extends Event<E>> implements Consumer<E>, Closeable{
 	
@@ -32,42 +47,133 @@ public abstract class Aggregator<E extends Event<E>> implements Consumer<E>, Clo
 		}
 	};
 	
-	private final SimpleMap<Serializable, MutableEvent<E>> aggregationBuffer;
+	private static final BiFunction<? extends MutableEvent<?>, ? extends Event<?>, ? extends MutableEvent<?>> DEFAULT_IN_PLACE_AGGREGATOR = new BiFunction<MutableEvent<?>, Event<?>, MutableEvent<?>>(){
+		
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		@Override
+		public MutableEvent apply(MutableEvent existingEvent, Event event) {
+			existingEvent.aggregate(event);
+			
+			return existingEvent;
+		}
+	};
+	
+	private SimpleMap<Serializable, MutableEvent<E>> aggregationBuffer;
 	private final int windowSize;
-	private final BiFunction<MutableEvent<E>, MutableEvent<E>, MutableEvent<E>> reduceFunction;
+	private final MemoryBudget windowBudget;
+	private final BiFunction<MutableEvent<E>, E, MutableEvent<E>> reduceFunction;
 	
+	/**
+	 * @param windowSize the number of entries at which the buffer is pushed downstream, or -1 to never push it
+	 * @param windowBudget if not null, the buffer is instead pushed downstream once the estimated memory retained by its
+	 * entries exceeds this budget
+	 * @param aggregationBuffer
+	 * @param reduceFunction a function that reduces a new event (the second argument) into the event already held in the
+	 * buffer for the same key (the first argument). The buffered event is owned by this thread so can be updated in place.
+	 * The result is what is held in the buffer from then on.
+	 */
 	@SuppressWarnings("unchecked")
-	public Aggregator(int windowSize, SimpleMap<? extends Serializable, ? extends MutableEvent<E>> aggregationBuffer, BiFunction<MutableEvent<E>, MutableEvent<E>, MutableEvent<E>> reduceFunction){
+	public Aggregator(int windowSize, MemoryBudget windowBudget, SimpleMap<? extends Serializable, ? extends MutableEvent<E>> aggregationBuffer, BiFunction<MutableEvent<E>, E, MutableEvent<E>> reduceFunction){
 		this.aggregationBuffer = (SimpleMap<Serializable, MutableEvent<E>>)aggregationBuffer;
 		this.windowSize = windowSize;
+		this.windowBudget = windowBudget;
 		this.reduceFunction = reduceFunction;
 	}
 	
-	@SuppressWarnings("unchecked")
+	public Aggregator(int windowSize, SimpleMap<? extends Serializable, ? extends MutableEvent<E>> aggregationBuffer, BiFunction<MutableEvent<E>, E, MutableEvent<E>> reduceFunction){
+		this(windowSize, null, aggregationBuffer, reduceFunction);
+	}
+	
 	public Aggregator(int windowSize, SimpleMap<? extends Serializable, ? extends MutableEvent<E>> aggregationBuffer){
-		this(windowSize, aggregationBuffer, (BiFunction<MutableEvent<E>, MutableEvent<E>, MutableEvent<E>>)DEFAULT_EVENT_AGGREGATOR);
+		this(windowSize, null, aggregationBuffer);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public Aggregator(int windowSize, MemoryBudget windowBudget, SimpleMap<? extends Serializable, ? extends MutableEvent<E>> aggregationBuffer){
+		this(windowSize, windowBudget, aggregationBuffer, (BiFunction<MutableEvent<E>, E, MutableEvent<E>>)DEFAULT_IN_PLACE_AGGREGATOR);
 	}
 	
 	public boolean consume(E event) {
-		MutableEvent<E> existingEvent = aggregationBuffer.get(event.getAggregationValue());
+		Serializable key = event.getAggregationValue();
 		
-		if (existingEvent != null){
-			existingEvent = reduceFunction.apply(event.toMutableEvent(), existingEvent);
-		} else{
-			aggregationBuffer.put(event.getAggregationValue(), event.toMutableEvent()); // upgrade to mutable copy as this thread now owns it.
+		if (aggregate(key, event) && windowBudget != null){
+			windowBudget.add(key);
 		}
 		
 		checkCapacityAndPush(event);
 		
 		return true;
 	}
+	
+	/**
+	 * Reduces the event into the buffer.
+	 * @return true if the key was not already in the buffer
+	 */
+	protected boolean aggregate(Serializable key, E event){
+		MutableEvent<E> existingEvent = aggregationBuffer.get(key);
+		
+		if (existingEvent != null){
+			// reduce straight into the copy we already own rather than taking a mutable copy of the incoming event. This means
+			// aggregating a key we have already seen creates no garbage, which matters when the event is a reused flyweight.
+			MutableEvent<E> reducedEvent = reduceFunction.apply(existingEvent, event);
+			
+			if (reducedEvent != existingEvent){
+				aggregationBuffer.put(key, reducedEvent);
+			}
+			return false;
+		}
+		aggregationBuffer.put(key, event.toMutableEvent()); // upgrade to mutable copy as this thread now owns it.
+		
+		return true;
+	}
 
 	private void checkCapacityAndPush(E event) {
-		if (aggregationBuffer.size() > windowSize && windowSize != -1){
+		if (windowBudget != null){
+			if (windowBudget.isExceeded()){
+				LOG.log(Level.INFO, "aggregation buffer is full at "+ aggregationBuffer.size()+" items. pushing downstream. "+windowBudget);
+				
+				makeRoom(event);
+			}
+		} else if (aggregationBuffer.size() > windowSize && windowSize != -1){
 			LOG.log(Level.INFO, "aggregation buffer is full at "+ aggregationBuffer.size()+" items. pushing downstream");
 			
-			pushBufferDownStream(event);
+			makeRoom(event);
+		}
+	}
+	
+	/**
+	 * Called once the buffer is full to make room for more keys. By default the whole buffer is pushed downstream.
+	 */
+	protected void makeRoom(E event){
+		pushBufferDownStream(event);
+		
+		if (windowBudget != null){
+			windowBudget.clear();
+		}
+	}
+	
+	/**
+	 * Returns true if the buffer holds no more than <code>percentage</code> percent of its window, measured by the
+	 * estimated memory of its entries if it has a budget or by the number of them otherwise.
+	 */
+	protected boolean isWithinWindow(int percentage){
+		if (windowBudget != null){
+			return windowBudget.getUsedBytes() * 100 <= windowBudget.getMaxBytes() * percentage;
 		}
+		return windowSize == -1 || aggregationBuffer.size() * 100 <= (long)windowSize * percentage;
+	}
+	
+	/**
+	 * Replaces the buffer that events are aggregated into, such as with an empty one once the full one has been pushed
+	 * downstream.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void setAggregationBuffer(SimpleMap<? extends Serializable, ? extends MutableEvent<E>> aggregationBuffer){
+		this.aggregationBuffer = (SimpleMap<Serializable, MutableEvent<E>>)aggregationBuffer;
+	}
+	
+	protected MemoryBudget getWindowBudget(){
+		return windowBudget;
 	}
 	
 	protected void pushBufferDownStream(E event) {
@@ -78,6 +184,10 @@ public abstract class Aggregator<E extends Event<E>> implements Consumer<E>, Clo
 	public void close() throws IOException {
 		pushBufferDownStream(null);
 		
+		if (windowBudget != null){
+			LOG.log(Level.INFO, "closing window budget: "+windowBudget);
+		}
+		
 		aggregationBuffer.close();
 	}
 	
@@ -99,71 +209,351 @@ public abstract class Aggregator<E extends Event<E>> implements Consumer<E>, Clo
 			
 			aggregationBuffer.close();
 			
-			// now this is aggregated, push all the aggregations downstream
+			// now this is aggregated, push all the aggregations downstream. The values are read in parallel but, as the
+			// downstream consumers are not thread safe, handed to them one at a time
 			
-			StreamSupport.stream(aggregationBuffer.getAllValues().spliterator(), false)
+			StreamSupport.stream(aggregationBuffer.valuesSpliterator(), true)
 							.map(e -> e.toImmutableEvent()) // convert to immutable version for visibility
-							.forEach(e -> downStreamConsumer.consume(e));
+							.forEach(e -> {
+								synchronized(downStreamConsumer){
+									downStreamConsumer.consume(e);
+								}
+							});
 			
 			downStreamConsumer.close();
 		}
 
+		/**
+		 * Closes the stream of events once they have all been aggregated, so that whatever backs it can be reused by the
+		 * producer (see {@link AggregatorWindowedProducer#pushBufferDownStream(Event)}).
+		 */
 		@SuppressWarnings("unchecked")
 		@Override
 		public boolean consume(Stream<E> events) {
-			Stream<MutableEvent<E>> mappedStream = aggregationBuffer.processAllEvents(events.map(e -> e.toMutableEvent()), (BiFunction<MutableEvent<E>, MutableEvent<E>, MutableEvent<E>>)DEFAULT_EVENT_AGGREGATOR);
+			try(Stream<E> drainedEvents = events){
+				Stream<MutableEvent<E>> previousEvents = aggregationBuffer.reduceAllEvents(drainedEvents.map(e -> e.toMutableEvent()), (BiFunction<MutableEvent<E>, MutableEvent<E>, MutableEvent<E>>)DEFAULT_EVENT_AGGREGATOR);
 			
-			/* Do a reduce to kick off the iteration of the stream. we map first to a 2 element array where the first element is the
-			*  number of newly inserted elements and the second number is the number of aggregated elements (elements where we had an
-			*  existing entry)
-			*/
-			int[] updateCounts = aggregationBuffer.putAllEvents(mappedStream).map(e -> e == null?new int[]{1,0}:new int[]{0,1}).reduce((e1, e2) -> new int[]{e1[0] + e2[0], e1[1] + e2[1]}).get(); 
+				/* Do a reduce to kick off the iteration of the stream. we map first to a 2 element array where the first element is the
+				*  number of newly inserted elements and the second number is the number of aggregated elements (elements where we had an
+				*  existing entry)
+				*/
+				int[] updateCounts = previousEvents.map(e -> e == null?new int[]{1,0}:new int[]{0,1}).reduce((e1, e2) -> new int[]{e1[0] + e2[0], e1[1] + e2[1]}).orElse(new int[]{0,0}); 
 			
-			LOG.log(Level.INFO, "Out of "+(updateCounts[0]+updateCounts[1])+" total events, "+updateCounts[0]+" were new and "+updateCounts[1]+" were aggregated");
+				LOG.log(Level.INFO, "Out of "+(updateCounts[0]+updateCounts[1])+" total events, "+updateCounts[0]+" were new and "+updateCounts[1]+" were aggregated");
+			}
 			return true;
 		}
 	}
 
+	/**
+	 * Aggregates events into a window that is pushed downstream whenever it is full. Whilst a full window is drained
+	 * downstream, events are aggregated into a spare window of the same kind and capacity (see
+	 * {@link #pushBufferDownStream(Event)}), so each producer holds up to two windows at once: a window budget bounds the
+	 * entries of each, and the memory of a producer can reach twice that budget.
+	 */
 	public static class AggregatorWindowedProducer<E extends Event<E>> extends Aggregator<E>{
 
 		private final static Logger LOG = Logger.getLogger(AggregatorWindowedProducer.class.getName());
 		
+		/**
+		 * How full the window is left, as a percentage, after the cold keys have been evicted from it
+		 */
+		private static final int RETAINED_PERCENTAGE = 75;
+		
+		/**
+		 * How long to wait for the downstream consumer to take a window before logging that it is still waiting
+		 */
+		private static final long HAND_DOWN_STREAM_WAIT_SECONDS = 5;
+		
 		private final Consumer<Stream<E>> downStreamConsumer;
-		private final InMemorySimpleMap<Serializable, ? extends MutableEvent<E>> aggregationBuffer;
+		private final BlockingQueue<WindowMap<Serializable, ? extends MutableEvent<E>>> spareBuffers;
+		private final WindowAdder<E> windowAdder;
+		private final EvictionPolicy<Serializable> evictionPolicy;
+		private WindowMap<Serializable, ? extends MutableEvent<E>> window;
+		private boolean hasSpareBuffer;
+		private boolean closed;
+		
+		/**
+		 * @param windowBudget if not null, the window is pushed downstream once the estimated memory retained by its
+		 * entries exceeds this budget. It is the budget of a single window, and the spare window swapped in whilst a full
+		 * one is drained can take as much again.
+		 * @param evictionPolicy if not null, a full window only pushes the keys this policy chooses downstream rather than
+		 * all of them, so that the hot keys stay in the window until this is closed. See {@link #makeRoom(Event)}.
+		 */
+		public AggregatorWindowedProducer(int windowSize, MemoryBudget windowBudget, InMemorySimpleMap<Serializable, ? extends MutableEvent<E>> window, EvictionPolicy<Serializable> evictionPolicy, Consumer<? extends Stream<E>> downStreamConsumer) {
+			this(windowSize, windowBudget, window, null, evictionPolicy, downStreamConsumer);
+		}
+		
+		@SuppressWarnings("unchecked")
+		public AggregatorWindowedProducer(int windowSize, Consumer<? extends Stream<E>> downStreamConsumer){
+			this(windowSize, null, (InMemorySimpleMap<Serializable, ? extends MutableEvent<E>>)CollectionUtil.getMemoryBackMap(Serializable.class, MutableEvent.class), null, downStreamConsumer);
+		}
 		
+		/**
+		 * @param windowAdder how an event is added to the window, or null to reduce it into the event held in the window
+		 * for its key
+		 */
 		@SuppressWarnings("unchecked")
-		public AggregatorWindowedProducer(int windowSize, InMemorySimpleMap<Serializable, ? extends MutableEvent<E>> aggregationBuffer, Consumer<? extends Stream<E>> downStreamConsumer) {
-			super(windowSize, aggregationBuffer);
+		private AggregatorWindowedProducer(int windowSize, MemoryBudget windowBudget, WindowMap<Serializable, ? extends MutableEvent<E>> window, WindowAdder<E> windowAdder, EvictionPolicy<Serializable> evictionPolicy, Consumer<? extends Stream<E>> downStreamConsumer) {
+			super(windowSize, windowBudget, window);
 			
-			this.aggregationBuffer = aggregationBuffer;
+			this.window = window;
+			this.windowAdder = windowAdder != null?windowAdder:(buffer, key, event) -> super.aggregate(key, event);
+			this.evictionPolicy = evictionPolicy;
 			this.downStreamConsumer = (Consumer<Stream<E>>)downStreamConsumer;
+			this.spareBuffers = new ArrayBlockingQueue<WindowMap<Serializable, ? extends MutableEvent<E>>>(1);
 		}
 		
+		/**
+		 * Creates a producer that aggregates into a map of counters rather than a map of events, for events whose
+		 * aggregation is the sum of a single count. Each event is added to the counter of its key without creating or
+		 * updating any objects, and the events are only created when the window is pushed downstream.
+		 * @param countFunction the amount an event adds to the counter of its key
+		 */
 		@SuppressWarnings("unchecked")
-		public AggregatorWindowedProducer(int windowSize, Consumer<? extends Stream<E>> downStreamConsumer){
-			this(windowSize, (InMemorySimpleMap<Serializable, ? extends MutableEvent<E>>)CollectionUtil.getMemoryBackMap(Serializable.class, MutableEvent.class), downStreamConsumer);
+		public static <E extends Event<E>> AggregatorWindowedProducer<E> createCountingProducer(int windowSize, MemoryBudget windowBudget, CounterMap<Serializable, ? extends MutableEvent<E>> window, EvictionPolicy<Serializable> evictionPolicy, ToLongFunction<? super E> countFunction, Consumer<? extends Stream<E>> downStreamConsumer){
+			return new AggregatorWindowedProducer<E>(windowSize, windowBudget, window, (buffer, key, event) -> {
+				CounterMap<Serializable, ?> counters = (CounterMap<Serializable, ?>)buffer;
+				long size = counters.size();
+				
+				counters.addTo(key, countFunction.applyAsLong(event));
+				
+				return counters.size() > size;
+			}, evictionPolicy, downStreamConsumer);
+		}
+		
+		/**
+		 * Creates a producer that aggregates into counters indexed by the ids of the keys in a {@link KeyDictionary}, as
+		 * {@link #createCountingProducer(int, MemoryBudget, CounterMap, EvictionPolicy, ToLongFunction, Consumer)} does.
+		 * Events that were encoded when they were deserialized are added to the counter of their id without hashing or
+		 * comparing their key.
+		 * @param idFunction the id of an event's key in the window's dictionary, or {@link KeyDictionary#NOT_ENCODED} for
+		 * events that were not encoded, which are then looked up by their key
+		 */
+		@SuppressWarnings("unchecked")
+		public static <E extends Event<E>> AggregatorWindowedProducer<E> createDenseCountingProducer(int windowSize, MemoryBudget windowBudget, DenseCounterMap<Serializable, ? extends MutableEvent<E>> window, EvictionPolicy<Serializable> evictionPolicy, ToIntFunction<? super E> idFunction, ToLongFunction<? super E> countFunction, Consumer<? extends Stream<E>> downStreamConsumer){
+			return new AggregatorWindowedProducer<E>(windowSize, windowBudget, window, (buffer, key, event) -> {
+				DenseCounterMap<Serializable, ?> counters = (DenseCounterMap<Serializable, ?>)buffer;
+				long size = counters.size();
+				int id = idFunction.applyAsInt(event);
+				
+				if (id != KeyDictionary.NOT_ENCODED){
+					counters.addTo(id, countFunction.applyAsLong(event));
+				} else{
+					counters.addTo(key, countFunction.applyAsLong(event));
+				}
+				
+				return counters.size() > size;
+			}, evictionPolicy, downStreamConsumer);
 		}
 		
+		@Override
+		protected boolean aggregate(Serializable key, E event) {
+			boolean isNewKey = windowAdder.add(window, key, event);
+			
+			if (evictionPolicy != null){
+				if (isNewKey){
+					evictionPolicy.add(key);
+				} else{
+					evictionPolicy.recordAccess(key);
+				}
+			}
+			return isNewKey;
+		}
+		
+		/**
+		 * With an eviction policy, only the keys that the policy chooses as the coldest are removed and pushed
+		 * downstream, until the window is back down to {@value #RETAINED_PERCENTAGE}% full. The hot keys stay in the
+		 * window and keep absorbing their events until this is closed, rather than being pushed downstream (and
+		 * aggregated into the final store) again by every window. On skewed data, where a few keys account for most of the
+		 * events, this pushes far fewer events downstream. The key of the latest event is never evicted.
+		 */
+		@Override
+		protected void makeRoom(E event){
+			if (evictionPolicy == null){
+				super.makeRoom(event);
+				
+				return;
+			}
+			
+			List<E> evictedEvents = new ArrayList<E>();
+			Serializable latestKey = event.getAggregationValue();
+			boolean isLatestKeyChosen = false;
+			Serializable evictedKey;
+			
+			while (!isWithinWindow(RETAINED_PERCENTAGE) && (evictedKey = evictionPolicy.evict()) != null){
+				if (evictedKey.equals(latestKey)){
+					isLatestKeyChosen = true; // kept in the window and given back to the policy once the others are evicted
+					
+					continue;
+				}
+				evictedEvents.add(window.remove(evictedKey).toImmutableEvent()); // immutable as we are handing off to another thread
+				
+				if (getWindowBudget() != null){
+					getWindowBudget().remove(evictedKey);
+				}
+			}
+			
+			if (isLatestKeyChosen){
+				evictionPolicy.add(latestKey);
+			}
+			
+			LOG.log(Level.INFO, "evicting "+evictedEvents.size()+" cold entries downstream");
+			handDownStream(evictedEvents.stream());
+		}
+		
+		/**
+		 * Hands the buffer itself downstream rather than a copy of it, and carries on aggregating into a second buffer.
+		 * The downstream consumer streams the values straight out of the full buffer which, once the stream has been read
+		 * to the end or closed, is cleared on the consumer's thread and handed back to become the spare for the next
+		 * swap. This thread never touches a buffer whilst it is downstream and the buffers are passed between the threads
+		 * through queues, so the consumer sees everything written to the buffer without taking immutable copies of the
+		 * events. If the previous buffer has not been drained by the time the next one is full, this waits for it, which
+		 * keeps at most one window per producer in flight.
+		 */
 		@Override
 		protected void pushBufferDownStream(E event) {
-			LOG.log(Level.INFO, "pushing buffer of "+aggregationBuffer.size()+" entries downstream");
-			downStreamConsumer.consume(aggregationBuffer.values().stream()
-					/*
-					 * map to immutable version to ensure memory visibility as we will be handing off to another thread. 
-					 * Also specificly do a collect to copy the buffer. This will prevent concurrent modification
-					 * exceptions as it is handed off to the reducer thread.
-					 * 
-					 */
-			  	.map(e -> e.toImmutableEvent()).collect(Collectors.toList()).stream());
+			Collection<? extends MutableEvent<E>> bufferedEvents = window.values();
+			
+			LOG.log(Level.INFO, "pushing buffer of "+bufferedEvents.size()+" entries downstream");
+			
+			handDownStream(createDrainingStream(bufferedEvents, createRecycler(window)));
+			
+			if (!closed){
+				useBuffer(takeSpareBuffer());
+			}
+		}
+		
+		/**
+		 * Blocks until the downstream consumer takes the events rather than dropping them when its queue is full, as the
+		 * events are the only copy of their keys' aggregates. If the downstream consumer has stopped, the events are
+		 * released and this throws an {@link IllegalStateException} rather than wait for a consumer that will never come.
+		 */
+		private void handDownStream(Stream<E> events){
+			try{
+				while(!downStreamConsumer.consume(events, HAND_DOWN_STREAM_WAIT_SECONDS, TimeUnit.SECONDS)){
+					LOG.log(Level.WARNING, "downstream consumer has not taken the events after "+HAND_DOWN_STREAM_WAIT_SECONDS+"s, still waiting");
+				}
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				events.close();
+				
+				throw new RuntimeException("interrupted whilst handing events downstream", e);
+			} catch (RuntimeException e){
+				events.close(); // recycles the buffer
+				
+				throw e;
+			}
+		}
+		
+		private Runnable createRecycler(WindowMap<Serializable, ? extends MutableEvent<E>> buffer){
+			AtomicBoolean recycled = new AtomicBoolean(false);
+			
+			return () -> {
+				if (recycled.compareAndSet(false, true)){ // both draining and closing the stream recycle it
+					buffer.clear();
+					spareBuffers.offer(buffer);
+				}
+			};
+		}
+		
+		/*
+		 * The mutable events of a domain are also events of that domain (a MutableUserEvent is a UserEvent) so they are
+		 * streamed as they are.
+		 */
+		@SuppressWarnings("unchecked")
+		private Stream<E> createDrainingStream(Collection<? extends MutableEvent<E>> bufferedEvents, Runnable onDrained){
+			Spliterator<E> values = (Spliterator<E>)(Spliterator<?>)bufferedEvents.spliterator();
 
-			aggregationBuffer.clear(); // reset buffer
+			return StreamSupport.stream(new DrainingSpliterator<E>(values, onDrained), false).onClose(onDrained);
+		}
+		
+		private WindowMap<Serializable, ? extends MutableEvent<E>> takeSpareBuffer(){
+			if (!hasSpareBuffer){
+				hasSpareBuffer = true;
+				
+				return window.createEmptyCopy();
+			}
+			
+			try{
+				return spareBuffers.take();
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("interrupted whilst waiting for the previous window to be drained", e);
+			}
+		}
+		
+		private void useBuffer(WindowMap<Serializable, ? extends MutableEvent<E>> buffer){
+			window = buffer;
+			
+			setAggregationBuffer(buffer);
 		}
 
 		@Override
 		public void close() throws IOException {
+			closed = true; // the last window does not need a buffer to replace it
+			
 			super.close();
 			
 			downStreamConsumer.close();
 		}
+		
+		/**
+		 * Adds an event to the window, in whichever way suits the kind of map the window is.
+		 */
+		private static interface WindowAdder<E extends Event<E>> {
+			
+			/**
+			 * @return true if the key was not already in the window
+			 */
+			boolean add(WindowMap<Serializable, ? extends MutableEvent<E>> window, Serializable key, E event);
+		}
+		
+		/**
+		 * Runs a callback once every element has been read, as well as passing through to the wrapped spliterator. This
+		 * does not split so that there is exactly one point at which it is drained.
+		 */
+		private static class DrainingSpliterator<T> implements Spliterator<T> {
+			
+			private final Spliterator<T> spliterator;
+			private final Runnable onDrained;
+			
+			private DrainingSpliterator(Spliterator<T> spliterator, Runnable onDrained){
+				this.spliterator = spliterator;
+				this.onDrained = onDrained;
+			}
+			
+			@Override
+			public boolean tryAdvance(java.util.function.Consumer<? super T> action) {
+				if (spliterator.tryAdvance(action)){
+					return true;
+				}
+				onDrained.run();
+				
+				return false;
+			}
+			
+			@Override
+			public void forEachRemaining(java.util.function.Consumer<? super T> action) {
+				spliterator.forEachRemaining(action);
+				
+				onDrained.run();
+			}
+			
+			@Override
+			public Spliterator<T> trySplit() {
+				return null;
+			}
+			
+			@Override
+			public long estimateSize() {
+				return spliterator.estimateSize();
+			}
+			
+			@Override
+			public int characteristics() {
+				return spliterator.characteristics();
+			}
+		}
 	}
 }
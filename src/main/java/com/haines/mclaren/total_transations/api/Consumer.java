@@ -9,6 +9,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,6 +18,18 @@ public interface Consumer<E> extends Closeable {
 	
 	boolean consume(E event);
 	
+	/**
+	 * Waits up to the timeout for this consumer to take the event, returning false if it has not by then. Consumers
+	 * without a queue to wait on either take the event straight away or are no longer able to take any, in which case
+	 * this throws an {@link IllegalStateException} rather than have the caller retry forever.
+	 */
+	default boolean consume(E event, long timeout, TimeUnit unit) throws InterruptedException{
+		if (!consume(event)){
+			throw new IllegalStateException("consumer "+this+" refused the event");
+		}
+		return true;
+	}
+	
 	public static class SeperateThreadConsumer<E> implements Consumer<E>, Runnable{
 		
 		private static final Logger LOG = Logger.getLogger(SeperateThreadConsumer.class.getName());
@@ -83,6 +96,18 @@ public interface Consumer<E> extends Closeable {
 			}
 		}
 
+		/**
+		 * Waits for room in the queue rather than refusing the event when it is full. Throws an
+		 * {@link IllegalStateException} once this has been closed as nothing will ever take the event.
+		 */
+		@Override
+		public boolean consume(E e, long timeout, TimeUnit unit) throws InterruptedException {
+			if (!isRunning.get()){
+				throw new IllegalStateException("consumer on thread: "+runningThreadName.get()+" is not running");
+			}
+			return eventsQueue.offer(e, timeout, unit); // is on the producer thread.
+		}
+		
 		@Override
 		public void close() throws IOException {
 			isRunning.set(false);
@@ -91,6 +116,39 @@ public interface Consumer<E> extends Closeable {
 		}
 	}
 	
+	/**
+	 * A consumer that is fed by a number of upstream consumers, each of which closes it once it has finished. The actual
+	 * consumer is only closed once all of them have, so that the first one to finish does not cut off the others. The
+	 * actual consumer has to be safe to call from all of the upstream consumers' threads.
+	 */
+	public static class SharedConsumer<E> implements Consumer<E>{
+		
+		private final Consumer<E> actualConsumer;
+		private final AtomicInteger remainingOwners;
+		
+		public SharedConsumer(Consumer<E> actualConsumer, int numOwners){
+			this.actualConsumer = actualConsumer;
+			this.remainingOwners = new AtomicInteger(numOwners);
+		}
+		
+		@Override
+		public boolean consume(E event) {
+			return actualConsumer.consume(event);
+		}
+		
+		@Override
+		public boolean consume(E event, long timeout, TimeUnit unit) throws InterruptedException {
+			return actualConsumer.consume(event, timeout, unit);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (remainingOwners.decrementAndGet() == 0){
+				actualConsumer.close();
+			}
+		}
+	}
+	
 	public static class ChainedConsumer<E extends Event<E>> implements Consumer<E>{
 
 		private final Collection<Consumer<E>> consumers;
@@ -4,6 +4,8 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
 
 import com.haines.mclaren.total_transations.util.CollectionUtil;
 
@@ -11,16 +13,40 @@ public class Dispatcher<E extends Event<E>> implements Closeable, Consumer<E>{
 
 	public final static Factory FACTORY = new Factory();
 	
-	private final Iterator<? extends Consumer<E>> consumerIt;
+	/*
+	 * Multiple producers (such as the parallel file range ingestion) can dispatch through the same instance without any
+	 * coordination, so the router has to be safe to call from any thread. The consumers themselves have to be thread
+	 * safe, which the queue backed SeperateThreadConsumer is.
+	 */
+	private final Function<? super E, ? extends Consumer<E>> router;
 	private final Collection<? extends Consumer<E>> allConsumers;
 	
-	private Dispatcher(Iterable<? extends Consumer<E>> consumerIt, Collection<? extends Consumer<E>> allConsumers){
-		this.consumerIt = consumerIt.iterator();
+	private Dispatcher(Function<? super E, ? extends Consumer<E>> router, Collection<? extends Consumer<E>> allConsumers){
+		this.router = router;
 		this.allConsumers = allConsumers;
 	}
 	
 	public void dispatchEvent(E event){
-		while(!consumerIt.next().consume(event)); // busy spins until a consumer is able to take this event. TODO this should really be better
+		
+		/*
+		 * The consumers run on other threads so hand over an immutable version. This is a no op for events that are
+		 * already immutable but is required for reused flyweight events that will be overwritten by the next event.
+		 */
+		E publishableEvent = event.toImmutableEvent();
+		
+		while(!router.apply(publishableEvent).consume(publishableEvent)); // busy spins until a consumer is able to take this event. TODO this should really be better
+	}
+	
+	/**
+	 * Returns the partition, between 0 (inclusive) and <code>numPartitions</code> (exclusive), that
+	 * {@link Factory#createPartitionedDispatch(List)} sends the events with the supplied aggregation value to. This takes
+	 * the top bits of a multiplicative hash so that it is independent of the murmur mixed bits that the
+	 * {@link com.haines.mclaren.total_transations.util.DiskBackedMap} buckets of each partition are chosen by.
+	 */
+	public static int getPartition(Object aggregationValue, int numPartitions){
+		long hash = (aggregationValue.hashCode() * 0x9E3779B97F4A7C15L) >>> 32;
+		
+		return (int)((hash * numPartitions) >>> 32);
 	}
 	
 	public static class Factory {
@@ -28,7 +54,20 @@ public class Dispatcher<E extends Event<E>> implements Closeable, Consumer<E>{
 		private Factory(){}
 		
 		public <E extends Event<E>> Dispatcher<E> createRoundRobinDispatch(Collection<? extends Consumer<E>> consumers){
-			return new Dispatcher<E>(CollectionUtil.cycle(consumers), consumers); // make this loop forever to simulate a round robin.
+			
+			// each producing thread gets its own iterator, made to loop forever to simulate a round robin.
+			ThreadLocal<Iterator<? extends Consumer<E>>> consumerIt = ThreadLocal.withInitial(() -> CollectionUtil.cycle(consumers).iterator());
+			
+			return new Dispatcher<E>(e -> consumerIt.get().next(), consumers);
+		}
+		
+		/**
+		 * Creates a dispatcher that always sends the events of the same aggregation value to the same consumer, so that
+		 * each consumer sees every event of the values it is sent and none of any others. See
+		 * {@link Dispatcher#getPartition(Object, int)}.
+		 */
+		public <E extends Event<E>> Dispatcher<E> createPartitionedDispatch(List<? extends Consumer<E>> consumers){
+			return new Dispatcher<E>(e -> consumers.get(getPartition(e.getAggregationValue(), consumers.size())), consumers);
 		}
 		
 		// we can add other dispachers here such as ones that look at the capacity of each queue etc.
@@ -1,13 +1,16 @@
 package com.haines.mclaren.total_transations.api;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.haines.mclaren.total_transations.api.Consumer;
+import com.haines.mclaren.total_transations.api.Consumer.SharedConsumer;
 import com.haines.mclaren.total_transations.api.Event;
 
 /**
@@ -22,11 +25,13 @@ public class TopNEventConsumer<T extends Event<T>> implements Consumer<T>{
 	private static final Logger LOG = Logger.getLogger(TopNEventConsumer.class.getName());
 	
 	private final TreeSet<T> bestAggregatedEvents;
+	private final Comparator<T> ordering;
 	private final int n;
 	private final CountDownLatch finished;
 	
 	public TopNEventConsumer(int n, Comparator<T> ordering){
 		this.bestAggregatedEvents = new TreeSet<T>(ordering);
+		this.ordering = ordering;
 		this.n = n;
 		this.finished = new CountDownLatch(1);
 	}
@@ -53,6 +58,24 @@ public class TopNEventConsumer<T extends Event<T>> implements Consumer<T>{
 		return false;
 	}
 	
+	/**
+	 * Creates a consumer for each of <code>numPartitions</code> partitions of the events, where each event is only ever
+	 * sent to one partition. Each computes the top n of its own partition without any coordination and, when closed,
+	 * merges them into this consumer. This consumer is closed once all of the partitions have been, at which point it
+	 * holds the top n overall. Merging costs at most n events per partition.
+	 * @param numPartitions
+	 * @return
+	 */
+	public List<Consumer<T>> createPartials(int numPartitions){
+		Consumer<T> merged = new SharedConsumer<T>(this, numPartitions);
+		List<Consumer<T>> partials = new ArrayList<Consumer<T>>(numPartitions);
+		
+		for (int i = 0; i < numPartitions; i++){
+			partials.add(new PartialTopNEventConsumer<T>(new TopNEventConsumer<T>(n, ordering), merged));
+		}
+		return partials;
+	}
+	
 	/**
 	 * Blocks and waits until this is finished and returns the best n events.
 	 * @return
@@ -62,4 +85,30 @@ public class TopNEventConsumer<T extends Event<T>> implements Consumer<T>{
 		finished.await();
 		return bestAggregatedEvents;
 	}
+	
+	private static class PartialTopNEventConsumer<T extends Event<T>> implements Consumer<T>{
+		
+		private final TopNEventConsumer<T> partial;
+		private final Consumer<T> merged;
+		
+		private PartialTopNEventConsumer(TopNEventConsumer<T> partial, Consumer<T> merged){
+			this.partial = partial;
+			this.merged = merged;
+		}
+
+		@Override
+		public boolean consume(T e) {
+			return partial.consume(e);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			synchronized(merged){ // the partitions are closed on their own threads
+				for (T event: partial.bestAggregatedEvents){
+					merged.consume(event);
+				}
+			}
+			merged.close();
+		}
+	}
 }
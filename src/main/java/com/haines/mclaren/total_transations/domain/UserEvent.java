@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.Comparator;
 
 import com.haines.mclaren.total_transations.api.Event;
+import com.haines.mclaren.total_transations.util.KeyDictionary;
 
 public abstract class UserEvent implements Event<UserEvent> {
 
@@ -15,37 +16,37 @@ public abstract class UserEvent implements Event<UserEvent> {
 		}
 	};
 	
-	private final String user;
+	public abstract String getUser();
 	
-	public UserEvent(String user){
-		this.user = user;
-	}
-
-	public String getUser() {
-		return user;
+	/**
+	 * Returns the id of the user in the {@link KeyDictionary} the event was encoded with, or
+	 * {@link KeyDictionary#NOT_ENCODED} if it was not.
+	 */
+	public int getUserId() {
+		return KeyDictionary.NOT_ENCODED;
 	}
 	
 
 	@Override
 	public Serializable getAggregationValue() {
-		return user;
+		return getUser();
 	}
 	
 	@Override
 	public String toString(){
-		return "UserEvent{user: "+user+",numTranactions: "+getNumTransactions()+"}";
+		return "UserEvent{user: "+getUser()+",numTranactions: "+getNumTransactions()+"}";
 	}
 	
 	@Override
 	public int hashCode(){
-		return user.hashCode(); // just hash on user only
+		return getUser().hashCode(); // just hash on user only
 	}
 	
 	public boolean equals(Object o){
 		if (o instanceof UserEvent){
 			UserEvent other = (UserEvent)o;
 			
-			if (this.user.equals(other.user) && this.getNumTransactions() == other.getNumTransactions()){
+			if (this.getUser().equals(other.getUser()) && this.getNumTransactions() == other.getNumTransactions()){
 				return true;
 			}
 		}
@@ -58,19 +59,24 @@ public abstract class UserEvent implements Event<UserEvent> {
 		
 		// this should only be updated by the same thread that constructed it. This follows the single writer paradigm.
 		// precision is long as it could be many multiple events per user of large int numbers.
+		private final String user;
 		private long numTransactions;
 
 		public MutableUserEvent(String user, long numTransactions){
-			super(user);
-			
+			this.user = user;
 			this.numTransactions = numTransactions;
 		}
+			
+		@Override
+		public String getUser() {
+			return user;
+		}
 		
 		@Override
 		public void aggregate(UserEvent event){
 			assert this.getUser().equals(event.getUser()) : "User's dont match. u1: "+this.getUser()+", u2: "+event.getUser();
 			
-			this.numTransactions =+ event.getNumTransactions();
+			this.numTransactions += event.getNumTransactions();
 		}
 
 		@Override
@@ -91,6 +97,7 @@ public abstract class UserEvent implements Event<UserEvent> {
 	
 	public static class ImmutableUserEvent extends UserEvent {
 
+		private final String user;
 		private final long numTransactions;
 		
 		private ImmutableUserEvent(MutableUserEvent mutableEvent){
@@ -98,10 +105,14 @@ public abstract class UserEvent implements Event<UserEvent> {
 		}
 		
 		public ImmutableUserEvent(String user, long numTransactions){
-			super(user);
-			
+			this.user = user;
 			this.numTransactions = numTransactions;
 		}
+			
+		@Override
+		public String getUser() {
+			return user;
+		}
 		
 		@Override
 		public long getNumTransactions() {
@@ -118,4 +129,81 @@ public abstract class UserEvent implements Event<UserEvent> {
 			return new MutableUserEvent(this.getUser(), numTransactions);
 		}
 	}
+	
+	/**
+	 * An immutable event that also carries the id of its user in a {@link KeyDictionary}, so that it can be aggregated by
+	 * id once it has been handed to another thread.
+	 */
+	public static class EncodedUserEvent extends ImmutableUserEvent {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int userId;
+		
+		public EncodedUserEvent(String user, int userId, long numTransactions){
+			super(user, numTransactions);
+			
+			this.userId = userId;
+		}
+		
+		@Override
+		public int getUserId() {
+			return userId;
+		}
+	}
+	
+	/**
+	 * A reusable event that a deserializer decodes each event into rather than creating a new instance per event. As
+	 * the same instance is overwritten by the next event, it is only valid until the next call to the deserializer and
+	 * must never be handed to another thread. {@link #toMutableEvent()} and {@link #toImmutableEvent()} take copies so
+	 * that a consumer can keep hold of the event.
+	 */
+	public static class FlyweightUserEvent extends UserEvent {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private String user;
+		private int userId;
+		private long numTransactions;
+		
+		FlyweightUserEvent(){}
+
+		void set(String user, long numTransactions){
+			set(user, KeyDictionary.NOT_ENCODED, numTransactions);
+		}
+		
+		void set(String user, int userId, long numTransactions){
+			this.user = user;
+			this.userId = userId;
+			this.numTransactions = numTransactions;
+		}
+		
+		@Override
+		public String getUser() {
+			return user;
+		}
+		
+		@Override
+		public int getUserId() {
+			return userId;
+		}
+		
+		@Override
+		public long getNumTransactions() {
+			return numTransactions;
+		}
+		
+		@Override
+		public UserEvent toImmutableEvent() {
+			if (userId != KeyDictionary.NOT_ENCODED){
+				return new EncodedUserEvent(user, userId, numTransactions);
+			}
+			return new ImmutableUserEvent(user, numTransactions);
+		}
+		
+		@Override
+		public MutableEvent<UserEvent> toMutableEvent() {
+			return new MutableUserEvent(user, numTransactions);
+		}
+	}
 }
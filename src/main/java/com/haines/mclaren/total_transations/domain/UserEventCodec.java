@@ -0,0 +1,48 @@
+package com.haines.mclaren.total_transations.domain;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.util.MappedHashMap;
+
+/**
+ * Turns the per user counters of the counter maps back into {@link MutableUserEvent}s. The keys are the user names,
+ * which are written as their UTF-8 bytes when a {@link MappedHashMap} stores them off heap.
+ * @author haines
+ *
+ */
+public class UserEventCodec implements MappedHashMap.Codec<Serializable, MutableUserEvent>{
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	public static final UserEventCodec MUTABLE_CODEC = new UserEventCodec();
+	
+	private UserEventCodec(){}
+	
+	@Override
+	public void encodeKey(Serializable key, ByteBuffer buffer) {
+		UserEventSerializer.putString((String)key, buffer);
+	}
+	
+	@Override
+	public Serializable decodeKey(ByteBuffer buffer, int start, int length) {
+		byte[] user = new byte[length];
+		
+		for (int i = 0; i < length; i++){
+			user[i] = buffer.get(start + i);
+		}
+		return new String(user, UTF8);
+	}
+	
+	@Override
+	public long getCount(MutableUserEvent value) {
+		return value.getNumTransactions();
+	}
+	
+	@Override
+	public MutableUserEvent create(Serializable key, long count) {
+		return new MutableUserEvent((String)key, count);
+	}
+}
@@ -1,10 +1,12 @@
 package com.haines.mclaren.total_transations.domain;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import com.haines.mclaren.total_transations.api.Serializer;
 import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.io.VarIntUtil;
 
 public abstract class UserEventSerializer<E extends UserEvent> implements Serializer<E>{
 
@@ -14,20 +16,134 @@ public abstract class UserEventSerializer<E extends UserEvent> implements Serial
 	
 	public static final UserEventSerializer<MutableUserEvent> MUTABLE_SERIALIZER = new UserEventSerializer<MutableUserEvent>(){};
 	
+	/*
+	 * The following write a compact binary record rather than delimited text and are intended for internal files (such as
+	 * the bucket files of a disk backed map) that are only ever read back by UserEventDeserializer.BINARY_*. The
+	 * delimiters passed to them are ignored.
+	 */
+	public static final UserEventSerializer<UserEvent> BINARY_SERIALIZER = new BinaryUserEventSerializer<UserEvent>();
+	
+	public static final UserEventSerializer<MutableUserEvent> BINARY_MUTABLE_SERIALIZER = new BinaryUserEventSerializer<MutableUserEvent>();
+	
 	private UserEventSerializer(){}
 	
 	@Override
 	public void serialise(E event, ByteBuffer buffer, char fieldDelimiter, char eventDelimiter) {
 		
-		buffer.put(event.getUser().getBytes(UTF8));
-		buffer.put((fieldDelimiter+"").getBytes(UTF8)); //string pool will optimize here
+		/*
+		 * Everything is written straight into the buffer rather than going via intermediate strings and byte arrays. This
+		 * is on the path of every bucket save so creating no garbage here matters. Like ByteBuffer.put, if the buffer
+		 * runs out of space a BufferOverflowException is thrown, which the persisters use to move on to the next window.
+		 */
+		putString(event.getUser(), buffer);
+		putChar(fieldDelimiter, buffer);
 		
 		/* 
 		 * write out long as these aggregations could 2B (32bit) transactions may not be enough. Might seem excessive but
 		 * if these transactions represent web engagement activity (scroll events etc) then this can get to this sort of
 		 * level if the period of aggregation is large enough.
 		 */ 
-		buffer.put((event.getNumTransactions()+"").getBytes(UTF8));
-		buffer.put((eventDelimiter+"").getBytes(UTF8)); //string pool will optimize here
+		putDecimal(event.getNumTransactions(), buffer);
+		putChar(eventDelimiter, buffer);
+	}
+	
+	/**
+	 * Writes the UTF-8 encoding of the string. Usernames are almost always ascii so the chars are written directly as
+	 * bytes, only falling back to the encoder (and the allocation that comes with it) if a non ascii char is found.
+	 */
+	static void putString(String value, ByteBuffer buffer){
+		int start = buffer.position();
+		int length = value.length();
+		
+		for (int i = 0; i < length; i++){
+			char nextChar = value.charAt(i);
+			
+			if (nextChar >= 0x80){
+				buffer.position(start);
+				buffer.put(value.getBytes(UTF8));
+				
+				return;
+			}
+			buffer.put((byte)nextChar);
+		}
+	}
+
+	private static void putChar(char value, ByteBuffer buffer){
+		if (value < 0x80){
+			buffer.put((byte)value);
+		} else{
+			buffer.put(String.valueOf(value).getBytes(UTF8));
+		}
+	}
+	
+	/**
+	 * Writes the decimal digits of the value straight into the buffer, working back from the least significant digit.
+	 */
+	private static void putDecimal(long value, ByteBuffer buffer){
+		if (value < 0){
+			if (value == Long.MIN_VALUE){ // can't be negated
+				buffer.put(Long.toString(value).getBytes(UTF8));
+				
+				return;
+			}
+			buffer.put((byte)'-');
+			value = -value;
+		}
+		
+		int numDigits = numDigits(value);
+		
+		if (buffer.remaining() < numDigits){
+			throw new BufferOverflowException();
+		}
+		
+		int position = buffer.position();
+		for (int i = position + numDigits - 1; i >= position; i--){
+			buffer.put(i, (byte)('0' + (value % 10)));
+			value /= 10;
+		}
+		buffer.position(position + numDigits);
+	}
+	
+	private static int numDigits(long value){
+		int numDigits = 1;
+		
+		for (long bound = 10; numDigits < 19 && value >= bound; bound *= 10){
+			numDigits++;
+		}
+		return numDigits;
+	}
+	
+	/**
+	 * Writes each event as the varint length of the username, the UTF-8 bytes of the username and then the zig-zag varint
+	 * of the number of transactions. No delimiters are needed as every record describes its own length, and the count
+	 * is typically a few bytes rather than up to 20 digits of text.
+	 */
+	private static class BinaryUserEventSerializer<E extends UserEvent> extends UserEventSerializer<E>{
+		
+		@Override
+		public void serialise(E event, ByteBuffer buffer, char fieldDelimiter, char eventDelimiter) {
+			String user = event.getUser();
+			
+			if (isAscii(user)){
+				VarIntUtil.putVarLong(user.length(), buffer);
+				putString(user, buffer);
+			} else{
+				byte[] userBytes = user.getBytes(UTF8);
+				
+				VarIntUtil.putVarLong(userBytes.length, buffer);
+				buffer.put(userBytes);
+			}
+
+			VarIntUtil.putZigZagLong(event.getNumTransactions(), buffer);
+		}
+		
+		private static boolean isAscii(String value){
+			for (int i = 0; i < value.length(); i++){
+				if (value.charAt(i) >= 0x80){
+					return false;
+				}
+			}
+			return true;
+		}
 	}
 }
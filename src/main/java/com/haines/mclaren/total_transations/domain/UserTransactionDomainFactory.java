@@ -7,10 +7,13 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -20,12 +23,22 @@ import com.haines.mclaren.total_transations.api.Aggregator.DirectStreamAggregato
 import com.haines.mclaren.total_transations.api.Consumer;
 import com.haines.mclaren.total_transations.api.Consumer.ChainedConsumer;
 import com.haines.mclaren.total_transations.api.Consumer.SeperateThreadConsumer;
+import com.haines.mclaren.total_transations.api.Consumer.SharedConsumer;
 import com.haines.mclaren.total_transations.util.CollectionUtil;
+import com.haines.mclaren.total_transations.util.DiskBackedMap;
+import com.haines.mclaren.total_transations.util.EvictionPolicy;
+import com.haines.mclaren.total_transations.util.InMemoryCounterMap;
+import com.haines.mclaren.total_transations.util.KeyDictionary;
+import com.haines.mclaren.total_transations.util.LogStructuredMap;
+import com.haines.mclaren.total_transations.util.MappedHashMap;
+import com.haines.mclaren.total_transations.util.MemoryBudget;
 import com.haines.mclaren.total_transations.util.SimpleMap;
 import com.haines.mclaren.total_transations.api.Dispatcher;
 import com.haines.mclaren.total_transations.api.DomainFactory;
 import com.haines.mclaren.total_transations.api.TopNEventConsumer;
+import com.haines.mclaren.total_transations.domain.UserEvent.FlyweightUserEvent;
 import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.io.BufferPool;
 import com.haines.mclaren.total_transations.io.Feeder;
 import com.haines.mclaren.total_transations.io.IOFactory;
 import com.haines.mclaren.total_transations.io.Persister;
@@ -34,17 +47,84 @@ public class UserTransactionDomainFactory implements DomainFactory {
 	
 	private static final Logger LOG = Logger.getLogger(UserTransactionDomainFactory.class.getName());
 	
+	/**
+	 * The format of the files used internally to spill aggregations to disk. These are never seen outside of a run so
+	 * need not be human readable.
+	 */
+	public static enum SpillFormat {
+		/**
+		 * The same delimited text as the aggregation output
+		 */
+		CSV,
+		/**
+		 * Length prefixed usernames and varint counts. Smaller than CSV and read back without any text parsing.
+		 */
+		BINARY
+	}
+	
+	/**
+	 * Where the aggregations of all the workers are combined. This has to be able to hold every user so is backed by disk.
+	 */
+	public static enum AggregationStore {
+		/**
+		 * A {@link DiskBackedMap}, configured by the factory's {@link DiskBackedMap.Options}
+		 */
+		DISK_BACKED_MAP,
+		/**
+		 * A {@link DiskBackedMap}, configured by the factory's {@link DiskBackedMap.Options}, that packs its buckets into a
+		 * few large segment files rather than a file per bucket
+		 */
+		SEGMENTED_DISK_BACKED_MAP,
+		/**
+		 * A {@link LogStructuredMap} that appends the counts of each window as sorted runs rather than rewriting buckets
+		 */
+		LOG_STRUCTURED_MAP,
+		/**
+		 * A {@link MappedHashMap} that updates the counts in place in memory mapped files
+		 */
+		MAPPED_HASH_TABLE
+	}
+	
+	private static final int MAX_RUNS_BEFORE_COMPACTION = 4;
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int MAX_POOLED_BUFFERS_PER_SIZE = 4;
+	
+	private static final BinaryOperator<MutableUserEvent> SUM_TRANSACTIONS = (older, newer) -> {
+		older.aggregate(newer);
+		
+		return older;
+	};
+	
+	private static final UnaryOperator<MutableUserEvent> COPY_EVENT = e -> new MutableUserEvent(e.getUser(), e.getNumTransactions());
+	
 	public static IOFactory<MutableUserEvent> createIOFactory(int bufferSize){
+		return createIOFactory(bufferSize, SpillFormat.CSV);
+	}
+	
+	/**
+	 * Creates a factory for the feeders and persisters that load and save the buckets of a map. They all borrow their
+	 * buffers from a pool of direct buffers shared by the factory rather than each allocating a <code>bufferSize</code>
+	 * array of their own, and a feeder only borrows a buffer as big as the file it reads.
+	 */
+	public static IOFactory<MutableUserEvent> createIOFactory(int bufferSize, SpillFormat format){
+		BufferPool bufferPool = new BufferPool(MAX_POOLED_BUFFERS_PER_SIZE, true);
+		
 		return new IOFactory<MutableUserEvent>(){
 
 			@Override
 			public Persister<MutableUserEvent> createPersister(URI uri) throws IOException {
-				return Persister.FACTORY.createCSVPersister(Paths.get(uri), UserEventSerializer.MUTABLE_SERIALIZER, false, bufferSize);
+				if (format == SpillFormat.BINARY){
+					return Persister.FACTORY.createCSVPersister(Paths.get(uri), UserEventSerializer.BINARY_MUTABLE_SERIALIZER, bufferSize, bufferPool);
+				}
+				return Persister.FACTORY.createCSVPersister(Paths.get(uri), UserEventSerializer.MUTABLE_SERIALIZER, bufferSize, bufferPool);
 			}
 
 			@Override
 			public Feeder<MutableUserEvent> createFeeder(URI uri) throws IOException {
-				return Feeder.FACTORY.createFileFeeder(Paths.get(uri), UserEventDeserializer.MUTABLE_DESERIALIZER, false, bufferSize);
+				if (format == SpillFormat.BINARY){
+					return Feeder.FACTORY.createBinaryFileFeeder(Paths.get(uri), UserEventDeserializer.BINARY_MUTABLE_DESERIALIZER, bufferSize, bufferPool);
+				}
+				return Feeder.FACTORY.createFileFeeder(Paths.get(uri), UserEventDeserializer.SWAR_MUTABLE_DESERIALIZER, bufferSize, bufferPool);
 			}
 			
 		};
@@ -54,17 +134,55 @@ public class UserTransactionDomainFactory implements DomainFactory {
 	private final int topN;
 	private final Path diskOutput;
 	private final int numInMemoryItemsPerExecutor;
+	private final DiskBackedMap.Options diskBackedMapOptions;
+	private final AggregationStore aggregationStore;
+	private final long windowBudgetBytes;
+	private final long bucketBudgetBytes;
+	private final KeyDictionary<Serializable> userDictionary;
+	private final boolean partitionUsers;
+	private final EvictionPolicy.Type windowEvictionPolicy;
 	
 	public UserTransactionDomainFactory(int numAggregatorWorkerThreads, int topN, Path diskOutput, int numInMemoryItemsPerExecutor){
+		this(numAggregatorWorkerThreads, topN, diskOutput, numInMemoryItemsPerExecutor, Options.DEFAULT);
+	}
+	
+	public UserTransactionDomainFactory(int numAggregatorWorkerThreads, int topN, Path diskOutput, int numInMemoryItemsPerExecutor, Options options){
 		this.numAggregatorWorkerThreads = numAggregatorWorkerThreads;
 		this.numInMemoryItemsPerExecutor = numInMemoryItemsPerExecutor;
 		this.topN = topN;
 		this.diskOutput = diskOutput;
+		this.diskBackedMapOptions = options.diskBackedMapOptions;
+		this.aggregationStore = options.aggregationStore;
+		this.windowBudgetBytes = options.windowBudgetBytes;
+		this.bucketBudgetBytes = options.bucketBudgetBytes;
+		this.partitionUsers = options.partitionUsers;
+		
+		boolean partitioned = partitionUsers && numAggregatorWorkerThreads > 0;
+		
+		if (options.encodeUsers && partitioned){
+			LOG.log(Level.WARNING, "users are not encoded when partitioned as every worker would hold a counter for every user in the input. Using counter maps keyed by user instead");
+		}
+		this.userDictionary = options.encodeUsers && !partitioned?new KeyDictionary<Serializable>():null;
+		this.windowEvictionPolicy = options.windowEvictionPolicy;
+	}
+	
+	/**
+	 * Creates a deserializer for the events fed into the consumers created by this factory. Each ingestion thread needs its
+	 * own.
+	 */
+	public UserEventDeserializer<FlyweightUserEvent> createDeserializer(){
+		if (userDictionary != null){
+			return UserEventDeserializer.createEncodingFlyweightDeserializer(userDictionary);
+		}
+		return UserEventDeserializer.createFlyweightDeserializer();
 	}
 	
 	@Override
 	public Consumer<UserEvent> createInitalChainConsumer() throws IOException, ClassNotFoundException {
 		try {
+			if (partitionUsers && numAggregatorWorkerThreads > 0){
+				return createPartitionedChainConsumer(createTopNConsumer());
+			}
 			return createInitalChainConsumer(getDefaultFinalConsumers());
 		} catch (InterruptedException e) {
 			throw new RuntimeException("unable to create consumer chain", e);
@@ -78,6 +196,13 @@ public class UserTransactionDomainFactory implements DomainFactory {
 	public Persister<UserEvent> createAggregationPersister() throws IOException {
 		return Persister.FACTORY.createCSVPersister(getAggregationFile(diskOutput), UserEventSerializer.SERIALIZER, true);
 	}
+	
+	/**
+	 * Creates the persister of the aggregates of a single partition, which each write to their own file.
+	 */
+	public Persister<UserEvent> createAggregationPersister(int partition) throws IOException {
+		return Persister.FACTORY.createCSVPersister(getAggregationFile(diskOutput, partition), UserEventSerializer.SERIALIZER, true);
+	}
 
 	public TopNEventConsumer<UserEvent> createTopNConsumer() {
 		return new TopNEventConsumer<UserEvent>(topN, UserEvent.RANKED_BY_TRANSACTIONS);
@@ -85,8 +210,8 @@ public class UserTransactionDomainFactory implements DomainFactory {
 
 	public Consumer<UserEvent> createInitalChainConsumer(Consumer<UserEvent> finalPathConsumer) throws IOException, ClassNotFoundException, InterruptedException {
 		
-		int totalWorkerThreads = numAggregatorWorkerThreads + 1;
-		SimpleMap<Serializable, MutableUserEvent> diskBackedStore = CollectionUtil.getFileBackedMap(createTmpMapDir(diskOutput), numInMemoryItemsPerExecutor, createIOFactory(numInMemoryItemsPerExecutor * 1024)); // 1024 bytes per item
+		int totalWorkerThreads = numAggregatorWorkerThreads + 1; // the extra thread is the final consumer
+		SimpleMap<Serializable, MutableUserEvent> diskBackedStore = createAggregationStore();
 		
 		DirectStreamAggregatorProducer<UserEvent> finalAggregator = new DirectStreamAggregatorProducer<UserEvent>(diskBackedStore, finalPathConsumer); 
 		
@@ -94,23 +219,29 @@ public class UserTransactionDomainFactory implements DomainFactory {
 		
 		SeperateThreadConsumer<Stream<UserEvent>> finalAggregatorThread = new SeperateThreadConsumer<Stream<UserEvent>>(finalAggregator, threadsStarted, numInMemoryItemsPerExecutor);
 		
+		if (numAggregatorWorkerThreads == 0){
+			/*
+			 * aggregate on the calling thread rather than handing events off to worker threads. As nothing crosses a thread
+			 * boundary until a window is pushed downstream, this allows events to be reused flyweights (see
+			 * UserEventDeserializer.createFlyweightDeserializer()) so that aggregating repeated users allocates nothing.
+			 */
+			new Thread(finalAggregatorThread, "aggregation_worker_final").start();
+			
+			threadsStarted.await();
+			return createWindowedAggregator(finalAggregatorThread);
+		}
+		
 		Collection<SeperateThreadConsumer<UserEvent>> concurrentConsumers = new ArrayList<SeperateThreadConsumer<UserEvent>>();
 		
+		// every worker closes the final aggregator when it finishes so only let the last one actually close it
+		Consumer<Stream<UserEvent>> sharedFinalAggregator = new SharedConsumer<Stream<UserEvent>>(finalAggregatorThread, numAggregatorWorkerThreads);
+		
 		for (int i = 0; i < numAggregatorWorkerThreads; i++){
 			LOG.log(Level.INFO, "create new consumer thread: "+i);
-			concurrentConsumers.add(new SeperateThreadConsumer<UserEvent>(new Aggregator.AggregatorWindowedProducer<UserEvent>(numInMemoryItemsPerExecutor, finalAggregatorThread), threadsStarted, numInMemoryItemsPerExecutor));
+			concurrentConsumers.add(new SeperateThreadConsumer<UserEvent>(createWindowedAggregator(sharedFinalAggregator), threadsStarted, numInMemoryItemsPerExecutor));
 		}
 		
-		Executor executor = Executors.newFixedThreadPool(totalWorkerThreads, new ThreadFactory(){
-
-			private int nextWorkerNumber = 0;
-			
-			@Override
-			public Thread newThread(Runnable r) {
-				return new Thread(r, "aggregation_worker_"+(nextWorkerNumber++));
-			}
-			
-		}); // the extra thread is the final consumer
+		Executor executor = createWorkerExecutor(totalWorkerThreads); // the extra thread is the final consumer
 		
 		Consumer<UserEvent> dispatcher = Dispatcher.FACTORY.createRoundRobinDispatch(concurrentConsumers);
 		
@@ -122,12 +253,209 @@ public class UserTransactionDomainFactory implements DomainFactory {
 		threadsStarted.await();
 		return dispatcher;
 	}
+	
+	/**
+	 * Creates a chain where each user is always dispatched to the same worker (see
+	 * {@link Dispatcher.Factory#createPartitionedDispatch(java.util.List)}), so the aggregate a worker holds for a user is
+	 * already final. Rather than all feeding a single final aggregator, each worker has its own aggregation store, persists
+	 * its users to its own file and computes the top n of its own users, all on its own thread. The partial top ns are
+	 * merged into <code>topNConsumer</code> as each worker closes.
+	 */
+	public Consumer<UserEvent> createPartitionedChainConsumer(TopNEventConsumer<UserEvent> topNConsumer) throws IOException, ClassNotFoundException, InterruptedException {
+		
+		if (numAggregatorWorkerThreads == 0){
+			throw new IllegalStateException("Partitioning users requires at least 1 aggregator worker thread");
+		}
+		
+		CountDownLatch threadsStarted = new CountDownLatch(numAggregatorWorkerThreads);
+		List<Consumer<UserEvent>> partialTopNConsumers = topNConsumer.createPartials(numAggregatorWorkerThreads);
+		List<SeperateThreadConsumer<UserEvent>> partitionConsumers = new ArrayList<SeperateThreadConsumer<UserEvent>>();
+		
+		for (int i = 0; i < numAggregatorWorkerThreads; i++){
+			LOG.log(Level.INFO, "create new partition consumer thread: "+i);
+			
+			Consumer<UserEvent> partitionOutput = ChainedConsumer.chain(partialTopNConsumers.get(i), createAggregationPersister(i));
+			DirectStreamAggregatorProducer<UserEvent> partitionAggregator = new DirectStreamAggregatorProducer<UserEvent>(createAggregationStore(createTmpMapDir(diskOutput, i)), partitionOutput);
+			
+			partitionConsumers.add(new SeperateThreadConsumer<UserEvent>(createWindowedAggregator(partitionAggregator), threadsStarted, numInMemoryItemsPerExecutor));
+		}
+		
+		Executor executor = createWorkerExecutor(numAggregatorWorkerThreads);
+		
+		Consumer<UserEvent> dispatcher = Dispatcher.FACTORY.createPartitionedDispatch(partitionConsumers);
+		
+		partitionConsumers.stream().forEach(e -> executor.execute(e));
+		
+		threadsStarted.await();
+		return dispatcher;
+	}
+	
+	private static Executor createWorkerExecutor(int numThreads){
+		return Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+			
+			private int nextWorkerNumber = 0;
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "aggregation_worker_"+(nextWorkerNumber++));
+			}
+			
+		});
+	}
 
+	/**
+	 * As a user's aggregate is just the sum of their transactions, the window of each worker is a map of counters rather
+	 * than of events (see {@link InMemoryCounterMap}), which holds several times as many users in the same memory.
+	 */
+	private Aggregator.AggregatorWindowedProducer<UserEvent> createWindowedAggregator(Consumer<Stream<UserEvent>> finalAggregatorThread){
+		MemoryBudget windowBudget = windowBudgetBytes > 0?new MemoryBudget("window", windowBudgetBytes, InMemoryCounterMap.ENTRY_OVERHEAD_BYTES):null;
+		int windowSize = windowBudget != null?-1:numInMemoryItemsPerExecutor;
+		int expectedSize = windowBudget != null?(int)Math.min(Integer.MAX_VALUE, windowBudget.getCapacityInEntries()):numInMemoryItemsPerExecutor;
+		EvictionPolicy<Serializable> evictionPolicy = windowEvictionPolicy != null?windowEvictionPolicy.create(expectedSize):null;
+			
+		if (userDictionary != null){
+			return Aggregator.AggregatorWindowedProducer.createDenseCountingProducer(windowSize, windowBudget, CollectionUtil.getDenseCounterMap(userDictionary, expectedSize, UserEventCodec.MUTABLE_CODEC), evictionPolicy, UserEvent::getUserId, UserEvent::getNumTransactions, finalAggregatorThread);
+		}
+		return Aggregator.AggregatorWindowedProducer.createCountingProducer(windowSize, windowBudget, CollectionUtil.getMemoryBackedCounterMap(expectedSize, UserEventCodec.MUTABLE_CODEC), evictionPolicy, UserEvent::getNumTransactions, finalAggregatorThread);
+	}
+	
+	private SimpleMap<Serializable, MutableUserEvent> createAggregationStore() throws IOException, ClassNotFoundException {
+		return createAggregationStore(createTmpMapDir(diskOutput));
+	}
+	
+	private SimpleMap<Serializable, MutableUserEvent> createAggregationStore(Path tmpMapDir) throws IOException, ClassNotFoundException {
+		DiskBackedMap.Options diskBackedMapOptions = bucketBudgetBytes > 0?this.diskBackedMapOptions.withBucketBudget(bucketBudgetBytes):this.diskBackedMapOptions;
+		
+		switch(aggregationStore){
+			case LOG_STRUCTURED_MAP:
+				return CollectionUtil.getLogStructuredMap(tmpMapDir, numInMemoryItemsPerExecutor, MAX_RUNS_BEFORE_COMPACTION, createIOFactory(getSpillBufferSize(), SpillFormat.BINARY), SUM_TRANSACTIONS, COPY_EVENT);
+			case SEGMENTED_DISK_BACKED_MAP:
+				return CollectionUtil.getSegmentBackedMap(tmpMapDir, numInMemoryItemsPerExecutor, SEGMENT_SIZE, UserEventSerializer.BINARY_MUTABLE_SERIALIZER, UserEventDeserializer.BINARY_MUTABLE_DESERIALIZER, diskBackedMapOptions);
+			case MAPPED_HASH_TABLE:
+				return CollectionUtil.getMappedHashMap(tmpMapDir, numInMemoryItemsPerExecutor, UserEventCodec.MUTABLE_CODEC);
+			default:
+				return CollectionUtil.getFileBackedMap(tmpMapDir, numInMemoryItemsPerExecutor, createIOFactory(getSpillBufferSize(), SpillFormat.BINARY), diskBackedMapOptions);
+		}
+	}
+	
+	/**
+	 * A bucket is never bigger on disk than its estimated size in memory, so with a bucket budget the buffer only needs to
+	 * be as big as that. Otherwise guess at 1024 bytes per user.
+	 */
+	private int getSpillBufferSize(){
+		if (bucketBudgetBytes > 0){
+			return (int)Math.min(bucketBudgetBytes, Integer.MAX_VALUE);
+		}
+		return numInMemoryItemsPerExecutor * 1024;
+	}
+	
 	private Path createTmpMapDir(Path diskOutput) {
 		return Paths.get(diskOutput.toString(), "tmpMap");
 	}
 	
+	private Path createTmpMapDir(Path diskOutput, int partition) {
+		return Paths.get(diskOutput.toString(), "tmpMap_"+partition);
+	}
+	
 	private Path getAggregationFile(Path rootOutput) {
 		return Paths.get(diskOutput.toString(), "out");
 	}
+	
+	private Path getAggregationFile(Path rootOutput, int partition) {
+		return Paths.get(rootOutput.toString(), "out_"+partition);
+	}
+	
+	/**
+	 * How the aggregation of a factory is set up. Each <code>with</code> method returns a copy of these options with
+	 * that setting changed.
+	 */
+	public static final class Options {
+		
+		public static final Options DEFAULT = new Options(DiskBackedMap.Options.DEFAULT, AggregationStore.DISK_BACKED_MAP, 0, 0, false, false, null);
+		
+		private final DiskBackedMap.Options diskBackedMapOptions;
+		private final AggregationStore aggregationStore;
+		private final long windowBudgetBytes;
+		private final long bucketBudgetBytes;
+		private final boolean encodeUsers;
+		private final boolean partitionUsers;
+		private final EvictionPolicy.Type windowEvictionPolicy;
+		
+		private Options(DiskBackedMap.Options diskBackedMapOptions, AggregationStore aggregationStore, long windowBudgetBytes, long bucketBudgetBytes, boolean encodeUsers, boolean partitionUsers, EvictionPolicy.Type windowEvictionPolicy){
+			this.diskBackedMapOptions = diskBackedMapOptions;
+			this.aggregationStore = aggregationStore;
+			this.windowBudgetBytes = windowBudgetBytes;
+			this.bucketBudgetBytes = bucketBudgetBytes;
+			this.encodeUsers = encodeUsers;
+			this.partitionUsers = partitionUsers;
+			this.windowEvictionPolicy = windowEvictionPolicy;
+		}
+		
+		/**
+		 * Configures the {@link DiskBackedMap}s used as the aggregation store.
+		 */
+		public Options withDiskBackedMapOptions(DiskBackedMap.Options diskBackedMapOptions){
+			return new Options(diskBackedMapOptions, aggregationStore, windowBudgetBytes, bucketBudgetBytes, encodeUsers, partitionUsers, windowEvictionPolicy);
+		}
+		
+		/**
+		 * Chooses where the aggregations of the workers are combined. Defaults to {@link AggregationStore#DISK_BACKED_MAP}.
+		 */
+		public Options withAggregationStore(AggregationStore aggregationStore){
+			return new Options(diskBackedMapOptions, aggregationStore, windowBudgetBytes, bucketBudgetBytes, encodeUsers, partitionUsers, windowEvictionPolicy);
+		}
+		
+		/**
+		 * Pushes each aggregator worker's window to the final aggregator once the estimated memory retained by its users
+		 * exceeds <code>windowBudgetBytes</code> (see {@link MemoryBudget}). 0 pushes it after
+		 * <code>numInMemoryItemsPerExecutor</code> users. Each worker aggregates into a spare window of the same size
+		 * whilst its full one is pushed, so allow for twice <code>windowBudgetBytes</code> per worker.
+		 */
+		public Options withWindowBudget(long windowBudgetBytes){
+			return new Options(diskBackedMapOptions, aggregationStore, windowBudgetBytes, bucketBudgetBytes, encodeUsers, partitionUsers, windowEvictionPolicy);
+		}
+		
+		/**
+		 * Splits each bucket of the final aggregator's {@link DiskBackedMap} once the estimated memory retained by its users
+		 * exceeds <code>bucketBudgetBytes</code>. 0 splits it after <code>numInMemoryItemsPerExecutor</code> users.
+		 */
+		public Options withBucketBudget(long bucketBudgetBytes){
+			return new Options(diskBackedMapOptions, aggregationStore, windowBudgetBytes, bucketBudgetBytes, encodeUsers, partitionUsers, windowEvictionPolicy);
+		}
+		
+		/**
+		 * When set, the deserializers from {@link UserTransactionDomainFactory#createDeserializer()} encode each user to a
+		 * dense id in a {@link KeyDictionary} shared with the aggregator workers, whose windows then add up transactions in
+		 * an array indexed by id (see {@link com.haines.mclaren.total_transations.util.DenseCounterMap}). The names are read
+		 * back out of the dictionary when a window is pushed to the final aggregator. This suits inputs with a bounded
+		 * number of heavily repeated users, as the dictionary holds on to every user seen.
+		 *
+		 * The ids are shared by all the workers, so the counter array of every worker's window grows to the number of
+		 * users in the whole input. This is ignored when combined with {@link #withPartitionedUsers(boolean)}, as each
+		 * worker would then allocate a slot for every user despite only ever counting its own share of them.
+		 */
+		public Options withEncodedUsers(boolean encodeUsers){
+			return new Options(diskBackedMapOptions, aggregationStore, windowBudgetBytes, bucketBudgetBytes, encodeUsers, partitionUsers, windowEvictionPolicy);
+		}
+		
+		/**
+		 * When set, {@link UserTransactionDomainFactory#createInitalChainConsumer()} sends each user to the same worker
+		 * every time so that each worker owns the final aggregates of its users (see
+		 * {@link UserTransactionDomainFactory#createPartitionedChainConsumer(TopNEventConsumer)}) rather than every worker
+		 * feeding a single final aggregator. Users are not encoded when partitioned (see
+		 * {@link #withEncodedUsers(boolean)}).
+		 */
+		public Options withPartitionedUsers(boolean partitionUsers){
+			return new Options(diskBackedMapOptions, aggregationStore, windowBudgetBytes, bucketBudgetBytes, encodeUsers, partitionUsers, windowEvictionPolicy);
+		}
+		
+		/**
+		 * A full worker window only pushes the users this policy chooses as the coldest to the final aggregator, keeping
+		 * the heaviest users in the window until the end rather than pushing them with every window. null, the default,
+		 * pushes the whole window.
+		 */
+		public Options withWindowEvictionPolicy(EvictionPolicy.Type windowEvictionPolicy){
+			return new Options(diskBackedMapOptions, aggregationStore, windowBudgetBytes, bucketBudgetBytes, encodeUsers, partitionUsers, windowEvictionPolicy);
+		}
+	}
 }
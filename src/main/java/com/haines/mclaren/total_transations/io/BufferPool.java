@@ -0,0 +1,102 @@
+package com.haines.mclaren.total_transations.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of byte buffers that feeders and persisters borrow for the life of a file and give back when closed, so that
+ * reading and writing many small files (such as the buckets of a {@link com.haines.mclaren.total_transations.util.DiskBackedMap})
+ * does not allocate and discard a large buffer for every one of them.
+ *
+ * Buffers are handed out rounded up to the next power of 2 so that requests of similar sizes share the same buffers. At
+ * most <code>maxBuffersPerSize</code> of each size are kept; any more returned than that are left to be garbage collected.
+ * Direct buffers avoid the copy through a temporary direct buffer that the channels make for heap buffers.
+ *
+ * Buffers can be borrowed and returned from different threads at the same time.
+ * @author haines
+ *
+ */
+public class BufferPool {
+	
+	/**
+	 * Allocates a new heap buffer of exactly the requested size for every request and keeps nothing.
+	 */
+	public static final BufferPool UNPOOLED = new BufferPool(0, false){
+		
+		@Override
+		public ByteBuffer acquire(int minCapacity){
+			return ByteBuffer.allocate(minCapacity);
+		}
+		
+		@Override
+		public void release(ByteBuffer buffer){
+			// no op
+		}
+	};
+	
+	private static final int MAX_POOLED_CAPACITY = 1 << 30;
+	
+	private final int maxBuffersPerSize;
+	private final boolean direct;
+	private final Map<Integer, Deque<ByteBuffer>> buffersBySize;
+	private long hits;
+	private long misses;
+	
+	public BufferPool(int maxBuffersPerSize, boolean direct){
+		this.maxBuffersPerSize = maxBuffersPerSize;
+		this.direct = direct;
+		this.buffersBySize = new HashMap<Integer, Deque<ByteBuffer>>();
+	}
+	
+	/**
+	 * Returns a cleared buffer of at least <code>minCapacity</code> bytes, which should be given back using
+	 * {@link #release(ByteBuffer)} once it is no longer used.
+	 */
+	public synchronized ByteBuffer acquire(int minCapacity){
+		int capacity = minCapacity > MAX_POOLED_CAPACITY?minCapacity:Integer.highestOneBit(Math.max(minCapacity - 1, 1)) << 1;
+		Deque<ByteBuffer> buffers = buffersBySize.get(capacity);
+		
+		if (buffers != null && !buffers.isEmpty()){
+			hits++;
+			
+			ByteBuffer buffer = buffers.pop();
+			buffer.clear();
+			
+			return buffer;
+		}
+		misses++;
+		
+		return direct?ByteBuffer.allocateDirect(capacity):ByteBuffer.allocate(capacity);
+	}
+	
+	/**
+	 * Gives a buffer back to the pool. It must not be used by the caller from then on.
+	 */
+	public synchronized void release(ByteBuffer buffer){
+		if (buffer.isDirect() != direct || Integer.bitCount(buffer.capacity()) != 1){
+			return; // not one of ours
+		}
+		
+		Deque<ByteBuffer> buffers = buffersBySize.computeIfAbsent(buffer.capacity(), capacity -> new ArrayDeque<ByteBuffer>());
+		
+		if (buffers.size() < maxBuffersPerSize){
+			buffers.push(buffer);
+		}
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return "hits: "+hits+", misses: "+misses+", pooled sizes: "+buffersBySize.keySet();
+	}
+}
@@ -2,16 +2,26 @@ package com.haines.mclaren.total_transations.io;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.haines.mclaren.total_transations.api.Deserializer;
 
 public interface Feeder<E> extends Iterator<E>, Closeable{
-
+	
 	public static final char CSV_FIELD_DELIMITER = ',';
 	public static final char CSV_EVENT_DELIMITER = '\n';
 	
@@ -21,29 +31,38 @@ public interface Feeder<E> extends Iterator<E>, Closeable{
 		
 		private static final int DEFAULT_BUFFER_SIZE = 204800;
 		
+		/*
+		 * The size of the region mapped at any one time when memory mapping a file. Keeping this bounded means we
+		 * can read files larger than Integer.MAX_VALUE bytes (the limit of a single mapped ByteBuffer) and that the
+		 * address space used by the feeder is fixed regardless of the input size.
+		 */
+		private static final int DEFAULT_MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+		
 		private Factory(){}
 		
+		/**
+		 * Creates a feeder that streams the supplied file through a fixed size window of <code>bufferSize</code> bytes. When
+		 * <code>memoryMap</code> is true, the window is a mapped region of the file that is re-mapped as it is consumed,
+		 * otherwise the window is a heap buffer that is refilled from the channel. In both cases the window is trimmed to
+		 * the last complete event in it so that an event straddling the edge of the window is carried over to the next one.
+		 * This means files of any size can be consumed with a fixed memory cost, provided no single event is larger than
+		 * the window.
+		 */
 		public <E> Feeder<E> createFileFeeder(Path localFile, char fieldDelimier, char eventDelimiter, Deserializer<E> deserializer, boolean memoryMap, int bufferSize) throws IOException{
 			
 			FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ);
 			
-			ByteBuffer buffer;
-			if (memoryMap){
-				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // ignore the buffer size as this is mapped to whatever size the file is. 
-			} else{
-				buffer = ByteBuffer.allocate(bufferSize);
-				if (channel.read(buffer) >= bufferSize){
-					throw new RuntimeException("buffer size "+bufferSize+" was not big enough to load "+localFile);
-				}
-				buffer.flip();
+			try{
+				return createWindowedFeeder(channel, channel, 0, channel.size(), fieldDelimier, eventDelimiter, deserializer, memoryMap, bufferSize, BufferPool.UNPOOLED);
+			} catch (IOException | RuntimeException e){
+				channel.close();
+				throw e;
 			}
-			
-			return new ByteBufferFeeder<E>(channel, buffer, fieldDelimier, eventDelimiter, deserializer);
 		}
 		
 		public <E> Feeder<E> createFileFeeder(Path localFile, Deserializer<E> deserializer, boolean memoryMap) throws IOException{
 			
-			return createFileFeeder(localFile, CSV_FIELD_DELIMITER, CSV_EVENT_DELIMITER, deserializer, memoryMap, DEFAULT_BUFFER_SIZE);
+			return createFileFeeder(localFile, CSV_FIELD_DELIMITER, CSV_EVENT_DELIMITER, deserializer, memoryMap, memoryMap?DEFAULT_MAPPED_WINDOW_SIZE:DEFAULT_BUFFER_SIZE);
 		}
 		
 		public <E> Feeder<E> createFileFeeder(Path localFile, Deserializer<E> deserializer, boolean memoryMap, int bufferSize) throws IOException{
@@ -51,41 +70,482 @@ public interface Feeder<E> extends Iterator<E>, Closeable{
 			return createFileFeeder(localFile, CSV_FIELD_DELIMITER, CSV_EVENT_DELIMITER, deserializer, memoryMap, bufferSize);
 		}
 		
+		/**
+		 * Creates a feeder that reads the file through a buffer borrowed from <code>bufferPool</code>, which is given back
+		 * when the feeder is closed. The buffer is no bigger than the file, so small files only borrow small buffers.
+		 */
+		public <E> Feeder<E> createFileFeeder(Path localFile, Deserializer<E> deserializer, int bufferSize, BufferPool bufferPool) throws IOException{
+			
+			FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ);
+			
+			try{
+				return createWindowedFeeder(channel, channel, 0, channel.size(), CSV_FIELD_DELIMITER, CSV_EVENT_DELIMITER, deserializer, false, bufferSize, bufferPool);
+			} catch (IOException | RuntimeException e){
+				channel.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Creates a feeder for files of self describing binary records, such as those written by a persister with
+		 * {@link com.haines.mclaren.total_transations.domain.UserEventSerializer#BINARY_SERIALIZER}.
+		 * As there are no delimiters to find the last complete event in a window, the deserializer is expected to throw a
+		 * {@link BufferUnderflowException} when it reaches the end of the window part way through an event. The partial
+		 * event is then carried over to the next window and deserialized again.
+		 */
+		public <E> Feeder<E> createBinaryFileFeeder(Path localFile, Deserializer<E> deserializer, int bufferSize) throws IOException{
+			return createBinaryFileFeeder(localFile, deserializer, bufferSize, BufferPool.UNPOOLED);
+		}
+		
+		/**
+		 * As {@link #createBinaryFileFeeder(Path, Deserializer, int)} but reading through a buffer borrowed from
+		 * <code>bufferPool</code>, which is given back when the feeder is closed.
+		 */
+		public <E> Feeder<E> createBinaryFileFeeder(Path localFile, Deserializer<E> deserializer, int bufferSize, BufferPool bufferPool) throws IOException{
+			
+			if (bufferSize <= 0){
+				throw new IllegalArgumentException("buffer size must be positive but was "+bufferSize);
+			}
+			
+			FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ);
+			
+			try{
+				int windowSize = (int)Math.min(bufferSize, Math.max(channel.size(), 1));
+				
+				return new SelfDelimitingReadWindowFeeder<E>(channel, channel, 0, channel.size(), bufferPool.acquire(windowSize), bufferPool, deserializer);
+			} catch (IOException | RuntimeException e){
+				channel.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Splits the supplied file into <code>numRanges</code> byte ranges that are aligned to the start of events and
+		 * returns a feeder for each range. Each feeder has its own channel and deserializer (taken from the supplier) so
+		 * that they can each be consumed on a separate thread.
+		 */
+		public <E> List<Feeder<E>> createFileRangeFeeders(Path localFile, char fieldDelimiter, char eventDelimiter, Supplier<? extends Deserializer<E>> deserializers, boolean memoryMap, int bufferSize, int numRanges) throws IOException{
+			
+			long[] boundaries;
+			try(FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ)){
+				boundaries = splitIntoEventRanges(channel, numRanges, eventDelimiter);
+			}
+			
+			List<Feeder<E>> feeders = new ArrayList<Feeder<E>>(numRanges);
+			try{
+				for (int i = 0; i < numRanges; i++){
+					if (boundaries[i] < boundaries[i + 1]){ // a range can be empty if it falls inside a single event
+						FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ);
+						
+						feeders.add(createWindowedFeeder(channel, channel, boundaries[i], boundaries[i + 1], fieldDelimiter, eventDelimiter, deserializers.get(), memoryMap, bufferSize, BufferPool.UNPOOLED));
+					}
+				}
+			} catch (IOException | RuntimeException e){
+				for (Feeder<E> feeder: feeders){
+					feeder.close();
+				}
+				throw e;
+			}
+			return feeders;
+		}
+		
+		public <E> List<Feeder<E>> createFileRangeFeeders(Path localFile, Supplier<? extends Deserializer<E>> deserializers, boolean memoryMap, int numRanges) throws IOException{
+			
+			return createFileRangeFeeders(localFile, CSV_FIELD_DELIMITER, CSV_EVENT_DELIMITER, deserializers, memoryMap, memoryMap?DEFAULT_MAPPED_WINDOW_SIZE:DEFAULT_BUFFER_SIZE, numRanges);
+		}
+		
+		/**
+		 * Creates a parallel stream over the events of the supplied file. The stream is backed by a {@link Spliterator}
+		 * that splits the remaining byte range of the file in half (aligned to the next event) so that each split can
+		 * be parsed on its own thread with its own deserializer. Closing the stream closes the underlying file.
+		 */
+		public <E> Stream<E> createFileStream(Path localFile, char fieldDelimiter, char eventDelimiter, Supplier<? extends Deserializer<E>> deserializers, boolean memoryMap, int bufferSize) throws IOException{
+			
+			FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ);
+			
+			return StreamSupport.stream(new FileRangeSpliterator<E>(channel, 0, channel.size(), fieldDelimiter, eventDelimiter, deserializers, memoryMap, bufferSize), true)
+								.onClose(() -> {
+									try {
+										channel.close();
+									} catch (IOException e) {
+										throw new UncheckedIOException("Unable to close "+localFile, e);
+									}
+								});
+		}
+		
+		public <E> Stream<E> createFileStream(Path localFile, Supplier<? extends Deserializer<E>> deserializers, boolean memoryMap) throws IOException{
+			
+			return createFileStream(localFile, CSV_FIELD_DELIMITER, CSV_EVENT_DELIMITER, deserializers, memoryMap, memoryMap?DEFAULT_MAPPED_WINDOW_SIZE:DEFAULT_BUFFER_SIZE);
+		}
+		
+		private static long[] splitIntoEventRanges(FileChannel channel, int numRanges, char eventDelimiter) throws IOException{
+			
+			if (numRanges <= 0){
+				throw new IllegalArgumentException("number of ranges must be positive but was "+numRanges);
+			}
+			
+			long size = channel.size();
+			long[] boundaries = new long[numRanges + 1];
+			
+			for (int i = 1; i < numRanges; i++){
+				boundaries[i] = Math.max(alignToNextEvent(channel, (size / numRanges) * i, size, eventDelimiter), boundaries[i - 1]);
+			}
+			boundaries[numRanges] = size;
+			
+			return boundaries;
+		}
+		
+		/**
+		 * Returns the first position at or after the supplied position that is the start of an event, or <code>end</code>
+		 * if there isn't one.
+		 */
+		private static long alignToNextEvent(FileChannel channel, long position, long end, char eventDelimiter) throws IOException{
+			
+			if (position <= 0){
+				return 0;
+			}
+			
+			ByteBuffer scanBuffer = ByteBuffer.allocate(4096);
+			
+			long scanPosition = position - 1; // the position is the start of an event if the previous byte is a delimiter
+			while (scanPosition < end){
+				scanBuffer.clear();
+				int read = channel.read(scanBuffer, scanPosition);
+				
+				if (read <= 0){
+					break;
+				}
+				
+				for (int i = 0; i < read; i++){
+					if (scanBuffer.get(i) == eventDelimiter){
+						return Math.min(scanPosition + i + 1, end);
+					}
+				}
+				scanPosition += read;
+			}
+			return end;
+		}
+		
+		private static <E> Feeder<E> createWindowedFeeder(FileChannel channel, Closeable closeable, long start, long end, char fieldDelimiter, char eventDelimiter, Deserializer<E> deserializer, boolean memoryMap, int bufferSize, BufferPool bufferPool) throws IOException{
+			
+			if (bufferSize <= 0){
+				throw new IllegalArgumentException("buffer size must be positive but was "+bufferSize);
+			}
+			
+			// no point in holding a window bigger than the data we are going to read
+			int windowSize = (int)Math.min(bufferSize, Math.max(end - start, 1));
+			
+			if (memoryMap){
+				return new MappedWindowFeeder<E>(channel, closeable, start, end, windowSize, fieldDelimiter, eventDelimiter, deserializer);
+			} else{
+				return new ReadWindowFeeder<E>(channel, closeable, start, end, bufferPool.acquire(windowSize), bufferPool, fieldDelimiter, eventDelimiter, deserializer);
+			}
+		}
+		
+		/**
+		 * A spliterator over a byte range of a file. Until it has started being consumed, the range can be split in half
+		 * at the next event boundary. The first event is read lazily so that splitting is cheap. All splits share the same
+		 * channel as positional reads and mappings of a {@link FileChannel} are safe to use from multiple threads.
+		 */
+		private static class FileRangeSpliterator<E> implements Spliterator<E>{
+			
+			private final FileChannel channel;
+			private final long end;
+			private final char fieldDelimiter;
+			private final char eventDelimiter;
+			private final Supplier<? extends Deserializer<E>> deserializers;
+			private final boolean memoryMap;
+			private final int bufferSize;
+			private long start;
+			private Feeder<E> feeder;
+			
+			private FileRangeSpliterator(FileChannel channel, long start, long end, char fieldDelimiter, char eventDelimiter, Supplier<? extends Deserializer<E>> deserializers, boolean memoryMap, int bufferSize){
+				this.channel = channel;
+				this.start = start;
+				this.end = end;
+				this.fieldDelimiter = fieldDelimiter;
+				this.eventDelimiter = eventDelimiter;
+				this.deserializers = deserializers;
+				this.memoryMap = memoryMap;
+				this.bufferSize = bufferSize;
+			}
+			
+			@Override
+			public boolean tryAdvance(Consumer<? super E> action) {
+				if (feeder == null){
+					try {
+						feeder = createWindowedFeeder(channel, () -> {}, start, end, fieldDelimiter, eventDelimiter, deserializers.get(), memoryMap, bufferSize, BufferPool.UNPOOLED); // the channel is closed by the stream
+					} catch (IOException e) {
+						throw new UncheckedIOException("Unable to read range "+start+" - "+end, e);
+					}
+				}
+				
+				if (feeder.hasNext()){
+					action.accept(feeder.next());
+					
+					return true;
+				}
+				return false;
+			}
+			
+			@Override
+			public Spliterator<E> trySplit() {
+				
+				// not worth splitting anything that would fit in a single window
+				if (feeder != null || end - start < 2l * bufferSize){
+					return null;
+				}
+				
+				long mid;
+				try {
+					mid = alignToNextEvent(channel, start + ((end - start) / 2), end, eventDelimiter);
+				} catch (IOException e) {
+					throw new UncheckedIOException("Unable to split range "+start+" - "+end, e);
+				}
+				
+				if (mid <= start || mid >= end){
+					return null;
+				}
+				
+				FileRangeSpliterator<E> prefix = new FileRangeSpliterator<E>(channel, start, mid, fieldDelimiter, eventDelimiter, deserializers, memoryMap, bufferSize);
+				
+				start = mid;
+				
+				return prefix;
+			}
+			
+			@Override
+			public long estimateSize() {
+				return end - start; // the number of bytes is an upper bound on the number of events
+			}
+			
+			@Override
+			public int characteristics() {
+				return Spliterator.ORDERED | Spliterator.NONNULL;
+			}
+		}
+		
 		/**
 		 * A byte buffer based feeder used rather than the more simple {@link java.nio.file.Files#lines(Path)} utility
-		 * because this will use direct memory access avoiding the copy into the heap (and the java object creation overhead) 
-		 * for the 
+		 * because this will use direct memory access avoiding the copy into the heap (and the java object creation overhead)
+		 * for the window of the file currently being read. Subclasses define how the next window is obtained. The current
+		 * window is always limited to end on an event boundary so the deserializer never sees a partial event.
 		 * @author haines
 		 *
 		 */
-		private static class ByteBufferFeeder<E> implements Feeder<E> {
-
-			private final ByteBuffer buffer;
-			private final Closeable channel;
+		private static abstract class ByteBufferFeeder<E> implements Feeder<E> {
+			
+			protected final FileChannel channel;
+			protected final long end;
+			protected final char eventDelimiter;
+			protected ByteBuffer buffer;
+			private final Closeable closeable;
 			private final char fieldDelimiter;
-			private final char eventDelimiter;
 			private final Deserializer<E> deserializer;
 			
-			private ByteBufferFeeder(Closeable channel, ByteBuffer buffer, char fieldDelimiter, char eventDelimiter, Deserializer<E> deserializer){
+			private ByteBufferFeeder(FileChannel channel, Closeable closeable, long end, char fieldDelimiter, char eventDelimiter, Deserializer<E> deserializer){
 				this.channel = channel;
-				this.buffer = buffer;
+				this.closeable = closeable;
+				this.end = end;
 				this.fieldDelimiter = fieldDelimiter;
 				this.eventDelimiter = eventDelimiter;
 				this.deserializer = deserializer;
+				this.buffer = ByteBuffer.allocate(0);
 			}
 			
 			public boolean hasNext() {
-				return buffer.hasRemaining();
+				if (buffer.hasRemaining()){
+					return true;
+				}
+				try {
+					return nextWindow();
+				} catch (IOException e) {
+					throw new RuntimeException("Unable to read next window from channel", e);
+				}
 			}
-
+			
 			public E next() {
-				
+				if (!hasNext()){
+					throw new NoSuchElementException();
+				}
 				return deserializer.deserialise(buffer, fieldDelimiter, eventDelimiter);
 			}
-
+			
+			/**
+			 * Moves the window on to the next unread part of the file.
+			 * @return false if there is no more data to read
+			 * @throws IOException
+			 */
+			protected abstract boolean nextWindow() throws IOException;
+			
+			/**
+			 * Limits the supplied window so that it ends just after the last event delimiter. If the window reaches the end
+			 * of the data then the whole window is used as the last event need not be terminated.
+			 * @return the number of bytes of the window that can be consumed
+			 */
+			protected int limitToLastEvent(ByteBuffer window, long windowEnd){
+				
+				if (windowEnd >= end){
+					return window.limit();
+				}
+				
+				for (int i = window.limit() - 1; i >= window.position(); i--){
+					if (window.get(i) == eventDelimiter){
+						window.limit(i + 1);
+						
+						return window.limit();
+					}
+				}
+				throw new RuntimeException("window size "+window.capacity()+" was not big enough to hold a single event. Increase the buffer size");
+			}
+			
 			@Override
 			public void close() throws IOException {
-				channel.close();
+				closeable.close();
+			}
+		}
+		
+		/**
+		 * Maps a window of the file at a time. Once a window has been consumed, the next window is mapped from the
+		 * start of the first event that did not completely fit into the previous one.
+		 */
+		private static class MappedWindowFeeder<E> extends ByteBufferFeeder<E> {
+			
+			private final int windowSize;
+			private long nextWindowStart;
+			
+			private MappedWindowFeeder(FileChannel channel, Closeable closeable, long start, long end, int windowSize, char fieldDelimiter, char eventDelimiter, Deserializer<E> deserializer){
+				super(channel, closeable, end, fieldDelimiter, eventDelimiter, deserializer);
+				
+				this.windowSize = windowSize;
+				this.nextWindowStart = start;
+			}
+			
+			@Override
+			protected boolean nextWindow() throws IOException {
+				if (nextWindowStart >= end){
+					return false;
+				}
+				
+				long windowEnd = Math.min(nextWindowStart + windowSize, end);
+				
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, nextWindowStart, windowEnd - nextWindowStart);
+				
+				nextWindowStart += limitToLastEvent(buffer, windowEnd);
+				
+				return buffer.hasRemaining();
+			}
+		}
+		
+		/**
+		 * Reads the file into a reusable buffer. Any partial event at the end of the window is compacted to the front of
+		 * the buffer before the rest of the buffer is filled from the channel.
+		 */
+		private static class ReadWindowFeeder<E> extends ByteBufferFeeder<E> {
+			
+			private final ByteBuffer window;
+			private final BufferPool bufferPool;
+			private long nextReadPosition;
+			private int filled;
+			private boolean released;
+			
+			private ReadWindowFeeder(FileChannel channel, Closeable closeable, long start, long end, ByteBuffer window, BufferPool bufferPool, char fieldDelimiter, char eventDelimiter, Deserializer<E> deserializer){
+				super(channel, closeable, end, fieldDelimiter, eventDelimiter, deserializer);
+				
+				this.window = window;
+				this.bufferPool = bufferPool;
+				this.nextReadPosition = start;
+				this.filled = 0;
+			}
+			
+			@Override
+			protected boolean nextWindow() throws IOException {
+				
+				// carry over the unconsumed tail of the last window
+				int consumed = buffer == window?window.position():0;
+				window.limit(filled);
+				window.position(consumed);
+				window.compact();
+				
+				while(window.hasRemaining() && nextReadPosition < end){
+					if (end - nextReadPosition < window.remaining()){
+						window.limit(window.position() + (int)(end - nextReadPosition));
+					}
+					int read = channel.read(window, nextReadPosition);
+					
+					if (read < 0){
+						break;
+					}
+					nextReadPosition += read;
+				}
+				window.flip();
+				
+				filled = window.limit();
+				buffer = window;
+				
+				if (!window.hasRemaining()){
+					return false;
+				}
+				
+				limitToLastEvent(window, nextReadPosition);
+				
+				return true;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				try{
+					super.close();
+				} finally{
+					if (!released){ // the window may be borrowed by someone else once given back
+						released = true;
+						buffer = ByteBuffer.allocate(0);
+						bufferPool.release(window);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Reads records that carry their own lengths. The whole window is handed to the deserializer and, if it runs out of
+		 * data part way through a record, the record is rewound and carried over into the next window.
+		 */
+		private static class SelfDelimitingReadWindowFeeder<E> extends ReadWindowFeeder<E> {
+			
+			private SelfDelimitingReadWindowFeeder(FileChannel channel, Closeable closeable, long start, long end, ByteBuffer window, BufferPool bufferPool, Deserializer<E> deserializer){
+				super(channel, closeable, start, end, window, bufferPool, CSV_FIELD_DELIMITER, CSV_EVENT_DELIMITER, deserializer);
+			}
+			
+			@Override
+			public E next() {
+				while(true){
+					if (!hasNext()){
+						throw new NoSuchElementException();
+					}
+					
+					int eventStart = buffer.position();
+					try{
+						return super.next();
+					} catch (BufferUnderflowException e){
+						buffer.position(eventStart);
+						
+						if (eventStart == 0){
+							// the window is as full as it can get so the event will never fit
+							throw new RuntimeException("window size "+buffer.capacity()+" was not big enough to hold a single event or the file is truncated", e);
+						}
+						
+						try {
+							nextWindow();
+						} catch (IOException ioe) {
+							throw new RuntimeException("Unable to read next window from channel", ioe);
+						}
+					}
+				}
+			}
+
+			@Override
+			protected int limitToLastEvent(ByteBuffer window, long windowEnd) {
+				return window.limit(); // the deserializer finds the end of each record itself
 			}
 		}
 	}
@@ -1,7 +1,7 @@
 package com.haines.mclaren.total_transations.io;
 
-import java.io.Closeable;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
@@ -21,49 +21,52 @@ public interface Persister<E> extends Consumer<E>{
 		private Factory(){}
 		
 		public <E> Persister<E> createCSVPersister(Path outputFile, Serializer<E> serializer, boolean memoryMap) throws IOException{
-			return createDelimitedPersister(outputFile, serializer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER, memoryMap, DEFAULT_BUFFER_SIZE);
+			return createDelimitedPersister(outputFile, serializer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER, memoryMap, DEFAULT_BUFFER_SIZE, BufferPool.UNPOOLED);
 		}
 		
 		public <E> Persister<E> createCSVPersister(Path outputFile, Serializer<E> serializer, boolean memoryMap, int bufferSize) throws IOException{
-			return createDelimitedPersister(outputFile, serializer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER, memoryMap, bufferSize);
+			return createDelimitedPersister(outputFile, serializer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER, memoryMap, bufferSize, BufferPool.UNPOOLED);
+		}
+		
+		/**
+		 * Creates a persister that writes through a buffer borrowed from <code>bufferPool</code>, which is given back when
+		 * the persister is closed. The delimiters are only passed to the serializer, so serializers that write self
+		 * describing binary records, such as {@link com.haines.mclaren.total_transations.domain.UserEventSerializer#BINARY_SERIALIZER},
+		 * can be persisted with this too.
+		 */
+		public <E> Persister<E> createCSVPersister(Path outputFile, Serializer<E> serializer, int bufferSize, BufferPool bufferPool) throws IOException{
+			return createDelimitedPersister(outputFile, serializer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER, false, bufferSize, bufferPool);
 		}
 
-		private <E> Persister<E> createDelimitedPersister(Path outputFile, Serializer<E> serializer, char csvFieldDelimiter, char csvEventDelimiter, boolean memoryMap, int bufferSize) throws IOException {
+		/**
+		 * Creates a persister that writes through a fixed size window of <code>bufferSize</code> bytes. When the window
+		 * cannot fit the next event it is flushed (or, if memory mapped, the next region of the file is mapped) so the
+		 * output is not limited by the size of the buffer.
+		 */
+		private <E> Persister<E> createDelimitedPersister(Path outputFile, Serializer<E> serializer, char csvFieldDelimiter, char csvEventDelimiter, boolean memoryMap, int bufferSize, BufferPool bufferPool) throws IOException {
 			
 			FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
 			
-			ByteBuffer buffer;
 			if (memoryMap){
-				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bufferSize);
+				return new MappedWindowPersister<E>(channel, bufferSize, csvFieldDelimiter, csvEventDelimiter, serializer);
 			} else{
-				buffer = ByteBuffer.allocate(bufferSize);
+				return new DelimitedByteBufferPersister<E>(channel, bufferPool.acquire(bufferSize), bufferPool, csvFieldDelimiter, csvEventDelimiter, serializer);
 			}
-			
-			return new DelimitedByteBufferPersister<E>(channel, buffer, csvFieldDelimiter, csvEventDelimiter, serializer){
-				
-				@Override
-				public void close() throws IOException {
-					if (!memoryMap){ // if we are not using memory mapped buffers then write out to channel before closing
-						buffer.flip();
-						channel.write(buffer);
-					}
-					
-					super.close();
-				}
-			};
 		}
 		
 		private static class DelimitedByteBufferPersister<E> implements Persister<E>{
 
-			private final Closeable channel;
-			private final ByteBuffer buffer;
+			protected final FileChannel channel;
+			protected ByteBuffer buffer;
+			private final BufferPool bufferPool;
 			private final char fieldDelimiter;
 			private final char eventDelimiter;
 			private final Serializer<E> serializer;
 			
-			public DelimitedByteBufferPersister(Closeable channel, ByteBuffer buffer, char fieldDelimiter, char eventDelimiter, Serializer<E> serializer) {
+			public DelimitedByteBufferPersister(FileChannel channel, ByteBuffer buffer, BufferPool bufferPool, char fieldDelimiter, char eventDelimiter, Serializer<E> serializer) {
 				this.channel = channel;
 				this.buffer = buffer;
+				this.bufferPool = bufferPool;
 				this.fieldDelimiter = fieldDelimiter;
 				this.eventDelimiter = eventDelimiter;
 				this.serializer = serializer;
@@ -72,16 +75,88 @@ public interface Persister<E> extends Consumer<E>{
 			@Override
 			public boolean consume(E event) {
 				
-				serializer.serialise(event, buffer, fieldDelimiter, eventDelimiter);
+				int eventStart = buffer.position();
+				try{
+					serializer.serialise(event, buffer, fieldDelimiter, eventDelimiter);
+				} catch (BufferOverflowException e){
+					// the event doesn't fit in what is left of the window. Rewind the partial event, move the window on and retry.
+					
+					buffer.position(eventStart);
+					
+					if (eventStart == 0){
+						throw new RuntimeException("buffer size "+buffer.capacity()+" was not big enough to hold event: "+event, e);
+					}
+					
+					try {
+						nextWindow();
+					} catch (IOException ioe) {
+						throw new RuntimeException("Unable to write window to channel", ioe);
+					}
+					
+					serializer.serialise(event, buffer, fieldDelimiter, eventDelimiter);
+				}
 				
 				return true;
 			}
+			
+			/**
+			 * Writes the current window out and resets it so that it can accept more events.
+			 * @throws IOException
+			 */
+			protected void nextWindow() throws IOException{
+				flush();
+				buffer.clear();
+			}
+			
+			private void flush() throws IOException{
+				buffer.flip();
+				while(buffer.hasRemaining()){
+					channel.write(buffer);
+				}
+			}
 
 			@Override
 			public void close() throws IOException {
-				channel.close();
+				try{
+					flush();
+				} finally{
+					channel.close();
+					bufferPool.release(buffer);
+				}
+			}
+		}
+		
+		/**
+		 * Maps a window of the output file at a time, mapping the next region once the current one is full. As mapping
+		 * extends the file to the end of the window, the file is truncated back to the written length on close.
+		 */
+		private static class MappedWindowPersister<E> extends DelimitedByteBufferPersister<E>{
+
+			private final int windowSize;
+			private long windowStart;
+			
+			private MappedWindowPersister(FileChannel channel, int windowSize, char fieldDelimiter, char eventDelimiter, Serializer<E> serializer) throws IOException{
+				super(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, windowSize), BufferPool.UNPOOLED, fieldDelimiter, eventDelimiter, serializer);
+				
+				this.windowSize = windowSize;
+				this.windowStart = 0;
 			}
 			
+			@Override
+			protected void nextWindow() throws IOException{
+				windowStart += buffer.position();
+				
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowSize);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				try{
+					channel.truncate(windowStart + buffer.position());
+				} finally{
+					channel.close();
+				}
+			}
 		}
 	}
 }
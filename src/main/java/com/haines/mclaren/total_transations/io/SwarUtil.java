@@ -0,0 +1,130 @@
+package com.haines.mclaren.total_transations.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SIMD within a register (SWAR) helpers for scanning delimited text in a {@link ByteBuffer} a word (8 bytes) at a time
+ * rather than a byte at a time. None of these methods change the position of the buffer and they only ever read within
+ * its limit, falling back to a byte at a time for the tail of the buffer that is less than a word long.
+ * @author haines
+ *
+ */
+public class SwarUtil {
+	
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+	private static final long HIGH_NIBBLES = 0xF0F0F0F0F0F0F0F0L;
+	private static final long ASCII_ZEROS = 0x3030303030303030L;
+	private static final long ASCII_SIX = 0x0606060606060606L;
+	
+	private static final long[] POWERS_OF_10 = new long[]{1l, 10l, 100l, 1_000l, 10_000l, 100_000l, 1_000_000l, 10_000_000l, 100_000_000l};
+	
+	private SwarUtil(){}
+	
+	/**
+	 * Returns the index of the first occurrence of the delimiter in the buffer between <code>from</code> (inclusive) and
+	 * <code>to</code> (exclusive) or <code>to</code> if it does not occur.
+	 */
+	public static int indexOf(ByteBuffer buffer, int from, int to, char delimiter){
+		
+		long pattern = (delimiter & 0xFFL) * ONES;
+		boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		
+		int i = from;
+		for (; i + Long.BYTES <= to; i += Long.BYTES){
+			long found = zeroBytes(buffer.getLong(i) ^ pattern); // bytes that match the delimiter are now 0
+			
+			if (found != 0){
+				// in big endian order the first byte in the buffer is the most significant in the word
+				return i + ((bigEndian?Long.numberOfLeadingZeros(found):Long.numberOfTrailingZeros(found)) >>> 3);
+			}
+		}
+		
+		for (; i < to; i++){
+			if (buffer.get(i) == delimiter){
+				return i;
+			}
+		}
+		return to;
+	}
+	
+	/**
+	 * Parses the decimal digits between <code>from</code> (inclusive) and <code>to</code> (exclusive) into a long. Up
+	 * to 8 digits are converted at a time without branching on each digit. Like the byte at a time parser, any non digit
+	 * characters (such as whitespace) are skipped.
+	 */
+	public static long parseDigits(ByteBuffer buffer, int from, int to){
+		
+		boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		long value = 0;
+		
+		int i = from;
+		while (i < to){
+			int length = Math.min(Long.BYTES, to - i);
+			
+			if (i + Long.BYTES > buffer.limit()){
+				break; // not enough of the buffer left to read a whole word
+			}
+			
+			long word = buffer.getLong(i);
+			if (bigEndian){
+				word = Long.reverseBytes(word); // make the first digit the least significant byte
+			}
+			
+			if (length < Long.BYTES){
+				// shift the digits we want to the top of the word and pad the bottom with leading zeros
+				int shift = (Long.BYTES - length) * Byte.SIZE;
+				
+				word = (word << shift) | (ASCII_ZEROS >>> (Long.SIZE - shift));
+			}
+			
+			if (isAllDigits(word)){
+				value = (value * POWERS_OF_10[length]) + parseEightDigits(word);
+			} else{
+				value = parseDigitsByByte(buffer, i, i + length, value);
+			}
+			i += length;
+		}
+		
+		return parseDigitsByByte(buffer, i, to, value);
+	}
+	
+	private static long parseDigitsByByte(ByteBuffer buffer, int from, int to, long value){
+		for (int i = from; i < to; i++){
+			int digit = buffer.get(i) - '0';
+			
+			if (digit >= 0 && digit <= 9){
+				value = (value * 10) + digit;
+			}
+		}
+		return value;
+	}
+	
+	/**
+	 * Returns a word with the high bit set in each byte that was 0 in the supplied word and nothing else. Unlike the
+	 * cheaper <code>(x - 0x01..) & ~x & 0x80..</code> version, this has no false positives so the lowest set byte can be
+	 * used in either byte order.
+	 */
+	private static long zeroBytes(long word){
+		return ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+	}
+	
+	private static boolean isAllDigits(long word){
+		// every high nibble has to be 3, and adding 6 to each byte must not push any of them out of the 0x3_ range
+		return (word & HIGH_NIBBLES) == ASCII_ZEROS && ((word + ASCII_SIX) & HIGH_NIBBLES) == ASCII_ZEROS;
+	}
+	
+	/**
+	 * Converts 8 ascii digits, with the first digit in the least significant byte, to their value by combining adjacent
+	 * digits, then pairs, then quads in 3 multiplications.
+	 */
+	private static long parseEightDigits(long word){
+		long value = word & 0x0F0F0F0F0F0F0F0FL;
+		
+		value = (value * 2561) >>> 8;
+		value = ((value & 0x00FF00FF00FF00FFL) * 6553601) >>> 16;
+		
+		return ((value & 0x0000FFFF0000FFFFL) * 42949672960001L) >>> 32;
+	}
+}
@@ -14,10 +14,11 @@ public class Util {
 	public static void recursiveDelete(Path localFile) throws IOException {
 		
 		if (Files.isDirectory(localFile)){
-			DirectoryStream<Path> contents = Files.newDirectoryStream(localFile);
+			try(DirectoryStream<Path> contents = Files.newDirectoryStream(localFile)){
 			
-			for (Path content: contents){
-				recursiveDelete(content); // dfs
+				for (Path content: contents){
+					recursiveDelete(content); // dfs
+				}
 			}
 		}
 		LOG.log(Level.INFO, "Deleting directory: " + localFile);
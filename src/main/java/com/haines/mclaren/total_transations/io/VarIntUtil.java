@@ -0,0 +1,54 @@
+package com.haines.mclaren.total_transations.io;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for writing and reading variable length integers (7 bits per byte, least significant group first, with the
+ * high bit set on every byte except the last) to and from a {@link ByteBuffer}. Small values, which make up most of the
+ * lengths and counts we store, take a single byte rather than 8. Signed values are zig-zag encoded first so that small
+ * negative numbers are also small on disk.
+ *
+ * Like the relative methods of {@link ByteBuffer}, writing to a buffer without enough room throws a
+ * {@link java.nio.BufferOverflowException} and reading past the limit throws a {@link BufferUnderflowException}. In
+ * both cases the position of the buffer is left part way through the value so callers need to reset it themselves.
+ * @author haines
+ *
+ */
+public class VarIntUtil {
+	
+	private VarIntUtil(){}
+	
+	public static void putVarLong(long value, ByteBuffer buffer){
+		while ((value & ~0x7FL) != 0){
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+	
+	public static long getVarLong(ByteBuffer buffer){
+		long value = 0;
+		
+		for (int shift = 0; shift < Long.SIZE; shift += 7){
+			byte nextByte = buffer.get();
+			
+			value |= (nextByte & 0x7FL) << shift;
+			
+			if (nextByte >= 0){ // high bit not set so this is the last byte
+				return value;
+			}
+		}
+		throw new IllegalStateException("malformed varint at position "+buffer.position());
+	}
+	
+	public static void putZigZagLong(long value, ByteBuffer buffer){
+		putVarLong((value << 1) ^ (value >> 63), buffer);
+	}
+	
+	public static long getZigZagLong(ByteBuffer buffer){
+		long value = getVarLong(buffer);
+		
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,162 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers;
+import com.haines.mclaren.total_transations.util.SimpleMap.Keyable;
+
+/**
+ * Holds up to <code>capacity</code> buckets of a {@link DiskBackedMap} in memory, loading them from the
+ * {@link BucketBuffers} on a miss and choosing which to drop using an {@link EvictionPolicy}. Only buckets that have been
+ * marked as dirty since they were loaded are written back when evicted; clean ones are simply dropped.
+ *
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+//@NotThreadSafe
+class BucketCache<K extends Serializable, V extends Keyable<K>> {
+	
+	private static final Logger LOG = Logger.getLogger(BucketCache.class.getName());
+	
+	private final BucketBuffers<K, V> bucketBuffers;
+	private final Map<Integer, Map<K, V>> residentBuckets;
+	private final Set<Integer> dirtyBuckets;
+	private final EvictionPolicy<Integer> evictionPolicy;
+	private final int capacity;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long cleanEvictions;
+	
+	BucketCache(BucketBuffers<K, V> bucketBuffers, int capacity, EvictionPolicy<Integer> evictionPolicy){
+		
+		if (capacity <= 0){
+			throw new IllegalArgumentException("at least 1 bucket has to be resident but capacity was "+capacity);
+		}
+		
+		this.bucketBuffers = bucketBuffers;
+		this.residentBuckets = new HashMap<Integer, Map<K, V>>();
+		this.dirtyBuckets = new HashSet<Integer>();
+		this.evictionPolicy = evictionPolicy;
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Returns the contents of the bucket, loading it from disk (and evicting another bucket if full) if it is not already
+	 * resident.
+	 */
+	Map<K, V> get(int bucketNum) throws IOException, ClassNotFoundException{
+		Map<K, V> bucket = residentBuckets.get(bucketNum);
+		
+		if (bucket != null){
+			hits++;
+			evictionPolicy.recordAccess(bucketNum);
+			
+			return bucket;
+		}
+		
+		misses++;
+		bucket = bucketBuffers.loadBucket(bucketNum);
+		
+		add(bucketNum, bucket, false);
+		
+		return bucket;
+	}
+	
+	/**
+	 * Makes the supplied contents resident for the bucket, evicting another bucket if full.
+	 */
+	void add(int bucketNum, Map<K, V> bucket, boolean dirty) throws IOException{
+		assert !residentBuckets.containsKey(bucketNum);
+		
+		residentBuckets.put(bucketNum, bucket);
+		evictionPolicy.add(bucketNum);
+		
+		if (dirty){
+			dirtyBuckets.add(bucketNum);
+		}
+		
+		while (residentBuckets.size() > capacity){
+			evict(evictionPolicy.evict());
+		}
+	}
+	
+	/**
+	 * Returns the bucket if it is resident or null if not. This does not count as an access.
+	 */
+	Map<K, V> getIfResident(int bucketNum){
+		return residentBuckets.get(bucketNum);
+	}
+	
+	/**
+	 * Marks the resident bucket as changed so that it is written back when evicted.
+	 */
+	void markDirty(int bucketNum){
+		assert residentBuckets.containsKey(bucketNum);
+		
+		dirtyBuckets.add(bucketNum);
+	}
+	
+	/**
+	 * Drops the bucket without writing it back. Used once a bucket has been written elsewhere, such as when it is split.
+	 */
+	void invalidate(int bucketNum){
+		if (residentBuckets.remove(bucketNum) != null){
+			dirtyBuckets.remove(bucketNum);
+			evictionPolicy.remove(bucketNum);
+		}
+	}
+	
+	Set<Entry<Integer, Map<K, V>>> getResidentBuckets(){
+		return Collections.unmodifiableSet(residentBuckets.entrySet());
+	}
+	
+	private void evict(int bucketNum) throws IOException{
+		Map<K, V> bucket = residentBuckets.remove(bucketNum);
+		
+		evictions++;
+		if (dirtyBuckets.remove(bucketNum)){
+			bucketBuffers.saveBucket(bucketNum, bucket);
+		} else{
+			cleanEvictions++; // nothing has changed since it was loaded so no need to write it again
+		}
+	}
+	
+	/**
+	 * Writes all the dirty buckets back to disk. As the store may still be writing them in the background, they are no
+	 * longer resident once written. The clean buckets stay resident.
+	 */
+	void flush() throws IOException{
+		Iterator<Integer> dirtyIt = dirtyBuckets.iterator();
+		
+		while (dirtyIt.hasNext()){
+			int bucketNum = dirtyIt.next();
+			
+			bucketBuffers.saveBucket(bucketNum, residentBuckets.remove(bucketNum));
+			evictionPolicy.remove(bucketNum);
+			dirtyIt.remove();
+		}
+	}
+	
+	void close() throws IOException{
+		flush();
+		
+		LOG.log(Level.INFO, "closing bucket cache: "+getStats());
+	}
+	
+	DiskBackedMap.CacheStats getStats(){
+		return new DiskBackedMap.CacheStats(hits, misses, evictions, cleanEvictions, residentBuckets.size());
+	}
+}
@@ -0,0 +1,158 @@
+package com.haines.mclaren.total_transations.util;
+
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+
+/**
+ * Decides which leaf bucket of a {@link DiskBackedMap} a key belongs in and, when a bucket is split, which of its children
+ * each of its keys moves to. The {@link Node}s themselves are created and attached by {@link DiskBackedMap.BucketBuffers};
+ * the index is told once a node has children so that it can route keys to them.
+ *
+ * {@link #getChildIndexForKey(Node, Object)} only depends on the node and the key so it may be called from the thread
+ * splitting a bucket in the background. Attaching children is only done by the thread that owns the map.
+ * @author haines
+ *
+ */
+//@NotThreadSafe
+interface BucketIndex {
+	
+	/**
+	 * Returns the leaf node that the key currently belongs in.
+	 */
+	Node getBucketForKey(Object key);
+	
+	/**
+	 * Returns the index of the child of <code>parent</code> that the key belongs in once the parent has been split.
+	 */
+	int getChildIndexForKey(Node parent, Object key);
+	
+	/**
+	 * Called once <code>parent</code> has had its children attached, after which keys must be routed to them.
+	 */
+	void childrenAttached(Node parent);
+	
+	/**
+	 * The original layout. Lookups walk the tree from the root, picking a child at each branch from a window of the key's
+	 * hash code.
+	 */
+	static class HashTree implements BucketIndex {
+		
+		private final Node root;
+		
+		HashTree(Node root){
+			this.root = root;
+		}
+		
+		@Override
+		public Node getBucketForKey(Object key) {
+			Node node = root;
+			
+			while (!node.isLeaf()){
+				node = node.getChild(getChildIndexForKey(node, key));
+			}
+			return node;
+		}
+		
+		@Override
+		public int getChildIndexForKey(Node parent, Object key) {
+			return getChildIndexForKey(parent.getDepth(), parent.getBranchingSize(), key);
+		}
+		
+		static int getChildIndexForKey(int depth, int numChildren, Object key){
+			// This is a branching node, re hash this again based the natural hash shifted to the right by the depth of the node and AND-ed with 0xF mask shifted to the left and recurse.
+			// Think of this as a sliding window of 8 bits across the hash shifted back to where it was. If we didnt bit shift then all
+			// nested buckets would hash to the same entry. Note that this limits us to 32 depths before things start going to 0 but
+			
+			int newHash = (key.hashCode() & (0xF << depth)) >> depth;
+			
+			return Math.abs(newHash % numChildren);
+		}
+		
+		@Override
+		public void childrenAttached(Node parent) {
+			// nothing to do, the children are found by walking the tree
+		}
+	}
+	
+	/**
+	 * An extendible hashing directory. Keys are hashed with a 64 bit mixing function and the lowest
+	 * <code>globalDepth</code> bits of the result index straight into an array of leaf nodes, so finding a bucket is a
+	 * single array lookup however many times buckets have been split. Each node's depth is its local depth: the number of
+	 * low bits that all of its keys share. Splitting a node only halves that node, moving keys to one of its 2 children
+	 * based on the next bit of the hash. The directory doubles when a node as deep as the directory is split.
+	 *
+	 * As every bit of the mixed hash depends on every bit of the hash code, the halves stay evenly sized however deep the
+	 * tree gets, rather than later levels reusing the same few bits of the hash code.
+	 */
+	static class ExtendibleHashDirectory implements BucketIndex {
+		
+		static final int BRANCHING_SIZE = 2;
+		private static final int MAX_GLOBAL_DEPTH = 30; // the most an array can be indexed by
+		
+		private Node[] directory;
+		private int globalDepth;
+		
+		ExtendibleHashDirectory(Node root){
+			assert root.getBranchingSize() == BRANCHING_SIZE;
+			
+			this.directory = new Node[]{root};
+			this.globalDepth = 0;
+		}
+		
+		@Override
+		public Node getBucketForKey(Object key) {
+			return directory[(int)mix(key) & (directory.length - 1)];
+		}
+		
+		@Override
+		public int getChildIndexForKey(Node parent, Object key) {
+			return (int)(mix(key) >>> parent.getDepth()) & 1;
+		}
+		
+		@Override
+		public void childrenAttached(Node parent) {
+			int localDepth = parent.getDepth();
+			
+			if (localDepth == globalDepth){
+				if (globalDepth == MAX_GLOBAL_DEPTH){
+					throw new IllegalStateException("Unable to split bucket "+parent.getId()+" as the directory is already at its maximum depth of "+MAX_GLOBAL_DEPTH+". Too many keys share the same hash");
+				}
+				
+				// double the directory. The new upper half points to the same nodes as the lower half
+				
+				Node[] newDirectory = new Node[directory.length * 2];
+				System.arraycopy(directory, 0, newDirectory, 0, directory.length);
+				System.arraycopy(directory, 0, newDirectory, directory.length, directory.length);
+				
+				directory = newDirectory;
+				globalDepth++;
+			}
+			
+			// every slot that pointed at the parent now points at the child matching the next bit of its index
+			
+			for (int i = 0; i < directory.length; i++){
+				if (directory[i] == parent){
+					directory[i] = parent.getChild((i >>> localDepth) & 1);
+				}
+			}
+		}
+		
+		int getGlobalDepth(){
+			return globalDepth;
+		}
+		
+		/**
+		 * The 64 bit finalizer from MurmurHash3, applied to the key's hash code
+		 */
+		static long mix(Object key){
+			long hash = key.hashCode();
+			
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			
+			return hash;
+		}
+	}
+}
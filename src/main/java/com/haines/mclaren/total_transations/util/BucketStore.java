@@ -0,0 +1,41 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+import com.haines.mclaren.total_transations.util.SimpleMap.Keyable;
+
+/**
+ * Where the contents of the leaf buckets of a {@link DiskBackedMap} are kept when they are not in memory. The tree of
+ * buckets itself is managed by {@link DiskBackedMap.BucketBuffers}; this only deals with reading and writing the contents
+ * of a single bucket.
+ *
+ * When background splitting is enabled, the children of a bucket are written and the bucket itself deleted from a separate
+ * thread to the one using the map, so implementations must allow different buckets to be used from different threads
+ * at the same time.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+interface BucketStore<K, V extends Keyable<K>> extends Closeable {
+	
+	/**
+	 * Returns the contents of the bucket or an empty map if it has never been written.
+	 */
+	Map<K, V> read(Node bucket) throws IOException;
+	
+	/**
+	 * Replaces the contents of the bucket. The supplied map must not be changed by the caller once it has been written.
+	 */
+	void write(Node bucket, Map<K, V> contents) throws IOException;
+	
+	boolean exists(Node bucket);
+	
+	/**
+	 * Removes the contents of a bucket, such as when it is being split into child buckets.
+	 */
+	void delete(Node bucket) throws IOException;
+}
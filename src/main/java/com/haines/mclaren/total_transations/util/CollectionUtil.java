@@ -6,11 +6,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import com.haines.mclaren.total_transations.api.Deserializer;
+import com.haines.mclaren.total_transations.api.Serializer;
 import com.haines.mclaren.total_transations.io.IOFactory;
 import com.haines.mclaren.total_transations.io.Util;
 import com.haines.mclaren.total_transations.util.SimpleMap.Keyable;
@@ -65,10 +69,73 @@ public class CollectionUtil {
 	 */
 	public static <K extends Serializable, V extends SimpleMap.Keyable<K>> DiskBackedMap<K, V> getFileBackedMap(Path localFile, int maximumInMemoryItems, IOFactory<V> ioFactory) throws IOException, ClassNotFoundException{
 		
-		return new DiskBackedMap<K, V>(createBucketBuffer(localFile, maximumInMemoryItems, ioFactory));
+		return getFileBackedMap(localFile, maximumInMemoryItems, ioFactory, DiskBackedMap.Options.DEFAULT);
 	}
 	
-	private static <K extends Serializable, V extends Keyable<K>> DiskBackedMap.BucketBuffers<K, V> createBucketBuffer(Path localFile, int maxEntriesInMemoryUnit, IOFactory<V> ioFactory) throws IOException {
+	public static <K extends Serializable, V extends SimpleMap.Keyable<K>> DiskBackedMap<K, V> getFileBackedMap(Path localFile, int maximumInMemoryItems, IOFactory<V> ioFactory, DiskBackedMap.Options options) throws IOException, ClassNotFoundException{
+		
+		return new DiskBackedMap<K, V>(createBucketBuffer(localFile, maximumInMemoryItems, options.<K, V>createBucketStore(ioFactory), options), options);
+	}
+	
+	/**
+	 * Reopens a file backed map that was previously closed in <code>localFile</code>, rebuilding its buckets from the
+	 * manifest written when it was closed rather than reading all of its contents. The <code>ioFactory</code> and layout
+	 * of the options must be the same as the map was created with.
+	 * @throws java.nio.file.NoSuchFileException if there is no manifest, as happens if the map was not closed
+	 */
+	public static <K extends Serializable, V extends SimpleMap.Keyable<K>> DiskBackedMap<K, V> openFileBackedMap(Path localFile, int maximumInMemoryItems, IOFactory<V> ioFactory, DiskBackedMap.Options options) throws IOException, ClassNotFoundException{
+		
+		return new DiskBackedMap<K, V>(DiskBackedMap.BucketBuffers.open(localFile, maximumInMemoryItems, options.<K, V>createBucketStore(ioFactory), options.getLayout(), options.getKeyFilterBitsPerKey(), options.getMaxBucketBytes()), options);
+	}
+	
+	/**
+	 * Creates a file backed map like {@link #getFileBackedMap(Path, int, IOFactory, DiskBackedMap.Options)} but that packs
+	 * all of its buckets into segment files of <code>segmentSize</code> bytes rather than a file per bucket. See
+	 * {@link SegmentBucketStore}.
+	 */
+	public static <K extends Serializable, V extends SimpleMap.Keyable<K>> DiskBackedMap<K, V> getSegmentBackedMap(Path localFile, int maximumInMemoryItems, int segmentSize, Serializer<V> serializer, Deserializer<V> deserializer, DiskBackedMap.Options options) throws IOException, ClassNotFoundException{
+		
+		Path workingDirectory = createWorkingDirectory(localFile);
+		
+		return new DiskBackedMap<K, V>(new DiskBackedMap.BucketBuffers<K, V>(workingDirectory, maximumInMemoryItems, options.wrapBucketStore(new SegmentBucketStore<K, V>(workingDirectory, serializer, deserializer, segmentSize)), options.getLayout(), options.getKeyFilterBitsPerKey(), options.getMaxBucketBytes()), options);
+	}
+	
+	/**
+	 * Reopens a map created by {@link #getSegmentBackedMap(Path, int, int, Serializer, Deserializer, DiskBackedMap.Options)}
+	 * in the same way as {@link #openFileBackedMap(Path, int, IOFactory, DiskBackedMap.Options)}.
+	 */
+	public static <K extends Serializable, V extends SimpleMap.Keyable<K>> DiskBackedMap<K, V> openSegmentBackedMap(Path localFile, int maximumInMemoryItems, int segmentSize, Serializer<V> serializer, Deserializer<V> deserializer, DiskBackedMap.Options options) throws IOException, ClassNotFoundException{
+		
+		return new DiskBackedMap<K, V>(DiskBackedMap.BucketBuffers.open(localFile, maximumInMemoryItems, options.wrapBucketStore(new SegmentBucketStore<K, V>(localFile, serializer, deserializer, segmentSize)), options.getLayout(), options.getKeyFilterBitsPerKey(), options.getMaxBucketBytes()), options);
+	}
+	
+	/**
+	 * Creates a log structured map that writes the deltas put into it out as sorted runs of up to
+	 * <code>maxMemtableEntries</code> entries, compacting them in the background once there are
+	 * <code>maxRunsBeforeCompaction</code> of them. See {@link LogStructuredMap} for how this differs from the other maps.
+	 * @param merger combines the older (first argument) and newer values of a key, and may update the older value in place
+	 * @param copier creates a copy of a value
+	 */
+	public static <K, V extends SimpleMap.Keyable<K>> LogStructuredMap<K, V> getLogStructuredMap(Path localFile, int maxMemtableEntries, int maxRunsBeforeCompaction, IOFactory<V> ioFactory, BinaryOperator<V> merger, UnaryOperator<V> copier) throws IOException{
+		
+		return new LogStructuredMap<K, V>(createWorkingDirectory(localFile), maxMemtableEntries, maxRunsBeforeCompaction, ioFactory, merger, copier);
+	}
+	
+	/**
+	 * Creates a map of counters held in memory mapped files, starting with room for <code>initialCapacity</code> keys.
+	 * See {@link MappedHashMap}.
+	 */
+	public static <K, V extends SimpleMap.Keyable<K>> MappedHashMap<K, V> getMappedHashMap(Path localFile, int initialCapacity, MappedHashMap.Codec<K, V> codec) throws IOException{
+		
+		return new MappedHashMap<K, V>(createWorkingDirectory(localFile), initialCapacity, codec);
+	}
+	
+	private static <K extends Serializable, V extends Keyable<K>> DiskBackedMap.BucketBuffers<K, V> createBucketBuffer(Path localFile, int maxEntriesInMemoryUnit, BucketStore<K, V> bucketStore, DiskBackedMap.Options options) throws IOException {
+		
+		return new DiskBackedMap.BucketBuffers<K, V>(createWorkingDirectory(localFile), maxEntriesInMemoryUnit, bucketStore, options.getLayout(), options.getKeyFilterBitsPerKey(), options.getMaxBucketBytes());
+	}
+	
+	private static Path createWorkingDirectory(Path localFile) throws IOException {
 		
 		if(Files.exists(localFile)){
 			Util.recursiveDelete(localFile);
@@ -83,11 +150,29 @@ public class CollectionUtil {
 		
 		LOG.log(Level.INFO, "clearing down existing working directory " + localFile);
 		
-		return new DiskBackedMap.BucketBuffers<K, V>(localFile, maxEntriesInMemoryUnit, ioFactory);
+		return localFile;
 	}
 
 	public static <K, V extends SimpleMap.Keyable<K>> InMemorySimpleMap<K, V> getMemoryBackMap(Class<K> keyClass, Class<V> valueClass){
 		
 		return new InMemorySimpleMap<K, V>();
 	}
+	
+	/**
+	 * Creates an in memory map of counters with room for <code>expectedSize</code> keys before it has to grow. See
+	 * {@link InMemoryCounterMap}.
+	 */
+	public static <K, V extends SimpleMap.Keyable<K>> InMemoryCounterMap<K, V> getMemoryBackedCounterMap(int expectedSize, InMemoryCounterMap.Codec<K, V> codec){
+		
+		return new InMemoryCounterMap<K, V>((int)Math.min(Integer.MAX_VALUE, expectedSize * 4L / 3 + 1), codec);
+	}
+	
+	/**
+	 * Creates an in memory map of counters indexed by the ids of the keys in <code>dictionary</code>, with room for
+	 * <code>expectedSize</code> keys before it has to grow. See {@link DenseCounterMap}.
+	 */
+	public static <K, V extends SimpleMap.Keyable<K>> DenseCounterMap<K, V> getDenseCounterMap(KeyDictionary<K> dictionary, int expectedSize, InMemoryCounterMap.Codec<K, V> codec){
+		
+		return new DenseCounterMap<K, V>(dictionary, expectedSize, codec);
+	}
 }
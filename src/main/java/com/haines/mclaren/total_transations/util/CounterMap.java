@@ -0,0 +1,37 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.util.Collection;
+
+/**
+ * A {@link SimpleMap} whose values are just a long counter per key, so that a counter can be added to without creating
+ * or updating a value object. Used as the window of an aggregator whose events are reduced by summing a single count.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface CounterMap<K, V extends SimpleMap.Keyable<K>> extends WindowMap<K, V> {
+	
+	/**
+	 * Adds <code>delta</code> to the counter of the key, adding the key with a counter of <code>delta</code> if it is not
+	 * already in the map.
+	 * @return the new value of the counter
+	 */
+	long addTo(K key, long delta);
+	
+	/**
+	 * Removes the key from the map.
+	 * @return a new value holding the counter the key had, or null if it was not in the map
+	 */
+	@Override
+	V remove(K key);
+	
+	@Override
+	CounterMap<K, V> createEmptyCopy();
+	
+	/**
+	 * Returns a view of the values in this map, each created when it is iterated over.
+	 */
+	@Override
+	Collection<V> values();
+}
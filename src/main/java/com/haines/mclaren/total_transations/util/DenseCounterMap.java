@@ -0,0 +1,196 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+/**
+ * A map of keys to long counters where each key is held as its id in a shared {@link KeyDictionary}, so that the
+ * counters are a single <code>long[]</code> indexed by id. When the caller already has the id of a key, as it does for
+ * events that were encoded when they were deserialized, {@link #addTo(int, long)} is an array increment with no hashing
+ * or comparing of keys at all. Keys are only decoded back from the dictionary when values are read out of the map.
+ *
+ * The ids of the keys in the map are also kept in a list, so that iterating over or clearing the map only visits the
+ * keys that were added since it was last cleared rather than every id in the dictionary. Removing a key moves the last
+ * id in the list into its place. The counters array grows to the
+ * largest id added, which is the number of distinct keys seen by the dictionary rather than by this map. This makes it a
+ * good fit for the window of an aggregator over a bounded set of heavily repeated keys and a poor one for keys that are
+ * mostly unique.
+ *
+ * Only the dictionary is safe to share between threads. The counters belong to the single thread that adds to them.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+//@NotThreadSafe
+public class DenseCounterMap<K, V extends SimpleMap.Keyable<K>> implements CounterMap<K, V> {
+	
+	private static final int MIN_CAPACITY = 16;
+	
+	private final KeyDictionary<K> dictionary;
+	private final InMemoryCounterMap.Codec<K, V> codec;
+	private final BitSet present;
+	private long[] counts;
+	private int[] positions;
+	private int[] addedIds;
+	private int size;
+	
+	DenseCounterMap(KeyDictionary<K> dictionary, int expectedSize, InMemoryCounterMap.Codec<K, V> codec){
+		this.dictionary = dictionary;
+		this.codec = codec;
+		this.present = new BitSet();
+		this.counts = new long[Math.max(MIN_CAPACITY, dictionary.size())];
+		this.positions = new int[counts.length];
+		this.addedIds = new int[Math.max(MIN_CAPACITY, expectedSize)];
+		this.size = 0;
+	}
+	
+	/**
+	 * Adds <code>delta</code> to the counter of the key with the supplied id in the map's dictionary.
+	 * @return the new value of the counter
+	 */
+	public long addTo(int id, long delta){
+		if (present.get(id)){
+			return counts[id] += delta;
+		}
+		insert(id, delta);
+		
+		return delta;
+	}
+	
+	@Override
+	public long addTo(K key, long delta){
+		return addTo(dictionary.encode(key), delta);
+	}
+	
+	/**
+	 * Returns a new value holding the current counter of the key, or null if the key is not in the map.
+	 */
+	@Override
+	public V get(K key) {
+		int id = dictionary.lookup(key);
+		
+		return id != KeyDictionary.NOT_ENCODED && present.get(id)?codec.create(key, counts[id]):null;
+	}
+	
+	@Override
+	public V put(K key, V value) {
+		int id = dictionary.encode(key);
+		
+		if (present.get(id)){
+			long previousCount = counts[id];
+			counts[id] = codec.getCount(value);
+			
+			return codec.create(key, previousCount);
+		}
+		insert(id, codec.getCount(value));
+		
+		return null;
+	}
+	
+	@Override
+	public V remove(K key){
+		int id = dictionary.lookup(key);
+		
+		if (id == KeyDictionary.NOT_ENCODED || !present.get(id)){
+			return null;
+		}
+		V removedValue = codec.create(dictionary.decode(id), counts[id]);
+		
+		present.clear(id);
+		
+		int lastId = addedIds[--size];
+		addedIds[positions[id]] = lastId;
+		positions[lastId] = positions[id];
+		
+		return removedValue;
+	}
+	
+	private void insert(int id, long count){
+		if (id >= counts.length){
+			counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+			positions = Arrays.copyOf(positions, counts.length);
+		}
+		if (size == addedIds.length){
+			addedIds = Arrays.copyOf(addedIds, size * 2);
+		}
+		counts[id] = count;
+		present.set(id);
+		positions[id] = size;
+		addedIds[size++] = id;
+	}
+	
+	@Override
+	public Stream<V> processAllEvents(Stream<V> events, BiFunction<V, V, V> reduceFunction) {
+		return events.map(e -> reduceFunction.apply(e, get(e.getKey())));
+	}
+	
+	@Override
+	public long size() {
+		return size;
+	}
+	
+	@Override
+	public void clear() {
+		for (int i = 0; i < size; i++){
+			present.clear(addedIds[i]);
+		}
+		size = 0;
+	}
+	
+	@Override
+	public DenseCounterMap<K, V> createEmptyCopy(){
+		return new DenseCounterMap<K, V>(dictionary, addedIds.length, codec);
+	}
+	
+	@Override
+	public Collection<V> values(){
+		return new AbstractCollection<V>(){
+			
+			@Override
+			public Iterator<V> iterator() {
+				return new Iterator<V>(){
+					
+					private int nextIndex = 0;
+					
+					@Override
+					public boolean hasNext() {
+						return nextIndex < size;
+					}
+					
+					@Override
+					public V next() {
+						if (!hasNext()){
+							throw new NoSuchElementException();
+						}
+						int id = addedIds[nextIndex++];
+						
+						return codec.create(dictionary.decode(id), counts[id]);
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+	
+	@Override
+	public Iterable<V> getAllValues() {
+		return values();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		// no op
+	}
+}
@@ -1,160 +1,383 @@
 package com.haines.mclaren.total_transations.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-import com.haines.mclaren.total_transations.io.Feeder;
 import com.haines.mclaren.total_transations.io.IOFactory;
-import com.haines.mclaren.total_transations.io.Persister;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.PendingSplit;
 
 //@NotThreadSafe
 public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K>> implements SimpleMap<K, V>{
 
+	private static final Logger LOG = Logger.getLogger(DiskBackedMap.class.getName());
+	
 	private final BucketBuffers<K, V> bucketBuffers;
-	private Map<K, V> currentlyLoadedBucket;
-	private int loadedBucketNumber;
+	private final BucketCache<K, V> residentBuckets;
+	private final ExecutorService splitter;
+	private final Map<Integer, PendingSplit<K, V>> pendingSplits;
+	private final ExecutorService prefetcher;
+	private final int numReadAheadBuckets;
+	private final ForkJoinPool reducer;
+	private long skippedLoads;
+	private long falsePositiveLoads;
 	
 	DiskBackedMap(BucketBuffers<K, V> bucketBuffers) throws ClassNotFoundException, IOException{
-		this.bucketBuffers = bucketBuffers;
-		this.currentlyLoadedBucket = new HashMap<K, V>();
-		this.loadedBucketNumber = 0;
+		this(bucketBuffers, Options.DEFAULT);
 	}
 	
-	private void loadBucket(int bucketNum, boolean saveCurrentBucket) throws IOException, ClassNotFoundException {
-		
-		if (bucketNum != loadedBucketNumber){
-			// save the current bucket
-			
-			if (saveCurrentBucket){
-				// Note, this might cause the structure of the tree to differ but only under the currentlyLoadedBucket number.
-				// as we know that bucketNum != currentlyLoadedBucket and that loaded buckets have to be leaf nodes, we do not need to rehash the key to an appropriate bucket
-				bucketBuffers.saveBucket(loadedBucketNumber, currentlyLoadedBucket); 
-			}
+	DiskBackedMap(BucketBuffers<K, V> bucketBuffers, Options options) throws ClassNotFoundException, IOException{
+		this.bucketBuffers = bucketBuffers;
+		this.residentBuckets = new BucketCache<K, V>(bucketBuffers, options.numResidentBuckets, options.evictionPolicy.<Integer>create(options.numResidentBuckets));
+		this.pendingSplits = new HashMap<Integer, PendingSplit<K, V>>();
+		this.splitter = options.backgroundSplitting?Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "bucket_splitter");
+			thread.setDaemon(true);
 			
-			// load the required bucket
-			currentlyLoadedBucket = bucketBuffers.loadBucket(bucketNum);
+			return thread;
+		}):null;
+		// a cached pool as the values are read after the map is closed. Its threads are dropped once the reads finish
+		this.prefetcher = options.numReadAheadBuckets > 0?Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "bucket_prefetcher");
+			thread.setDaemon(true);
 			
-			loadedBucketNumber = bucketNum;
-		}
+			return thread;
+		}):null;
+		this.numReadAheadBuckets = options.numReadAheadBuckets;
+		this.reducer = options.reductionParallelism > 0?new ForkJoinPool(options.reductionParallelism):null;
 	}
-
+			
+	/**
+	 * Note that values are only written back to disk if they are {@link #put(Serializable, Keyable)} into the map. Changes
+	 * made to a returned value without putting it back may be lost once its bucket is evicted.
+	 */
 	@Override
 	public V get(K key) {
-		loadBucketForKey(key, false);
-		
-		return currentlyLoadedBucket.get(key);
+		return loadBucketForKey(key, false).get(key);
 	}
 
-	private void loadBucketForKey(K key, boolean forInsertion) {
-		int bucketNumber = bucketBuffers.getBucketNumForKey(key);
+	private Map<K, V> loadBucketForKey(K key, boolean forInsertion) {
+		int bucketNumber = -1;
 		
-		if (bucketNumber != loadedBucketNumber){
-			try {
-				loadBucket(bucketNumber, true);
-			} catch (ClassNotFoundException | IOException e) {
-				throw new RuntimeException("unable to load bucket: "+bucketNumber, e);
+		try {
+			completeSplits(false);
+			
+			bucketNumber = bucketBuffers.getBucketNumForKey(key);
+			
+			PendingSplit<K, V> pendingSplit = pendingSplits.get(bucketNumber);
+			
+			if (pendingSplit != null){
+				// the bucket is being split in the background. Until its children are ready, keep using its contents
+				
+				if (forInsertion){
+					pendingSplit.markChanged(key);
+				}
+				return pendingSplit.contents;
+			}
+			
+			boolean filtered = !forInsertion && bucketBuffers.hasKeyFilters() && residentBuckets.getIfResident(bucketNumber) == null;
+			
+			if (filtered && !bucketBuffers.mightContain(bucketNumber, key)){
+				// the key has never been written to the bucket so there is no need to load it, evicting another in the process
+				
+				skippedLoads++;
+				
+				return Collections.emptyMap();
+			}
+			
+			Map<K, V> bucket = residentBuckets.get(bucketNumber);
+			
+			if (filtered && !bucket.containsKey(key)){
+				falsePositiveLoads++;
 			}
-		} else if (forInsertion){
-			// check that the current loaded bucket exceeded the maximum item loaded limit
 			
-			if (!bucketBuffers.checkBufferHasCapacity(currentlyLoadedBucket)){
-				// save the current bucket which will write a new restructured version to disk
+			if (forInsertion){
+				// check that the bucket has not exceeded the maximum item loaded limit
 				
-				try {
-					bucketBuffers.saveBucket(loadedBucketNumber, currentlyLoadedBucket);
+				bucketBuffers.sampleEntry(key);
+				
+				if (!bucketBuffers.checkBufferHasCapacity(bucket) && splitter != null){
+					// hand the split off to the background and carry on using this bucket's contents in the meantime.
+					
+					residentBuckets.invalidate(bucketNumber);
+					
+					pendingSplit = bucketBuffers.splitInBackground(bucketNumber, bucket, splitter);
+					pendingSplit.markChanged(key);
 					
-					// now we have reordered the structure at this node, reload the buffer that this key should now be inserted into.
+					pendingSplits.put(bucketNumber, pendingSplit);
 					
-					loadBucket(bucketBuffers.getBucketNumForKey(key), false);
-				} catch (IOException | ClassNotFoundException e) {
-					throw new RuntimeException("Unable to write key "+key+" to store", e);
+					return bucket;
+				} else if (!bucketBuffers.checkBufferHasCapacity(bucket)){
+					// save the current bucket which will write a new restructured version to disk. As the bucket is now
+					// a branch, it can no longer be resident.
+					
+					bucketBuffers.saveBucket(bucketNumber, bucket);
+					residentBuckets.invalidate(bucketNumber);
+					
+					// now we have reordered the structure at this node, load the buffer that this key should now be inserted into.
+					
+					bucketNumber = bucketBuffers.getBucketNumForKey(key);
+					bucket = residentBuckets.get(bucketNumber);
 				}
+				residentBuckets.markDirty(bucketNumber);
 			}
+			return bucket;
+		} catch (ClassNotFoundException | IOException e) {
+			throw new RuntimeException("unable to load bucket: "+bucketNumber+" for key "+key, e);
 		}
 	}
 
+	/**
+	 * Swaps in the children of any background splits that have completed, or all of them if <code>waitForAll</code> is
+	 * set. Any children whose entries have changed since the split started are made resident (and dirty) with the latest
+	 * contents.
+	 */
+	private void completeSplits(boolean waitForAll) throws IOException{
+		Iterator<PendingSplit<K, V>> splitIt = pendingSplits.values().iterator();
+		
+		while (splitIt.hasNext()){
+			PendingSplit<K, V> pendingSplit = splitIt.next();
+			
+			if (waitForAll || pendingSplit.isDone()){
+				splitIt.remove();
+				
+				for (Entry<Integer, Map<K, V>> changedChild: bucketBuffers.completeSplit(pendingSplit).entrySet()){
+					residentBuckets.add(changedChild.getKey(), changedChild.getValue(), true);
+				}
+			}
+		}
+	}
+	
 	@Override
 	public V put(K key, V value) {
-		loadBucketForKey(key, true);
-		
-		return currentlyLoadedBucket.put(key, value);
+		return loadBucketForKey(key, true).put(key, value);
 	}
 
 	@Override
 	public long size() {
 		
-		/* calculated by taking the total amount of persisted entries, minus the current loaded persisted
-		 * bucket size plus the in memory bucket size.
+		/* calculated by taking the total amount of persisted entries, then for each resident bucket, swapping its persisted
+		 * size for its in memory size.
 		 */
-		return bucketBuffers.getTotalElements() - bucketBuffers.getSizeOfPersistedBucket(loadedBucketNumber) + currentlyLoadedBucket.size();
+		long size = bucketBuffers.getTotalElements();
+		
+		for (Entry<Integer, Map<K, V>> residentBucket: residentBuckets.getResidentBuckets()){
+			size += residentBucket.getValue().size() - bucketBuffers.getSizeOfPersistedBucket(residentBucket.getKey());
+		}
+		for (Entry<Integer, PendingSplit<K, V>> pendingSplit: pendingSplits.entrySet()){
+			size += pendingSplit.getValue().contents.size() - bucketBuffers.getSizeOfPersistedBucket(pendingSplit.getKey());
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the number of entries in each leaf bucket, including those that have not been written yet. Used to compare
+	 * how evenly the different {@link Layout}s fill their buckets.
+	 */
+	int[] getLeafBucketSizes() throws IOException{
+		completeSplits(true);
+		
+		return bucketBuffers.bucketNodes.values().stream()
+											.filter(Node::isLeaf)
+											.mapToInt(node -> {
+												Map<K, V> residentBucket = residentBuckets.getIfResident(node.getId());
+												
+												return residentBucket != null?residentBucket.size():bucketBuffers.getSizeOfPersistedBucket(node.getId());
+											})
+											.toArray();
+	}
+	
+	/**
+	 * Returns the hit, miss and eviction counts of the resident buckets so that the number of them can be sized.
+	 */
+	public CacheStats getCacheStats(){
+		return residentBuckets.getStats();
+	}
+	
+	/**
+	 * Returns how many bucket loads the key filters have saved and how many they failed to, so that their size can be
+	 * tuned. Both are 0 unless enabled with {@link Options#withKeyFilters(int)}.
+	 */
+	public KeyFilterStats getKeyFilterStats(){
+		return new KeyFilterStats(skippedLoads, falsePositiveLoads);
 	}
 	
 	@Override
 	public Iterable<V> getAllValues(){
+		return () -> Spliterators.iterator(valuesSpliterator());
+	}
+	
+	/**
+	 * Splits by leaf bucket so that the buckets can be loaded by different threads of a parallel stream. Each split loads
+	 * the next buckets of its range in the background whilst the current one is being consumed, up to the read ahead set
+	 * by {@link Options#withReadAhead(int)}.
+	 */
+	@Override
+	public Spliterator<V> valuesSpliterator(){
+		
+		try {
+			completeSplits(true); // so that we only have to consider leaves
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to complete pending bucket splits", e);
+		}
 		
-		int startingBucketLoadedNum = loadedBucketNumber;
-		// manually constructing the iterable for all elements as the Stream based implementation is painful to follow.
-		return new Iterable<V>(){ 
+		// only consider the leaf nodes, filtering out those that have no content
+		int[] leafIds = bucketBuffers.bucketNodes.entrySet().stream()
+											.filter(e -> e.getValue().isLeaf() && (residentBuckets.getIfResident(e.getKey()) != null || bucketBuffers.hasContents(e.getKey())))
+											.mapToInt(e -> e.getKey())
+											.toArray();
 
-			// only consider the leaf nodes
-			private Iterator<Integer> nodeIdIt = bucketBuffers.bucketNodes.entrySet().stream()
-																						.filter(e -> e.getValue().isLeaf() && e.getKey() != startingBucketLoadedNum && Files.exists(e.getValue().fileLocation)) // filter out non-leaves, our starting bucket, and nodes that have no content
-																						.map(e -> e.getKey())
-																						.iterator();
-			private Iterator<V> currentIt = currentlyLoadedBucket.values().iterator();
+		long[] cumulativeSizes = new long[leafIds.length + 1];
+		for (int i = 0; i < leafIds.length; i++){
+			Map<K, V> residentBucket = residentBuckets.getIfResident(leafIds[i]);
 			
-			@Override
-			public Iterator<V> iterator() {
-				return new Iterator<V>(){
-
-					@Override
-					public boolean hasNext() {
-						boolean hasNext = currentIt.hasNext();
-						
-						if (!hasNext){
-							hasNext = nodeIdIt.hasNext();
-							if (hasNext){
-								// load next node into memory
-								
-								int nextNodeId = nodeIdIt.next();
-								try {
-									
-									Map<K, V> nextDataNode = bucketBuffers.loadBucket(nextNodeId);
+			cumulativeSizes[i + 1] = cumulativeSizes[i] + (residentBucket != null?residentBucket.size():bucketBuffers.getSizeOfPersistedBucket(leafIds[i]));
+		}
 									
-									currentIt = nextDataNode.values().iterator();
-								} catch (ClassNotFoundException | IOException e) {
-									throw new RuntimeException("Unable to load node id: "+nextNodeId, e);
-								}
-							}
-						}
+		return new LeafSpliterator(leafIds, cumulativeSizes, 0, leafIds.length);
+	}
 						
-						return hasNext;
-					}
+	/**
+	 * Loads a leaf, preferring the resident copy as it may not have been written yet. Only reads the map so can be called
+	 * from any thread once the map is no longer being changed.
+	 */
+	private Map<K, V> loadLeaf(int leafId){
+		try {
+			Map<K, V> bucket = residentBuckets.getIfResident(leafId);
+			
+			return bucket != null?bucket:bucketBuffers.loadBucket(leafId);
+		} catch (ClassNotFoundException | IOException e) {
+			throw new RuntimeException("Unable to load node id: "+leafId, e);
+		}
+	}
+	
+	/**
+	 * Iterates over the values of the leaves <code>start</code> (inclusive) to <code>end</code> (exclusive) of the
+	 * supplied ids. Only the range of leaves that have not started loading yet is given up when split.
+	 */
+	private class LeafSpliterator implements Spliterator<V> {
+		
+		private final int[] leafIds;
+		private final long[] cumulativeSizes;
+		private final Deque<Future<Map<K, V>>> readAhead;
+		private int nextToLoad;
+		private int end;
+		private Iterator<V> currentIt;
+		
+		private LeafSpliterator(int[] leafIds, long[] cumulativeSizes, int start, int end){
+			this.leafIds = leafIds;
+			this.cumulativeSizes = cumulativeSizes;
+			this.readAhead = new ArrayDeque<Future<Map<K, V>>>();
+			this.nextToLoad = start;
+			this.end = end;
+			this.currentIt = Collections.emptyIterator();
+		}
 
-					@Override
-					public V next() {
+		@Override
+		public boolean tryAdvance(Consumer<? super V> action) {
+			while (!currentIt.hasNext()){
+				if (readAhead.isEmpty() && nextToLoad == end){
+					return false;
+				}
+				currentIt = nextBucket().values().iterator();
+			}
+			action.accept(currentIt.next());
 						
-						return currentIt.next();
-					}
+			return true;
+		}
 					
-				};
+		private Map<K, V> nextBucket(){
+			Map<K, V> bucket;
+			
+			if (readAhead.isEmpty()){
+				bucket = loadLeaf(leafIds[nextToLoad++]);
+			} else{
+				bucket = awaitBucket(readAhead.poll());
 			}
-		};
+			
+			// keep the following buckets loading whilst this one is consumed
+			
+			while (prefetcher != null && readAhead.size() < numReadAheadBuckets && nextToLoad < end){
+				int leafId = leafIds[nextToLoad++];
+				
+				readAhead.add(prefetcher.submit(() -> loadLeaf(leafId)));
+			}
+			return bucket;
+		}
+		
+		private Map<K, V> awaitBucket(Future<Map<K, V>> loadingBucket){
+			try {
+				return loadingBucket.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				
+				throw new RuntimeException("Interrupted waiting for the next bucket to load", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Unable to load the next bucket", e.getCause());
+			}
+		}
+		
+		@Override
+		public Spliterator<V> trySplit() {
+			int mid = (nextToLoad + end) >>> 1;
+			
+			if (mid == nextToLoad){
+				return null;
+			}
+			
+			LeafSpliterator split = new LeafSpliterator(leafIds, cumulativeSizes, mid, end);
+			end = mid;
+			
+			return split;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return cumulativeSizes[end] - cumulativeSizes[nextToLoad]; // ignores the buckets already loading
+		}
+		
+		@Override
+		public int characteristics() {
+			return Spliterator.NONNULL;
+		}
 	}
 	
 	@Override
@@ -168,9 +391,8 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 		 *  over the items in order to group them by their appropriate bucket ids. This is a small price to pay
 		 *  to avoid potentially making big IO pulls for each event.
 		 *  
-		 *  TODO When used with insertion routines like putAllEvents, the bucket numbers may change for each element mid way through the iteration. 
-		 *  This grouping by bucket number therefore will be invalidated. When this happens we should re-evaluate the ordering of the
-		 *  remaining elements in the stream to cater for this change. This is a further optimization
+		 *  When used with insertion routines like putAllEvents, the bucket numbers may change for each element mid way through the iteration
+		 *  as buckets are split. Use reduceAllEvents instead, which regroups the remaining elements of a bucket when it is split.
 		 */
 		Map<Integer, List<V>> buckets = groupIntoBuckets(events, bucketBuffers);
 		
@@ -181,24 +403,419 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 				);
 	}
 	
+	/**
+	 * Applies the events a bucket at a time so that each bucket is loaded at most once per batch. If a bucket is split
+	 * part way through its events, the rest of them are regrouped by the new children and applied a child at a time,
+	 * rather than bouncing between the children. The whole batch is applied before this returns.
+	 *
+	 * When enabled with {@link Options#withParallelReduction(int)}, each bucket of the batch is instead loaded, reduced
+	 * and written back by its own task on a fork join pool so that the IO of the different buckets overlaps. Any buckets
+	 * that end up too big are split afterwards on the calling thread, as splitting changes the tree that all the tasks use.
+	 */
+	@Override
+	public Stream<V> reduceAllEvents(Stream<V> events, BiFunction<V, V, V> reduceFunction) {
+		if (reducer == null){
+			return reduceBucketByBucket(events, reduceFunction);
+		}
+		
+		try{
+			completeSplits(true);
+			
+			Map<Integer, List<V>> buckets = groupIntoBuckets(events, bucketBuffers);
+			
+			// sampled up front as the tasks use the bucket budget, if there is one, to decide which buckets to split
+			
+			buckets.values().forEach(bucketEvents -> bucketEvents.forEach(e -> bucketBuffers.sampleEntry(e.getKey())));
+			
+			List<ForkJoinTask<BucketReduction<K, V>>> reductions = new ArrayList<ForkJoinTask<BucketReduction<K, V>>>(buckets.size());
+			
+			for (Entry<Integer, List<V>> bucketEvents: buckets.entrySet()){
+				int bucketNum = bucketEvents.getKey();
+				
+				// the task takes over any resident copy of the bucket as it may have changes that have not been written yet
+				
+				Map<K, V> residentBucket = residentBuckets.getIfResident(bucketNum);
+				residentBuckets.invalidate(bucketNum);
+				
+				reductions.add(reducer.submit(() -> reduceBucket(bucketNum, residentBucket, bucketEvents.getValue(), reduceFunction)));
+			}
+			
+			List<V> previousValues = new ArrayList<V>();
+			
+			for (ForkJoinTask<BucketReduction<K, V>> reduction: reductions){
+				BucketReduction<K, V> bucketReduction = reduction.join();
+				
+				if (bucketReduction.written){
+					bucketBuffers.recordBucketSize(bucketReduction.bucketNum, bucketReduction.contents.size());
+				} else{
+					bucketBuffers.saveBucket(bucketReduction.bucketNum, bucketReduction.contents); // splits the bucket
+				}
+				previousValues.addAll(bucketReduction.previousValues);
+			}
+			return previousValues.stream();
+		} catch (IOException e){
+			throw new RuntimeException("unable to reduce batch of events", e);
+		}
+	}
+	
+	private Stream<V> reduceBucketByBucket(Stream<V> events, BiFunction<V, V, V> reduceFunction){
+		Deque<Entry<Integer, List<V>>> buckets = new ArrayDeque<Entry<Integer, List<V>>>(groupIntoBuckets(events, bucketBuffers).entrySet());
+		List<V> previousValues = new ArrayList<V>();
+		
+		while (!buckets.isEmpty()){
+			Entry<Integer, List<V>> bucketEvents = buckets.poll();
+			Node bucketNode = bucketBuffers.getBucketNode(bucketEvents.getKey());
+			Iterator<V> eventIt = bucketEvents.getValue().iterator();
+			
+			while (eventIt.hasNext()){
+				V event = eventIt.next();
+				
+				previousValues.add(put(event.getKey(), reduceFunction.apply(event, get(event.getKey()))));
+				
+				if (!bucketNode.isLeaf() && eventIt.hasNext()){
+					// the bucket has just been split so its remaining events now belong to its children. Apply those next,
+					// a child at a time, starting with the child that has just been loaded for this event
+					
+					List<V> remainingEvents = new ArrayList<V>();
+					eventIt.forEachRemaining(remainingEvents::add);
+					
+					Map<Integer, List<V>> children = groupIntoBuckets(remainingEvents.stream(), bucketBuffers);
+					List<V> loadedChildEvents = children.remove(bucketBuffers.getBucketNumForKey(event.getKey()));
+					
+					children.entrySet().forEach(buckets::push);
+					
+					if (loadedChildEvents != null){
+						buckets.push(new SimpleImmutableEntry<Integer, List<V>>(bucketBuffers.getBucketNumForKey(event.getKey()), loadedChildEvents));
+					}
+				}
+			}
+		}
+		return previousValues.stream();
+	}
+	
+	/**
+	 * Run on the reducer pool. Only reads the tree of buckets, which does not change until all the tasks of a batch are
+	 * done, and only writes to its own bucket.
+	 */
+	private BucketReduction<K, V> reduceBucket(int bucketNum, Map<K, V> residentBucket, List<V> events, BiFunction<V, V, V> reduceFunction){
+		try{
+			Map<K, V> bucket = residentBucket != null?residentBucket:bucketBuffers.loadBucket(bucketNum);
+			List<V> previousValues = new ArrayList<V>(events.size());
+			
+			for (V event: events){
+				V previousValue = bucket.get(event.getKey());
+				
+				bucket.put(event.getKey(), reduceFunction.apply(event, previousValue));
+				previousValues.add(previousValue);
+			}
+			
+			boolean written = bucketBuffers.checkBufferHasCapacity(bucket);
+			
+			if (written){
+				bucketBuffers.writeBucket(bucketBuffers.getBucketNode(bucketNum), bucket);
+			}
+			return new BucketReduction<K, V>(bucketNum, bucket, previousValues, written);
+		} catch (ClassNotFoundException | IOException e){
+			throw new RuntimeException("unable to reduce bucket: "+bucketNum, e);
+		}
+	}
+	
+	private static class BucketReduction<K, V> {
+		
+		private final int bucketNum;
+		private final Map<K, V> contents;
+		private final List<V> previousValues;
+		private final boolean written;
+		
+		private BucketReduction(int bucketNum, Map<K, V> contents, List<V> previousValues, boolean written){
+			this.bucketNum = bucketNum;
+			this.contents = contents;
+			this.previousValues = previousValues;
+			this.written = written;
+		}
+	}
+	
 	private static <K extends Serializable, V1 extends Keyable<K> & Serializable> Map<Integer, List<V1>> groupIntoBuckets(Stream<V1> events, BucketBuffers<K, V1> bucketBuffers) {
 		return events
 				.collect(Collectors.groupingBy(e -> bucketBuffers.getBucketNumForKey(e.getKey())));
 	}
 	
 	public void close() throws IOException {
-		// ensure current buffer is persisted
+		// ensure all changed buffers are persisted
+		
+		try{
+			completeSplits(true);
+			
+			if (bucketBuffers.getBucketBudget() != null){
+				LOG.log(Level.INFO, "closing with "+residentBuckets.getStats().getResidentBuckets()+" resident buckets, each with a budget of "+bucketBuffers.getBucketBudget());
+			}
+			
+			residentBuckets.close();
+			
+			if (bucketBuffers.hasKeyFilters()){
+				LOG.log(Level.INFO, "closing key filters: "+getKeyFilterStats());
+			}
+		} finally{
+			if (splitter != null){
+				splitter.shutdown();
+			}
+			if (reducer != null){
+				reducer.shutdown();
+			}
+			bucketBuffers.close();
+		}
+		
+		// only once everything has been written, so that the manifest matches the bucket files
+		
+		bucketBuffers.writeManifest();
+	}
+	
+	/**
+	 * Tuning options for a {@link DiskBackedMap}. Instances are immutable, use the <code>with</code> methods to create
+	 * modified copies.
+	 */
+	public static final class Options {
+		
+		public static final Options DEFAULT = new Options(1, EvictionPolicy.Type.LRU, 0, false, Layout.HASH_TREE, 0, 0, 0, 0);
+		
+		private final int numResidentBuckets;
+		private final EvictionPolicy.Type evictionPolicy;
+		private final int maxBucketWritesInFlight;
+		private final boolean backgroundSplitting;
+		private final Layout layout;
+		private final int keyFilterBitsPerKey;
+		private final int numReadAheadBuckets;
+		private final int reductionParallelism;
+		private final long maxBucketBytes;
+		
+		private Options(int numResidentBuckets, EvictionPolicy.Type evictionPolicy, int maxBucketWritesInFlight, boolean backgroundSplitting, Layout layout, int keyFilterBitsPerKey, int numReadAheadBuckets, int reductionParallelism, long maxBucketBytes){
+			this.numResidentBuckets = numResidentBuckets;
+			this.evictionPolicy = evictionPolicy;
+			this.maxBucketWritesInFlight = maxBucketWritesInFlight;
+			this.backgroundSplitting = backgroundSplitting;
+			this.layout = layout;
+			this.keyFilterBitsPerKey = keyFilterBitsPerKey;
+			this.numReadAheadBuckets = numReadAheadBuckets;
+			this.reductionParallelism = reductionParallelism;
+			this.maxBucketBytes = maxBucketBytes;
+		}
+		
+		/**
+		 * Keeps up to <code>numResidentBuckets</code> buckets in memory at once, choosing which to evict using the
+		 * supplied policy. Each bucket can hold up to the maximum number of in memory items of the map.
+		 */
+		public Options withResidentBuckets(int numResidentBuckets, EvictionPolicy.Type evictionPolicy){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, keyFilterBitsPerKey, numReadAheadBuckets, reductionParallelism, maxBucketBytes);
+		}
+		
+		/**
+		 * Writes evicted buckets to disk on a background thread, allowing up to <code>maxBucketWritesInFlight</code> of
+		 * them to be queued before eviction blocks. 0 writes synchronously on the calling thread.
+		 */
+		public Options withWriteBehind(int maxBucketWritesInFlight){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, keyFilterBitsPerKey, numReadAheadBuckets, reductionParallelism, maxBucketBytes);
+		}
+		
+		/**
+		 * When set, buckets that get too big are split into their children on a background thread. Until the split
+		 * completes, the contents of the bucket are kept in memory (in addition to the resident buckets) and keys carry
+		 * on being routed to it.
+		 */
+		public Options withBackgroundSplitting(boolean backgroundSplitting){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, keyFilterBitsPerKey, numReadAheadBuckets, reductionParallelism, maxBucketBytes);
+		}
+		
+		/**
+		 * Chooses how keys are mapped to buckets and how buckets are split when they get too big.
+		 */
+		public Options withLayout(Layout layout){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, keyFilterBitsPerKey, numReadAheadBuckets, reductionParallelism, maxBucketBytes);
+		}
+		
+		/**
+		 * Keeps a bloom filter of the keys written to each bucket so that getting a key that is not in the map does not
+		 * have to load its bucket. Each filter takes <code>bitsPerKey</code> bits per key in its bucket; 10 gives roughly
+		 * 1% false positives. 0 disables them.
+		 */
+		public Options withKeyFilters(int bitsPerKey){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, bitsPerKey, numReadAheadBuckets, reductionParallelism, maxBucketBytes);
+		}
+		
+		/**
+		 * When iterating over the values, loads up to <code>numBuckets</code> of the following buckets on background
+		 * threads whilst the current one is consumed. 0 loads each bucket when it is reached.
+		 */
+		public Options withReadAhead(int numBuckets){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, keyFilterBitsPerKey, numBuckets, reductionParallelism, maxBucketBytes);
+		}
+		
+		/**
+		 * Reduces each bucket of a batch given to {@link DiskBackedMap#reduceAllEvents(Stream, BiFunction)} on its own task,
+		 * using a pool of <code>parallelism</code> threads. 0 reduces the buckets one at a time on the calling thread.
+		 */
+		public Options withParallelReduction(int parallelism){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, keyFilterBitsPerKey, numReadAheadBuckets, parallelism, maxBucketBytes);
+		}
+		
+		/**
+		 * Splits a bucket once the estimated memory retained by its entries reaches <code>maxBucketBytes</code> (see
+		 * {@link MemoryBudget}) rather than once it holds the maximum number of in memory items of the map. 0 uses the
+		 * item count.
+		 */
+		public Options withBucketBudget(long maxBucketBytes){
+			return new Options(numResidentBuckets, evictionPolicy, maxBucketWritesInFlight, backgroundSplitting, layout, keyFilterBitsPerKey, numReadAheadBuckets, reductionParallelism, maxBucketBytes);
+		}
+		
+		Layout getLayout(){
+			return layout;
+		}
+		
+		int getKeyFilterBitsPerKey(){
+			return keyFilterBitsPerKey;
+		}
+		
+		long getMaxBucketBytes(){
+			return maxBucketBytes;
+		}
+		
+		<K extends Serializable, V extends Keyable<K>> BucketStore<K, V> createBucketStore(IOFactory<V> ioFactory){
+			return wrapBucketStore(new FileBucketStore<K, V>(ioFactory));
+		}
+			
+		/**
+		 * Adds the write behind of these options, if any, to the supplied store.
+		 */
+		<K extends Serializable, V extends Keyable<K>> BucketStore<K, V> wrapBucketStore(BucketStore<K, V> bucketStore){
+			if (maxBucketWritesInFlight > 0){
+				bucketStore = new WriteBehindBucketStore<K, V>(bucketStore, maxBucketWritesInFlight);
+			}
+			return bucketStore;
+		}
+	}
+	
+	/**
+	 * How the buckets of the map are organised. See {@link BucketIndex} for the details of each.
+	 */
+	public static enum Layout {
+		/**
+		 * A tree of buckets with 11 children per branch, walked from the root on each lookup
+		 */
+		HASH_TREE(11) {
+			@Override
+			BucketIndex createIndex(Node root) {
+				return new BucketIndex.HashTree(root);
+			}
+		},
+		/**
+		 * A directory of buckets indexed directly by a mixed hash of the key, with buckets split in half when full
+		 */
+		EXTENDIBLE_HASHING(BucketIndex.ExtendibleHashDirectory.BRANCHING_SIZE) {
+			@Override
+			BucketIndex createIndex(Node root) {
+				return new BucketIndex.ExtendibleHashDirectory(root);
+			}
+		};
+		
+		private final int branchingSize;
+		
+		private Layout(int branchingSize){
+			this.branchingSize = branchingSize;
+		}
+		
+		abstract BucketIndex createIndex(Node root);
+	}
+	
+	public static final class KeyFilterStats {
+		
+		private final long skippedLoads;
+		private final long falsePositiveLoads;
+		
+		KeyFilterStats(long skippedLoads, long falsePositiveLoads){
+			this.skippedLoads = skippedLoads;
+			this.falsePositiveLoads = falsePositiveLoads;
+		}
+		
+		/**
+		 * The number of gets of absent keys that returned without loading their bucket.
+		 */
+		public long getSkippedLoads() {
+			return skippedLoads;
+		}
+		
+		/**
+		 * The number of gets of absent keys that loaded their bucket as its filter could not rule the key out.
+		 */
+		public long getFalsePositiveLoads() {
+			return falsePositiveLoads;
+		}
+		
+		/**
+		 * The proportion of gets of absent keys (whose buckets were not resident) that the filters failed to rule out.
+		 */
+		public double getFalsePositiveRate() {
+			long absentKeyLookups = skippedLoads + falsePositiveLoads;
+			
+			return absentKeyLookups == 0?0:(double)falsePositiveLoads / absentKeyLookups;
+		}
 		
-		bucketBuffers.saveBucket(loadedBucketNumber, currentlyLoadedBucket);
+		@Override
+		public String toString(){
+			return "skipped loads: "+skippedLoads+", false positive loads: "+falsePositiveLoads+String.format(" (%.2f%%)", getFalsePositiveRate() * 100);
+		}
+	}
+	
+	public static final class CacheStats {
+		
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long cleanEvictions;
+		private final int residentBuckets;
+		
+		CacheStats(long hits, long misses, long evictions, long cleanEvictions, int residentBuckets){
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.cleanEvictions = cleanEvictions;
+			this.residentBuckets = residentBuckets;
+		}
+		
+		public long getHits() {
+			return hits;
+		}
+		
+		public long getMisses() {
+			return misses;
+		}
+		
+		public long getEvictions() {
+			return evictions;
+		}
+		
+		/**
+		 * The number of evicted buckets that had not changed and so were dropped without being written.
+		 */
+		public long getCleanEvictions() {
+			return cleanEvictions;
+		}
+		
+		public int getResidentBuckets() {
+			return residentBuckets;
+		}
+		
+		@Override
+		public String toString(){
+			return "hits: "+hits+", misses: "+misses+", evictions: "+evictions+" ("+cleanEvictions+" clean), resident buckets: "+residentBuckets;
+		}
 	}
 
 	/**
 	 * An abstraction that works like a file system based tree where directories are branching nodes and files are
 	 * serialized contents of the memory units stored in that node. Branches have to be rebalanced when a memory unit
-	 * gets too big and needs to be split. This is a major performance overhead and really should be performed on a separate
-	 * thread rather than blocking the client thread. As the current system design has this performed on a separate thread
-	 * anyway this shouldn't be too much of an issue. Note that the searching for each node works using hashes from the key
-	 * multipled by the depth of the node mod-ed to the branching factor. This way any re balancing when a memory unit gets too
+	 * gets too big and needs to be split. This is a major performance overhead so can optionally be performed on a separate
+	 * thread (see {@link #splitInBackground(int, Map, ExecutorService)}) rather than blocking the client thread. Note that the searching for each node works using hashes from the key
+	 * multipled by the depth of the node mod-ed to the branching factor (or, for the {@link Layout#EXTENDIBLE_HASHING} layout,
+	 * an array lookup using a mixed hash of the key - see {@link BucketIndex}). This way any re balancing when a memory unit gets too
 	 * big is isolated to the node of the existing memory unit. The indexing is performed purely on the hash of the key 
 	 * to determine the bucket at each node rather than any binary search that would become invalidated when the tree structure
 	 * changes.
@@ -219,7 +836,8 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 
 		private static final Logger LOG = Logger.getLogger(BucketBuffers.class.getName());
 		
-		private final static int DEFAULT_BRANCHING_SIZE = 11; // make this a prime as it helps with distributing the nested buckets based on their hashes
+		private static final String MANIFEST_FILE_NAME = "manifest.dat";
+		private static final int MANIFEST_VERSION = 1;
 		
 		private long totalElements; // unlikely to need more than 32 bits (2B items) but is this is big data distributed over many many nodes, this is very possible
 		private final Map<Integer, Integer> bucketSizes;
@@ -227,10 +845,18 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 		private final Node head;
 		private final int maxElementsInMemoryUnit;
 		private int maxBucketId;
-		private final IOFactory<V> ioFactory;
+		private final BucketStore<K, V> bucketStore;
+		private final BucketIndex bucketIndex;
+		private final Layout layout;
+		private final int keyFilterBitsPerKey;
+		private final MemoryBudget bucketBudget;
 		
 		BucketBuffers(Path rootFolder, int maxElementsInMemoryUnit, IOFactory<V> ioFactory){
-			this(DEFAULT_BRANCHING_SIZE, rootFolder, maxElementsInMemoryUnit, ioFactory);
+			this(rootFolder, maxElementsInMemoryUnit, new FileBucketStore<K, V>(ioFactory));
+		}
+		
+		BucketBuffers(Path rootFolder, int maxElementsInMemoryUnit, BucketStore<K, V> bucketStore){
+			this(rootFolder, maxElementsInMemoryUnit, bucketStore, Layout.HASH_TREE, 0, 0);
 		}
 		
 		public int getSizeOfPersistedBucket(int bucketNumber) {
@@ -243,16 +869,24 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 			return persistedBucketSize;
 		}
 
-		private BucketBuffers(int branchingSize, Path rootFolder, int maxElementsInMemoryUnit, IOFactory<V> ioFactory){
+		/**
+		 * @param keyFilterBitsPerKey the size of the {@link KeyFilter} kept for each leaf bucket, or 0 to not keep them
+		 * @param maxBucketBytes the estimated size in bytes at which a bucket is split, or 0 to split at <code>maxElementsInMemoryUnit</code>
+		 */
+		BucketBuffers(Path rootFolder, int maxElementsInMemoryUnit, BucketStore<K, V> bucketStore, Layout layout, int keyFilterBitsPerKey, long maxBucketBytes){
 			this.bucketSizes = new HashMap<Integer, Integer>();
 			this.bucketNodes = new HashMap<Integer, Node>();
 			this.totalElements = 0;
-			this.head = new Node(0, branchingSize, createNewNodeFile(0, rootFolder), 0);
+			this.head = new Node(0, layout.branchingSize, createNewNodeFile(0, rootFolder), 0);
+			this.bucketIndex = layout.createIndex(head);
+			this.layout = layout;
 			this.bucketNodes.put(0, head);
 			this.bucketSizes.put(0, 0);
 			this.maxElementsInMemoryUnit = maxElementsInMemoryUnit;
 			this.maxBucketId = 0;
-			this.ioFactory = ioFactory;
+			this.bucketStore = bucketStore;
+			this.keyFilterBitsPerKey = keyFilterBitsPerKey;
+			this.bucketBudget = maxBucketBytes > 0?new MemoryBudget("bucket", maxBucketBytes):null;
 		}
 		
 		/**
@@ -279,29 +913,32 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 		}
 		
 		private boolean checkBufferHasCapacity(Map<K, V> buffer){
+			if (bucketBudget != null){
+				return bucketBudget.hasCapacityFor(buffer.size());
+			}
 			return buffer.size() < maxElementsInMemoryUnit;
 		}
+		
+		/**
+		 * Records the size of an entry being put so that the number of entries that fit in the bucket budget, if there is
+		 * one, follows the size of the keys actually seen.
+		 */
+		void sampleEntry(K key){
+			if (bucketBudget != null){
+				bucketBudget.sample(key);
+			}
+		}
+		
+		MemoryBudget getBucketBudget(){
+			return bucketBudget;
+		}
 
 		public int getBucketNumForKey(K key){
-			return BucketBuffers.getBucketNumForKey(head, key);
+			return bucketIndex.getBucketForKey(key).id;
 		}
 		
 		public static <K> int getBucketNumForKey(Node node, K key){
-			if (node.isLeaf()){
-				// we have a terminal node which is a memory unit.
-				
-				return node.id;
-			} else{
-				// This is a branching node, re hash this again based the natural hash shifted to the right by the depth of the node and AND-ed with 0xF mask shifted to the left and recurse. 
-				// Think of this as a sliding window of 8 bits across the hash shifted back to where it was. If we didnt bit shift then all
-				// nested buckets would hash to the same entry. Note that this limits us to 32 depths before things start going to 0 but 
-				
-				int newHash = (key.hashCode() & (0xF << node.depth)) >> node.depth;
-				
-				int branchBucket = Math.abs(newHash % node.getNumChildren());
-				
-				return getBucketNumForKey(node.getChild(branchBucket), key);
-			}
+			return new BucketIndex.HashTree(node).getBucketForKey(key).id;
 		}
 		
 		/** Returns the total number of elements that have been persisted in the buckets
@@ -321,7 +958,31 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 		}
 
 		public Map<K, V> loadBucket(int bucketNum) throws ClassNotFoundException, IOException {
-			return loadBucket(getBucketFile(bucketNum));
+			return bucketStore.read(getBucketNode(bucketNum));
+		}
+		
+		boolean hasKeyFilters(){
+			return keyFilterBitsPerKey > 0;
+		}
+		
+		/**
+		 * Returns false if the key has definitely not been written to the bucket. Only valid if {@link #hasKeyFilters()}.
+		 */
+		boolean mightContain(int bucketNum, K key){
+			return getBucketNode(bucketNum).keyFilter.mightContain(key);
+		}
+		
+		private void updateKeyFilter(Node bucketNode, Map<K, V> bucketContents){
+			if (hasKeyFilters()){
+				bucketNode.keyFilter = KeyFilter.of(bucketContents.keySet(), keyFilterBitsPerKey);
+			}
+		}
+		
+		/**
+		 * Returns true if the bucket has had anything written to it
+		 */
+		public boolean hasContents(int bucketNum) {
+			return bucketStore.exists(getBucketNode(bucketNum));
 		}
 
 		public void saveBucket(int loadedBucketNumber, Map<K, V> currentlyLoadedBucket) throws IOException {
@@ -330,28 +991,14 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 		
 		private void saveBucket(Node bucketNode, Map<K, V> bucketContents) throws IOException{
 			
-			if (bucketContents.size() < maxElementsInMemoryUnit){ // just persist to the current node as a memory file.
+			if (checkBufferHasCapacity(bucketContents)){ // just persist to the current node as a memory file.
 				
 				LOG.log(Level.INFO, "saving bucket of "+bucketContents.size()+" to existing storage unit at node: id: "+bucketNode.id+" - "+bucketNode.fileLocation);
 				
-				// as these are relatively small files it's more performant to just use byte[] buffers rather than mapped byte buffers. This is synchronized however so a
-				// more performant implementation could be considered that writes to a buffer but the Files.write method is very convenient and, assuming this is on the final
-				// worker thread, is not on the critical path.
-				
-				try(Persister<V> persister = ioFactory.createPersister(bucketNode.fileLocation.toUri())){
-				
-					for (V item: bucketContents.values()){
-						persister.consume(item);
-					}
-				}
-				int newBucketSize = bucketContents.size();
-				Integer previousBucketSize = bucketSizes.put(bucketNode.id, newBucketSize);
-				
-				if (previousBucketSize != null){
-					totalElements -= previousBucketSize;
-				}
+				// the store may write this in the background so the contents must not be changed from here on.
 				
-				totalElements += newBucketSize;
+				writeBucket(bucketNode, bucketContents);
+				recordBucketSize(bucketNode.id, bucketContents.size());
 				
 			} else {
 				
@@ -365,7 +1012,9 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 				// the bucket memory unit has got too big. promote to branching node and add the contents of
 				// the memory node to data across the 
 				
+				bucketStore.delete(bucketNode);
 				maxBucketId = bucketNode.promoteToBranchNode(maxBucketId);
+				bucketIndex.childrenAttached(bucketNode);
 				bucketSizes.put(bucketNode.id, 0); // this bucket no longer contains any elements
 				
 				// add into the node cache
@@ -383,7 +1032,7 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 				// now iterate over the children and add the bucket contents to the appropriate bucket it hashes
 				// to based on this depth
 				
-				Map<Integer, List<Entry<K, V>>> buckets = groupIntoBuckets(bucketNode, bucketContents.entrySet(), this);
+				Map<Integer, List<Entry<K, V>>> buckets = groupIntoChildren(bucketNode, bucketContents.entrySet());
 				
 				buckets.entrySet().stream()
 					.forEach(be -> {
@@ -397,30 +1046,293 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 			}
 		}
 		
-		private static <K extends Serializable, V extends Keyable<K>> Map<Integer, List<Entry<K, V>>> groupIntoBuckets(Node parentNode, Collection<? extends Entry<K, V>> events, BucketBuffers<K, V> bucketBuffers) {
-			return StreamSupport.stream(events.spliterator(), false)
-					.collect(Collectors.groupingBy(e -> BucketBuffers.getBucketNumForKey(parentNode, e.getKey())));
+		/**
+		 * Writes the contents of a leaf bucket that is not too big without updating the sizes of the buckets, which must
+		 * then be done with {@link #recordBucketSize(int, int)}. Unlike the rest of this class, different buckets can
+		 * be written from different threads at the same time.
+		 */
+		void writeBucket(Node bucketNode, Map<K, V> bucketContents) throws IOException{
+			bucketStore.write(bucketNode, bucketContents);
+			updateKeyFilter(bucketNode, bucketContents);
 		}
 		
-		private Map<K, V> loadBucket(Path bucketFile) throws IOException, ClassNotFoundException{
+		void recordBucketSize(int bucketNum, int newBucketSize){
+			Integer previousBucketSize = bucketSizes.put(bucketNum, newBucketSize);
 			
-			if (Files.exists(bucketFile)){
-				try(Feeder<V> feeder = ioFactory.createFeeder(bucketFile.toUri())){
+			if (previousBucketSize != null){
+				totalElements -= previousBucketSize;
+			}
+			
+			totalElements += newBucketSize;
+		}
+		
+		void close() throws IOException {
+			bucketStore.close();
+		}
+		
+		/**
+		 * Rebuilds the buffers of a map previously closed in <code>rootFolder</code> from the manifest it wrote, without
+		 * reading any of the bucket files. The manifest is removed once read as the bucket files stop matching it as soon
+		 * as the map is changed. It is written again when the map is closed.
+		 */
+		static <K extends Serializable, V extends Keyable<K>> BucketBuffers<K, V> open(Path rootFolder, int maxElementsInMemoryUnit, BucketStore<K, V> bucketStore, Layout layout, int keyFilterBitsPerKey, long maxBucketBytes) throws IOException{
+			BucketBuffers<K, V> bucketBuffers = new BucketBuffers<K, V>(rootFolder, maxElementsInMemoryUnit, bucketStore, layout, keyFilterBitsPerKey, maxBucketBytes);
+			
+			bucketBuffers.readManifest();
+			
+			return bucketBuffers;
+		}
+		
+		private Path getManifestFile(){
+			return head.fileLocation.resolveSibling(MANIFEST_FILE_NAME);
+		}
+		
+		/**
+		 * Writes the tree of nodes, the sizes of the leaf buckets and their key filters next to the bucket files. Must only
+		 * be called once all the buckets have been written.
+		 */
+		void writeManifest() throws IOException{
+			Path manifestFile = getManifestFile();
+			Path tmpManifestFile = manifestFile.resolveSibling(MANIFEST_FILE_NAME+".tmp");
+			
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpManifestFile)))){
+				out.writeInt(MANIFEST_VERSION);
+				out.writeUTF(layout.name());
+				out.writeBoolean(hasKeyFilters());
+				out.writeLong(totalElements);
+				out.writeInt(maxBucketId);
 				
-					Map<K, V> contents = new HashMap<K, V>();
-					while(feeder.hasNext()){
-						V nextItem = feeder.next();
-						contents.put(nextItem.getKey(), nextItem);
-					}
-					
-					return contents;
+				writeNode(head, out);
+			}
+			
+			// so that a crash whilst writing never leaves a partial manifest behind
+			
+			Files.move(tmpManifestFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			LOG.log(Level.INFO, "written manifest of "+bucketNodes.size()+" nodes holding "+totalElements+" items to "+manifestFile);
+		}
+		
+		private void writeNode(Node node, DataOutput out) throws IOException{
+			out.writeBoolean(node.isLeaf());
+			
+			if (node.isLeaf()){
+				out.writeInt(getSizeOfPersistedBucket(node.id));
+				
+				if (hasKeyFilters()){
+					node.keyFilter.writeTo(out);
 				}
+			} else{
+				out.writeInt(node.getChild(0).id); // the ids of the children always follow on from each other
+				
+				for (int i = 0; i < node.getNumChildren(); i++){
+					writeNode(node.getChild(i), out);
+				}
+			}
+		}
+		
+		private void readManifest() throws IOException{
+			Path manifestFile = getManifestFile();
+			
+			if (!Files.exists(manifestFile)){
+				throw new NoSuchFileException(manifestFile.toString(), null, "no manifest to open the map from. It was either never closed or is still open");
+			}
+			
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestFile)))){
+				int version = in.readInt();
+				
+				if (version != MANIFEST_VERSION){
+					throw new IOException("Unable to read manifest "+manifestFile+" of version "+version+". Only version "+MANIFEST_VERSION+" is supported");
+				}
+				
+				String manifestLayout = in.readUTF();
+				
+				if (!layout.name().equals(manifestLayout)){
+					throw new IllegalArgumentException("The map in "+manifestFile.getParent()+" was created with the "+manifestLayout+" layout but is being opened with "+layout);
+				}
+				
+				boolean manifestHasKeyFilters = in.readBoolean();
+				
+				totalElements = in.readLong();
+				maxBucketId = in.readInt();
+				
+				readNode(head, in, manifestHasKeyFilters);
+			}
+			
+			Files.delete(manifestFile);
+			
+			LOG.log(Level.INFO, "opened map of "+bucketNodes.size()+" nodes holding "+totalElements+" items from "+manifestFile);
+		}
+		
+		private void readNode(Node node, DataInput in, boolean manifestHasKeyFilters) throws IOException{
+			if (in.readBoolean()){
+				bucketSizes.put(node.id, in.readInt());
+				
+				KeyFilter keyFilter = manifestHasKeyFilters?KeyFilter.readFrom(in):KeyFilter.UNKNOWN;
 				
+				if (hasKeyFilters()){
+					node.keyFilter = keyFilter;
+				}
 			} else{
-				return new HashMap<K, V>();
+				// replay the split of this node so that the index sees the same sequence of splits as when it was written
+				
+				Node[] children = node.createChildren(in.readInt() - 1);
+				
+				node.attachChildren(children);
+				bucketIndex.childrenAttached(node);
+				bucketSizes.put(node.id, 0);
+				
+				for (Node child: children){
+					bucketNodes.put(child.id, child);
+					
+					readNode(child, in, manifestHasKeyFilters);
+				}
+			}
+		}
+		
+		/**
+		 * Starts splitting the bucket into child buckets on the supplied executor. The child nodes are allocated straight
+		 * away but are not added to the tree until {@link #completeSplit(PendingSplit)} is called, so keys are routed to
+		 * the existing bucket until then. The bucket's contents are copied so the caller can carry on changing them.
+		 */
+		PendingSplit<K, V> splitInBackground(int bucketNum, Map<K, V> bucketContents, ExecutorService splitter) throws IOException {
+			Node parent = getBucketNode(bucketNum);
+			
+			LOG.log(Level.INFO, "current bucket is too big with "+bucketContents.size()+" items. Splitting in the background at node: id: "+parent.id+" - "+parent.fileLocation);
+			
+			Node[] children = parent.createChildren(maxBucketId);
+			maxBucketId += children.length;
+			
+			Map<K, V> snapshot = new HashMap<K, V>(bucketContents);
+			
+			Future<int[]> childSizes = splitter.submit(() -> {
+				// partition the snapshot into the children and write them out. Nothing here touches the tree.
+				
+				List<Map<K, V>> partitions = partition(bucketIndex, parent, snapshot.values(), null);
+				int[] sizes = new int[children.length];
+				
+				for (int i = 0; i < children.length; i++){
+					if (!partitions.get(i).isEmpty()){
+						bucketStore.write(children[i], partitions.get(i));
+						updateKeyFilter(children[i], partitions.get(i)); // seen by the client thread once it has waited on the split
+					}
+					sizes[i] = partitions.get(i).size();
+				}
+				bucketStore.delete(parent); // the parent is a branch from now on
+				
+				return sizes;
+			});
+			
+			return new PendingSplit<K, V>(bucketIndex, parent, children, bucketContents, childSizes);
+		}
+		
+		/**
+		 * Waits for the split to finish and then adds its children to the tree in place of the split bucket.
+		 * @return the latest contents of each child that has changed since the split started, keyed by bucket number.
+		 */
+		Map<Integer, Map<K, V>> completeSplit(PendingSplit<K, V> split) throws IOException {
+			
+			int[] childSizes;
+			try {
+				childSizes = split.childSizes.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				
+				throw new InterruptedIOException("interrupted waiting for bucket "+split.parent.id+" to split");
+			} catch (ExecutionException e) {
+				throw new IOException("unable to split bucket "+split.parent.id, e.getCause());
+			}
+			
+			Integer previousBucketSize = bucketSizes.put(split.parent.id, 0); // this bucket no longer contains any elements
+			if (previousBucketSize != null){
+				totalElements -= previousBucketSize;
+			}
+			
+			split.parent.attachChildren(split.children);
+			bucketIndex.childrenAttached(split.parent);
+			
+			for (int i = 0; i < split.children.length; i++){
+				Node child = split.children[i];
+				
+				Node existingNode = bucketNodes.put(child.id, child);
+				
+				if (existingNode != null){
+					throw new IllegalStateException("Trying to insert a new node: "+child.toString()+" but there is already node indexed: "+existingNode);
+				}
+				bucketSizes.put(child.id, childSizes[i]);
+				totalElements += childSizes[i];
+			}
+			
+			List<Map<K, V>> latestContents = partition(bucketIndex, split.parent, split.contents.values(), split.changedChildren);
+			
+			Map<Integer, Map<K, V>> changedChildren = new HashMap<Integer, Map<K, V>>();
+			for (int i = 0; i < split.children.length; i++){
+				if (split.changedChildren[i]){
+					changedChildren.put(split.children[i].id, latestContents.get(i));
+				}
+			}
+			
+			LOG.log(Level.INFO, "completed split of node: id: "+split.parent.id+" with "+changedChildren.size()+" children changed since it started");
+			
+			return changedChildren;
+		}
+		
+		/**
+		 * Groups the values by the child of the parent that they hash to. Only the children flagged in
+		 * <code>childrenToInclude</code> are populated, or all of them if it is null.
+		 */
+		private static <K, V extends Keyable<K>> List<Map<K, V>> partition(BucketIndex bucketIndex, Node parent, Collection<V> values, boolean[] childrenToInclude){
+			List<Map<K, V>> partitions = new ArrayList<Map<K, V>>(parent.getBranchingSize());
+			
+			for (int i = 0; i < parent.getBranchingSize(); i++){
+				partitions.add(new HashMap<K, V>());
+			}
+			
+			for (V value: values){
+				int childIndex = bucketIndex.getChildIndexForKey(parent, value.getKey());
+				
+				if (childrenToInclude == null || childrenToInclude[childIndex]){
+					partitions.get(childIndex).put(value.getKey(), value);
+				}
+			}
+			return partitions;
+		}
+		
+		/**
+		 * A bucket that is being split in the background, along with its live contents which carry on being used until
+		 * the split completes.
+		 */
+		static class PendingSplit<K, V> {
+			
+			private final BucketIndex bucketIndex;
+			private final Node parent;
+			private final Node[] children;
+			private final Map<K, V> contents;
+			private final boolean[] changedChildren;
+			private final Future<int[]> childSizes;
+			
+			private PendingSplit(BucketIndex bucketIndex, Node parent, Node[] children, Map<K, V> contents, Future<int[]> childSizes){
+				this.bucketIndex = bucketIndex;
+				this.parent = parent;
+				this.children = children;
+				this.contents = contents;
+				this.changedChildren = new boolean[children.length];
+				this.childSizes = childSizes;
+			}
+			
+			void markChanged(K key){
+				changedChildren[bucketIndex.getChildIndexForKey(parent, key)] = true;
+			}
+			
+			boolean isDone(){
+				return childSizes.isDone();
 			}
 		}
 		
+		private Map<Integer, List<Entry<K, V>>> groupIntoChildren(Node parentNode, Collection<? extends Entry<K, V>> events) {
+			return StreamSupport.stream(events.spliterator(), false)
+					.collect(Collectors.groupingBy(e -> parentNode.getChild(bucketIndex.getChildIndexForKey(parentNode, e.getKey())).id));
+		}
+		
 		static class Node {
 			
 			private final int id;
@@ -428,6 +1340,7 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 			private int numChildren;
 			private final Path fileLocation;
 			private final int depth;
+			private KeyFilter keyFilter;
 			
 			Node(int id, int branchingSize, Path fileLocation, int depth){
 				
@@ -441,6 +1354,26 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 				this.numChildren = 0;
 				this.fileLocation = fileLocation;
 				this.depth = depth;
+				this.keyFilter = KeyFilter.EMPTY;
+			}
+			
+			public int getId() {
+				return id;
+			}
+			
+			public Path getFileLocation() {
+				return fileLocation;
+			}
+			
+			public int getDepth() {
+				return depth;
+			}
+			
+			/**
+			 * The number of children this node has, or will have once it is split
+			 */
+			public int getBranchingSize() {
+				return children.length;
 			}
 
 			public boolean isLeaf() {
@@ -459,24 +1392,44 @@ public class DiskBackedMap<K extends Serializable, V extends SimpleMap.Keyable<K
 			
 			public int promoteToBranchNode(int maxId) throws IOException{
 				assert isLeaf();
-				numChildren = children.length;
 				
-				// delete the existing file and change it to a directory. This file will be loaded in memory already
+				attachChildren(createChildren(maxId));
 				
-				Files.deleteIfExists(fileLocation);
-				Files.createDirectory(fileLocation);
+				return maxId + children.length;
+			}
+			
+			/**
+			 * The directory that the files of this node's children are kept in. This sits alongside this node's own file so
+			 * that the children can be written whilst it still exists. It is only created once a child is written to it, so
+			 * stores that do not keep a file per bucket never create it.
+			 */
+			public Path getBranchDirectory() {
+				return fileLocation.resolveSibling(String.valueOf(id));
+			}
+			
+			/**
+			 * Creates, but does not attach, the children of this node with ids following on from <code>maxId</code>.
+			 */
+			Node[] createChildren(int maxId) throws IOException{
+				Path branchDirectory = getBranchDirectory();
 				
 				int newDepth = depth + 1;
 				
-				for (int i = 0; i < children.length; i++){
+				Node[] newChildren = new Node[children.length];
+				for (int i = 0; i < newChildren.length; i++){
 					maxId++;
 					
-					children[i] = new Node(maxId, children.length, BucketBuffers.createNewNodeFile(maxId, fileLocation), newDepth);
-					
-					LOG.log(Level.INFO, "creating new file "+children[i].fileLocation+" for bucket"+children[i] .id);
+					newChildren[i] = new Node(maxId, children.length, branchDirectory.resolve(BucketBuffers.getFileName(maxId)), newDepth);
 				}
+				return newChildren;
+			}
 				
-				return maxId;
+			void attachChildren(Node[] newChildren){
+				assert isLeaf();
+				assert newChildren.length == children.length;
+				
+				System.arraycopy(newChildren, 0, children, 0, children.length);
+				numChildren = children.length;
 			}
 		}
 	}
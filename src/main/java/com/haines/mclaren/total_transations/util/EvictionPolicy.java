@@ -0,0 +1,288 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which of a bounded set of resident items should be evicted to make room for a new one. The policy is only told
+ * about items; the owner of the items is responsible for actually dropping (or persisting) whatever is returned from
+ * {@link #evict()}.
+ *
+ * A policy tracks the keys of a single window, so it is only ever called from the thread of the worker that owns it.
+ * @author haines
+ *
+ * @param <T>
+ */
+//@NotThreadSafe
+public interface EvictionPolicy<T> {
+	
+	/**
+	 * Records that a resident item has been used.
+	 */
+	void recordAccess(T item);
+	
+	/**
+	 * Records that an item has become resident.
+	 */
+	void add(T item);
+	
+	/**
+	 * Stops tracking an item without it being evicted, for example because it no longer exists.
+	 */
+	void remove(T item);
+	
+	/**
+	 * Chooses a resident item to evict and stops tracking it. The item most recently added is never chosen unless it is the
+	 * only one being tracked.
+	 * @return the item to evict or null if nothing is being tracked
+	 */
+	T evict();
+	
+	public static enum Type {
+		/**
+		 * Evicts the least recently used item
+		 */
+		LRU {
+			@Override
+			public <T> EvictionPolicy<T> create(int capacity) {
+				return new LeastRecentlyUsed<T>();
+			}
+		},
+		/**
+		 * A small LRU admission window in front of a segmented LRU main region. Items leaving the window only displace an
+		 * item from the main region if they have been used more often, as estimated by a {@link FrequencySketch}. This
+		 * keeps frequently used items resident through scans of items that are only used once.
+		 */
+		WINDOWED_TINY_LFU {
+			@Override
+			public <T> EvictionPolicy<T> create(int capacity) {
+				return new WindowedTinyLFU<T>(capacity);
+			}
+		};
+		
+		public abstract <T> EvictionPolicy<T> create(int capacity);
+	}
+	
+	public static class LeastRecentlyUsed<T> implements EvictionPolicy<T> {
+		
+		private final LinkedAccessOrder<T> items = new LinkedAccessOrder<T>();
+		
+		@Override
+		public void recordAccess(T item) {
+			items.touch(item);
+		}
+		
+		@Override
+		public void add(T item) {
+			items.add(item);
+		}
+		
+		@Override
+		public void remove(T item) {
+			items.remove(item);
+		}
+		
+		@Override
+		public T evict() {
+			return items.removeEldest();
+		}
+	}
+	
+	public static class WindowedTinyLFU<T> implements EvictionPolicy<T> {
+		
+		private static final int WINDOW_PERCENTAGE = 1;
+		private static final int PROTECTED_PERCENTAGE = 80;
+		
+		private final LinkedAccessOrder<T> window;
+		private final LinkedAccessOrder<T> probation;
+		private final LinkedAccessOrder<T> protectedItems;
+		private final FrequencySketch<T> sketch;
+		private final int windowCapacity;
+		private final int mainCapacity;
+		private final int protectedCapacity;
+		
+		public WindowedTinyLFU(int capacity){
+			this.window = new LinkedAccessOrder<T>();
+			this.probation = new LinkedAccessOrder<T>();
+			this.protectedItems = new LinkedAccessOrder<T>();
+			this.sketch = new FrequencySketch<T>(capacity);
+			this.windowCapacity = Math.max(1, (capacity * WINDOW_PERCENTAGE) / 100);
+			this.mainCapacity = Math.max(0, capacity - windowCapacity);
+			this.protectedCapacity = (mainCapacity * PROTECTED_PERCENTAGE) / 100;
+		}
+		
+		@Override
+		public void recordAccess(T item) {
+			sketch.increment(item);
+			
+			if (window.contains(item)){
+				window.touch(item);
+			} else if (probation.remove(item)){
+				// used again whilst on probation so promote it, demoting the least recently used protected item if full
+				protectedItems.add(item);
+				
+				if (protectedItems.size() > protectedCapacity){
+					probation.add(protectedItems.removeEldest());
+				}
+			} else{
+				protectedItems.touch(item);
+			}
+		}
+		
+		@Override
+		public void add(T item) {
+			sketch.increment(item);
+			
+			window.add(item);
+		}
+		
+		@Override
+		public void remove(T item) {
+			if (!window.remove(item) && !probation.remove(item)){
+				protectedItems.remove(item);
+			}
+		}
+		
+		@Override
+		public T evict() {
+			while (window.size() > windowCapacity){
+				T candidate = window.removeEldest();
+				
+				if (probation.size() + protectedItems.size() < mainCapacity){
+					probation.add(candidate); // room in the main region so admit it without a contest
+					continue;
+				}
+				
+				T victim = probation.size() > 0?probation.eldest():protectedItems.eldest();
+				
+				if (victim == null || sketch.frequency(candidate) <= sketch.frequency(victim)){
+					return candidate;
+				}
+				
+				remove(victim);
+				probation.add(candidate);
+				
+				return victim;
+			}
+			
+			if (probation.size() > 0){
+				return probation.removeEldest();
+			} else if (protectedItems.size() > 0){
+				return protectedItems.removeEldest();
+			}
+			return window.removeEldest();
+		}
+	}
+	
+	/**
+	 * An insertion ordered set that moves items to the back when touched, so the front is always the least recently used.
+	 */
+	static class LinkedAccessOrder<T> {
+		
+		private final LinkedHashMap<T, Boolean> items = new LinkedHashMap<T, Boolean>(16, 0.75f, true);
+		
+		void add(T item){
+			items.put(item, Boolean.TRUE);
+		}
+		
+		void touch(T item){
+			items.get(item); // access ordered so a get moves it to the back
+		}
+		
+		boolean contains(T item){
+			return items.containsKey(item);
+		}
+		
+		boolean remove(T item){
+			return items.remove(item) != null;
+		}
+		
+		int size(){
+			return items.size();
+		}
+		
+		T eldest(){
+			Iterator<T> it = items.keySet().iterator();
+			
+			return it.hasNext()?it.next():null;
+		}
+		
+		T removeEldest(){
+			Iterator<Map.Entry<T, Boolean>> it = items.entrySet().iterator();
+			
+			if (!it.hasNext()){
+				return null;
+			}
+			T eldest = it.next().getKey();
+			it.remove();
+			
+			return eldest;
+		}
+	}
+	
+	/**
+	 * A count-min sketch of how often items have been seen. Counters saturate at 15 and are all halved once the number of
+	 * increments reaches 10 times the width, so the estimates favour recent history.
+	 */
+	static class FrequencySketch<T> {
+		
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final long[] SEEDS = new long[]{0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+		
+		private final int[][] counters;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+		
+		FrequencySketch(int capacity){
+			int width = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+			
+			this.counters = new int[DEPTH][width];
+			this.mask = width - 1;
+			this.sampleSize = width * 10;
+		}
+		
+		void increment(T item){
+			int hash = item.hashCode();
+			
+			for (int i = 0; i < DEPTH; i++){
+				int slot = indexOf(hash, i);
+				
+				if (counters[i][slot] < MAX_COUNT){
+					counters[i][slot]++;
+				}
+			}
+			
+			if (++additions >= sampleSize){
+				age();
+			}
+		}
+		
+		int frequency(T item){
+			int hash = item.hashCode();
+			int frequency = MAX_COUNT;
+			
+			for (int i = 0; i < DEPTH; i++){
+				frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+			}
+			return frequency;
+		}
+		
+		private int indexOf(int hash, int row){
+			long mixed = (hash + SEEDS[row]) * SEEDS[row];
+			
+			return (int)(mixed ^ (mixed >>> 32)) & mask;
+		}
+		
+		private void age(){
+			for (int[] row: counters){
+				for (int i = 0; i < row.length; i++){
+					row[i] >>>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+}
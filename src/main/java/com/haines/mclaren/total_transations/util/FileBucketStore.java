@@ -0,0 +1,87 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.haines.mclaren.total_transations.io.Feeder;
+import com.haines.mclaren.total_transations.io.IOFactory;
+import com.haines.mclaren.total_transations.io.Persister;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+import com.haines.mclaren.total_transations.util.SimpleMap.Keyable;
+
+/**
+ * Stores each bucket in its own file at the location of its node, using the {@link IOFactory} to encode the contents.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+class FileBucketStore<K, V extends Keyable<K>> implements BucketStore<K, V> {
+	
+	private final IOFactory<V> ioFactory;
+	
+	FileBucketStore(IOFactory<V> ioFactory){
+		this.ioFactory = ioFactory;
+	}
+	
+	@Override
+	public Map<K, V> read(Node bucket) throws IOException {
+		
+		if (Files.exists(bucket.getFileLocation())){
+			try(Feeder<V> feeder = ioFactory.createFeeder(bucket.getFileLocation().toUri())){
+				
+				Map<K, V> contents = new HashMap<K, V>();
+				while(feeder.hasNext()){
+					V nextItem = feeder.next();
+					contents.put(nextItem.getKey(), nextItem);
+				}
+				
+				return contents;
+			}
+			
+		} else{
+			return new HashMap<K, V>();
+		}
+	}
+	
+	@Override
+	public void write(Node bucket, Map<K, V> contents) throws IOException {
+		
+		try(Persister<V> persister = createPersister(bucket)){
+			
+			for (V item: contents.values()){
+				persister.consume(item);
+			}
+		}
+	}
+	
+	private Persister<V> createPersister(Node bucket) throws IOException{
+		try{
+			return ioFactory.createPersister(bucket.getFileLocation().toUri());
+		} catch (NoSuchFileException e){
+			// the first bucket written to a branch's directory creates it
+			
+			Files.createDirectories(bucket.getFileLocation().getParent());
+			
+			return ioFactory.createPersister(bucket.getFileLocation().toUri());
+		}
+	}
+	
+	@Override
+	public boolean exists(Node bucket) {
+		return Files.exists(bucket.getFileLocation());
+	}
+	
+	@Override
+	public void delete(Node bucket) throws IOException {
+		Files.deleteIfExists(bucket.getFileLocation());
+	}
+	
+	@Override
+	public void close() throws IOException {
+		// no op
+	}
+}
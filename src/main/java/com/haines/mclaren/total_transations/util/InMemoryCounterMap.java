@@ -0,0 +1,288 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+/**
+ * A map of keys to long counters held on the heap in three parallel arrays rather than as a {@link java.util.HashMap} of
+ * value objects. The table is an open addressing (linear probing) hash table where the key, its hash and its counter
+ * are kept at the same index of each array. As the hash is cached, probing only reads the key itself once the hashes
+ * match, and updating the counter of a key that is already in the map creates nothing and touches no object other than
+ * the key being compared. Compared to a {@link InMemorySimpleMap} this drops the map entry and the value object held for
+ * every key, which for keys that are short strings is most of the memory.
+ *
+ * Values are only created when they are returned from the map, using the {@link Codec}. As with {@link MappedHashMap},
+ * changes made to a returned value are not stored unless it is put back. {@link #addTo(Object, long)} updates a counter
+ * without creating any values at all.
+ *
+ * The table doubles once it is 75% full. Removing a key shifts back any keys that probed past it rather than leaving a
+ * tombstone, so removals never slow down later lookups. The arrays are not guarded, as each window is only ever filled
+ * by the one aggregator worker that owns it.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+//@NotThreadSafe
+public class InMemoryCounterMap<K, V extends SimpleMap.Keyable<K>> implements CounterMap<K, V> {
+	
+	/**
+	 * The estimated bytes held for each entry, not including its key: a key reference, a hash and a counter (16 bytes)
+	 * in slots that are between 3/8 and 3/4 full. See {@link MemoryBudget#MemoryBudget(String, long, long)}.
+	 */
+	public static final long ENTRY_OVERHEAD_BYTES = 32;
+	
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final int MAX_LOAD_PERCENTAGE = 75;
+	
+	private final Codec<K, V> codec;
+	private Object[] keys;
+	private int[] hashes;
+	private long[] counts;
+	private int size;
+	
+	InMemoryCounterMap(int initialCapacity, Codec<K, V> codec){
+		this.codec = codec;
+		
+		allocate(Integer.highestOneBit(Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, initialCapacity)) - 1) << 1);
+	}
+	
+	private void allocate(int capacity){
+		this.keys = new Object[capacity];
+		this.hashes = new int[capacity];
+		this.counts = new long[capacity];
+	}
+	
+	/**
+	 * Returns a new value holding the current counter of the key, or null if the key is not in the map.
+	 */
+	@Override
+	public V get(K key) {
+		int slot = findSlot(key, hash(key));
+		
+		return keys[slot] != null?codec.create(key, counts[slot]):null;
+	}
+	
+	@Override
+	public V put(K key, V value) {
+		int hash = hash(key);
+		int slot = findSlot(key, hash);
+		
+		if (keys[slot] != null){
+			long previousCount = counts[slot];
+			counts[slot] = codec.getCount(value);
+			
+			return codec.create(key, previousCount);
+		}
+		insert(slot, key, hash, codec.getCount(value));
+		
+		return null;
+	}
+	
+	@Override
+	public long addTo(K key, long delta){
+		int hash = hash(key);
+		int slot = findSlot(key, hash);
+		
+		if (keys[slot] != null){
+			return counts[slot] += delta;
+		}
+		insert(slot, key, hash, delta);
+		
+		return delta;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(K key){
+		int slot = findSlot(key, hash(key));
+		
+		if (keys[slot] == null){
+			return null;
+		}
+		V removedValue = codec.create((K)keys[slot], counts[slot]);
+		
+		deleteSlot(slot);
+		size--;
+		
+		return removedValue;
+	}
+	
+	@Override
+	public Stream<V> processAllEvents(Stream<V> events, BiFunction<V, V, V> reduceFunction) {
+		return events.map(e -> reduceFunction.apply(e, get(e.getKey())));
+	}
+	
+	@Override
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * Removes all the keys, keeping the table at its current capacity so that the next window of keys does not have to
+	 * grow it again.
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(keys, null);
+		size = 0;
+	}
+	
+	@Override
+	public InMemoryCounterMap<K, V> createEmptyCopy(){
+		return new InMemoryCounterMap<K, V>(keys.length, codec);
+	}
+	
+	@Override
+	public Collection<V> values(){
+		return new AbstractCollection<V>(){
+			
+			@Override
+			public Iterator<V> iterator() {
+				return new Iterator<V>(){
+					
+					private int nextSlot = nextOccupiedSlot(0);
+					
+					@Override
+					public boolean hasNext() {
+						return nextSlot < keys.length;
+					}
+					
+					@SuppressWarnings("unchecked")
+					@Override
+					public V next() {
+						if (!hasNext()){
+							throw new NoSuchElementException();
+						}
+						int slot = nextSlot;
+						
+						nextSlot = nextOccupiedSlot(nextSlot + 1);
+						
+						return codec.create((K)keys[slot], counts[slot]);
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+	
+	@Override
+	public Iterable<V> getAllValues() {
+		return values();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		// no op
+	}
+	
+	private int nextOccupiedSlot(int slot){
+		while (slot < keys.length && keys[slot] == null){
+			slot++;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Returns the slot holding the key or, if it is not in the map, the empty slot it would be inserted into.
+	 */
+	private int findSlot(Object key, int hash){
+		int mask = keys.length - 1;
+		
+		for (int slot = hash & mask;; slot = (slot + 1) & mask){
+			Object slotKey = keys[slot];
+			
+			if (slotKey == null || (hashes[slot] == hash && (slotKey == key || slotKey.equals(key)))){
+				return slot;
+			}
+		}
+	}
+	
+	private void insert(int slot, K key, int hash, long count){
+		keys[slot] = key;
+		hashes[slot] = hash;
+		counts[slot] = count;
+		
+		if (++size * 100L > (long)keys.length * MAX_LOAD_PERCENTAGE){
+			resize();
+		}
+	}
+	
+	/**
+	 * Empties the slot, moving back into it any of the keys after it in the same run that would otherwise no longer be
+	 * found because they probed past it.
+	 */
+	private void deleteSlot(int slot){
+		int mask = keys.length - 1;
+		int emptySlot = slot;
+		
+		for (int nextSlot = (slot + 1) & mask; keys[nextSlot] != null; nextSlot = (nextSlot + 1) & mask){
+			int homeSlot = hashes[nextSlot] & mask;
+			
+			// the key can move into the empty slot if that is no further from where it is than its home slot is
+			if (((nextSlot - homeSlot) & mask) >= ((nextSlot - emptySlot) & mask)){
+				keys[emptySlot] = keys[nextSlot];
+				hashes[emptySlot] = hashes[nextSlot];
+				counts[emptySlot] = counts[nextSlot];
+				
+				emptySlot = nextSlot;
+			}
+		}
+		keys[emptySlot] = null;
+	}
+	
+	private static int hash(Object key){
+		return (int)BucketIndex.ExtendibleHashDirectory.mix(key);
+	}
+	
+	/**
+	 * Moves every slot into a table of twice the capacity. As the hash is kept in the slot, the keys themselves are
+	 * never read.
+	 */
+	private void resize(){
+		if (keys.length == MAX_CAPACITY){
+			throw new IllegalStateException("Unable to grow the table beyond "+MAX_CAPACITY+" slots");
+		}
+		
+		Object[] oldKeys = keys;
+		int[] oldHashes = hashes;
+		long[] oldCounts = counts;
+		
+		allocate(oldKeys.length * 2);
+		
+		int mask = keys.length - 1;
+		for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++){
+			if (oldKeys[oldSlot] != null){
+				int slot = oldHashes[oldSlot] & mask;
+				
+				while (keys[slot] != null){
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[oldSlot];
+				hashes[slot] = oldHashes[oldSlot];
+				counts[slot] = oldCounts[oldSlot];
+			}
+		}
+	}
+	
+	/**
+	 * Converts between the values of the map and their counters.
+	 */
+	public static interface Codec<K, V> {
+		
+		long getCount(V value);
+		
+		V create(K key, long count);
+	}
+}
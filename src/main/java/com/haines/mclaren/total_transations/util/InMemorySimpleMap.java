@@ -9,7 +9,7 @@ import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 //@NotThreadSafe
-public class InMemorySimpleMap<K, V extends SimpleMap.Keyable<K>> implements SimpleMap<K, V>{
+public class InMemorySimpleMap<K, V extends SimpleMap.Keyable<K>> implements WindowMap<K, V>{
 	
 	private final Map<K, V> memoryMap = new HashMap<K, V>();
 	
@@ -22,7 +22,18 @@ public class InMemorySimpleMap<K, V extends SimpleMap.Keyable<K>> implements Sim
 	public V put(K key, V value) {
 		return memoryMap.put(key, value);
 	}
+	
+	@Override
+	public InMemorySimpleMap<K, V> createEmptyCopy() {
+		return new InMemorySimpleMap<K, V>();
+	}
+	
+	@Override
+	public V remove(K key) {
+		return memoryMap.remove(key);
+	}
 
+	@Override
 	public void clear() {
 		memoryMap.clear();
 	}
@@ -32,6 +43,7 @@ public class InMemorySimpleMap<K, V extends SimpleMap.Keyable<K>> implements Sim
 		return memoryMap.size();
 	}
 	
+	@Override
 	public Collection<V> values(){
 		return memoryMap.values();
 	}
@@ -0,0 +1,84 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns each distinct key a dense int id, starting from 0 in the order the keys are first seen, so that later stages
+ * can hold per key state in arrays indexed by id (see {@link DenseCounterMap}) rather than in hash tables of keys. Ids
+ * are never reused or removed, so the dictionary grows with the number of distinct keys and suits workloads where the
+ * same keys repeat many times.
+ *
+ * Decoding an id returns the instance of the key that was first encoded, so every stage downstream shares the same key
+ * objects (and, for strings, their cached hash codes).
+ *
+ * Keys can be encoded and decoded from different threads at the same time. Encoding a key that has already been seen
+ * is a single lookup in a {@link ConcurrentHashMap}, only new keys take a lock.
+ * @author haines
+ *
+ * @param <K>
+ */
+public class KeyDictionary<K> {
+	
+	public static final int NOT_ENCODED = -1;
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private final ConcurrentMap<K, Integer> ids;
+	private volatile Object[] keys;
+	private int size;
+	
+	public KeyDictionary(){
+		this.ids = new ConcurrentHashMap<K, Integer>();
+		this.keys = new Object[INITIAL_CAPACITY];
+		this.size = 0;
+	}
+	
+	/**
+	 * Returns the id of the key, assigning it the next id if it has not been seen before.
+	 */
+	public int encode(K key){
+		Integer id = ids.get(key);
+		
+		if (id != null){
+			return id;
+		}
+		
+		synchronized(this){
+			id = ids.get(key);
+			
+			if (id == null){
+				id = size++;
+				
+				if (id == keys.length){
+					keys = Arrays.copyOf(keys, keys.length * 2);
+				}
+				keys[id] = key; // written before the id is published so that anyone who sees the id can decode it
+				ids.put(key, id);
+			}
+			return id;
+		}
+	}
+	
+	/**
+	 * Returns the id of the key, or {@link #NOT_ENCODED} if it has not been seen before.
+	 */
+	public int lookup(K key){
+		Integer id = ids.get(key);
+		
+		return id != null?id:NOT_ENCODED;
+	}
+	
+	/**
+	 * Returns the key that was assigned the id by {@link #encode(Object)}.
+	 */
+	@SuppressWarnings("unchecked")
+	public K decode(int id){
+		return (K)keys[id];
+	}
+	
+	public int size(){
+		return ids.size();
+	}
+}
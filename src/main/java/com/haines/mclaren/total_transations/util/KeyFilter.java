@@ -0,0 +1,118 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A bloom filter of the keys written to a leaf bucket of a {@link DiskBackedMap}, so that looking up a key that was never
+ * written does not have to load the bucket from disk. {@link #mightContain(Object)} never returns false for a key the
+ * filter was built with but may return true for one it was not, at a rate that falls as <code>bitsPerKey</code> grows
+ * (roughly 1% for 10 bits per key).
+ *
+ * Filters are immutable and built from the whole contents of a bucket each time it is written, as buckets are always
+ * written in full anyway.
+ *
+ * @author haines
+ *
+ */
+class KeyFilter {
+	
+	/**
+	 * The filter of a bucket that has nothing written to it
+	 */
+	static final KeyFilter EMPTY = new KeyFilter(new long[0], 0);
+	
+	/**
+	 * The filter of a bucket whose keys are not known, such as one reopened from a map that did not keep filters. This
+	 * rules nothing out until the bucket is next written.
+	 */
+	static final KeyFilter UNKNOWN = new KeyFilter(new long[]{-1L}, 1);
+	
+	private static final int MAX_BITS = Integer.MAX_VALUE - Long.SIZE;
+	
+	private final long[] bits;
+	private final int numHashes;
+	
+	private KeyFilter(long[] bits, int numHashes){
+		this.bits = bits;
+		this.numHashes = numHashes;
+	}
+	
+	static KeyFilter of(Collection<?> keys, int bitsPerKey){
+		if (keys.isEmpty()){
+			return EMPTY;
+		}
+		
+		int numBits = (int)Math.min(MAX_BITS, Math.max(Long.SIZE, (long)keys.size() * bitsPerKey));
+		int numHashes = Math.max(1, (int)Math.round(bitsPerKey * Math.log(2))); // the number of hashes that minimises false positives
+		
+		KeyFilter filter = new KeyFilter(new long[(numBits + Long.SIZE - 1) / Long.SIZE], numHashes);
+		
+		for (Object key: keys){
+			filter.add(key);
+		}
+		return filter;
+	}
+	
+	private void add(Object key){
+		long hash = BucketIndex.ExtendibleHashDirectory.mix(key);
+		
+		for (int i = 0; i < numHashes; i++){
+			int bit = indexOf(hash, i);
+			
+			bits[bit / Long.SIZE] |= 1L << bit;
+		}
+	}
+	
+	boolean mightContain(Object key){
+		if (bits.length == 0){
+			return false;
+		}
+		
+		long hash = BucketIndex.ExtendibleHashDirectory.mix(key);
+		
+		for (int i = 0; i < numHashes; i++){
+			int bit = indexOf(hash, i);
+			
+			if ((bits[bit / Long.SIZE] & (1L << bit)) == 0){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	void writeTo(DataOutput out) throws IOException{
+		out.writeInt(numHashes);
+		out.writeInt(bits.length);
+		
+		for (long word: bits){
+			out.writeLong(word);
+		}
+	}
+	
+	static KeyFilter readFrom(DataInput in) throws IOException{
+		int numHashes = in.readInt();
+		long[] bits = new long[in.readInt()];
+		
+		if (bits.length == 0){
+			return EMPTY;
+		}
+		
+		for (int i = 0; i < bits.length; i++){
+			bits[i] = in.readLong();
+		}
+		return new KeyFilter(bits, numHashes);
+	}
+	
+	/**
+	 * Derives the i'th bit from the 2 halves of the hash (h1 + i * h2) rather than hashing the key i times. The high half
+	 * comes first as the extendible hashing layout puts keys sharing their lowest bits into the same bucket.
+	 */
+	private int indexOf(long hash, int i){
+		int combined = (int)(hash >>> 32) + i * (int)hash;
+		
+		return (combined & Integer.MAX_VALUE) % (bits.length * Long.SIZE);
+	}
+}
@@ -0,0 +1,454 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.haines.mclaren.total_transations.io.Feeder;
+import com.haines.mclaren.total_transations.io.IOFactory;
+import com.haines.mclaren.total_transations.io.Persister;
+
+/**
+ * A log structured map of deltas. Rather than reading, updating and rewriting whole buckets like {@link DiskBackedMap},
+ * values put into this map are merged into an in memory table of deltas which, once it holds
+ * <code>maxMemtableEntries</code> keys, is written out sequentially as an immutable run sorted by key hash. Once there
+ * are <code>maxRunsBeforeCompaction</code> runs, they are merged into a single run on a background thread. Reading the
+ * map performs a k-way merge of the runs and the memtable, combining the deltas stored for each key with the merge function.
+ *
+ * This means that, unlike other {@link SimpleMap}s, {@link #put(Object, Keyable)} merges the value into whatever is
+ * already stored for the key rather than replacing it. It only returns whether the key already had a delta held in
+ * memory: null if it has not been put since the memtable was last written, otherwise the delta held in memory, which the
+ * merge function may have already merged the new value into. {@link #processAllEvents(Stream, BiFunction)}
+ * never reads the existing value, so the reduce function is always given null. The events are combined when they are
+ * put or read instead. It is therefore suited to {@link com.haines.mclaren.total_transations.api.Aggregator.DirectStreamAggregatorProducer}
+ * but not to callers that update the values they get in place.
+ *
+ * {@link #get(Object)} and {@link #size()} have to scan the runs so are much slower than in the other maps. Only the
+ * compaction runs on another thread, and the map must not be changed whilst its values are being iterated over.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+//@NotThreadSafe
+public class LogStructuredMap<K, V extends SimpleMap.Keyable<K>> implements SimpleMap<K, V> {
+	
+	private static final Logger LOG = Logger.getLogger(LogStructuredMap.class.getName());
+	
+	private static final Comparator<Keyable<?>> BY_KEY_HASH = Comparator.comparingInt(v -> v.getKey().hashCode());
+	
+	private final Path directory;
+	private final IOFactory<V> ioFactory;
+	private final BinaryOperator<V> merger;
+	private final UnaryOperator<V> copier;
+	private final int maxMemtableEntries;
+	private final int maxRunsBeforeCompaction;
+	private final Map<K, V> memtable;
+	private final List<Run> runs; // oldest first
+	private final ExecutorService compactor;
+	private PendingCompaction pendingCompaction;
+	private int nextRunId;
+	
+	/**
+	 * @param merger combines 2 values stored under the same key. The first argument is always the older of the two and
+	 * may be updated in place and returned.
+	 * @param copier copies a value, so that {@link #get(Object)} never hands out a delta that is still held in memory
+	 */
+	LogStructuredMap(Path directory, int maxMemtableEntries, int maxRunsBeforeCompaction, IOFactory<V> ioFactory, BinaryOperator<V> merger, UnaryOperator<V> copier){
+		
+		if (maxRunsBeforeCompaction < 2){
+			throw new IllegalArgumentException("at least 2 runs are needed before they can be compacted but was "+maxRunsBeforeCompaction);
+		}
+		
+		this.directory = directory;
+		this.ioFactory = ioFactory;
+		this.merger = merger;
+		this.copier = copier;
+		this.maxMemtableEntries = maxMemtableEntries;
+		this.maxRunsBeforeCompaction = maxRunsBeforeCompaction;
+		this.memtable = new HashMap<K, V>();
+		this.runs = new ArrayList<Run>();
+		this.compactor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "run_compactor");
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+		this.nextRunId = 0;
+	}
+	
+	/**
+	 * Returns the result of merging everything stored under the key. Changes made to the returned value are not stored.
+	 *
+	 * There is no index of the runs, so this opens every run and reads it from the start until it passes the hash of the
+	 * key. Looking up a single key therefore reads, on average, half of everything written to disk.
+	 */
+	@Override
+	public V get(K key) {
+		try {
+			completeCompaction(false);
+			
+			V value = null;
+			for (Run run: runs){
+				value = mergeNullable(value, run.find(key, ioFactory));
+			}
+			
+			V delta = memtable.get(key);
+			
+			if (value == null && delta != null){
+				return copier.apply(delta); // the merge function may update the value in place, which must not be the delta
+			}
+			return mergeNullable(value, delta);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read runs for key "+key, e);
+		}
+	}
+	
+	/**
+	 * Merges the value into the delta held in memory for the key.
+	 * @return null if the key had no delta in memory, otherwise that delta after the value has been merged into it. The
+	 * merge function may update the older delta in place, so this does not give the value from before the put.
+	 */
+	@Override
+	public V put(K key, V value) {
+		V previousDelta = memtable.get(key);
+		V mergedDelta = mergeNullable(previousDelta, value);
+		
+		memtable.put(key, mergedDelta);
+		
+		if (memtable.size() >= maxMemtableEntries){
+			try {
+				flush();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to write memtable to "+directory, e);
+			}
+		}
+		return previousDelta != null?mergedDelta:null;
+	}
+	
+	private V mergeNullable(V older, V newer){
+		if (older == null){
+			return newer;
+		} else if (newer == null){
+			return older;
+		}
+		return merger.apply(older, newer);
+	}
+	
+	@Override
+	public Stream<V> processAllEvents(Stream<V> events, BiFunction<V, V, V> reduceFunction) {
+		return events.map(e -> reduceFunction.apply(e, null)); // existing values are merged in when the event is put
+	}
+	
+	/**
+	 * Counts the distinct keys by merging all the runs, so is as expensive as iterating over {@link #getAllValues()}.
+	 */
+	@Override
+	public long size() {
+		long size = 0;
+		
+		for (@SuppressWarnings("unused") V value: getAllValues()){
+			size++;
+		}
+		return size;
+	}
+	
+	@Override
+	public Iterable<V> getAllValues() {
+		try {
+			completeCompaction(true);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to complete compaction of "+directory, e);
+		}
+		
+		List<V> sortedMemtable = new ArrayList<V>(memtable.values());
+		sortedMemtable.sort(BY_KEY_HASH);
+		
+		return () -> {
+			List<Iterator<V>> sources = new ArrayList<Iterator<V>>(runs.size() + 1);
+			
+			try{
+				for (Run run: runs){
+					sources.add(ioFactory.createFeeder(run.file.toUri()));
+				}
+			} catch (IOException e){
+				throw new RuntimeException("Unable to open runs in "+directory, e);
+			}
+			sources.add(sortedMemtable.iterator());
+			
+			return new MergingIterator<K, V>(sources, merger);
+		};
+	}
+	
+	/**
+	 * Writes the memtable out as a new run, starting a compaction if there are now enough runs.
+	 */
+	private void flush() throws IOException{
+		completeCompaction(false);
+		
+		if (!memtable.isEmpty()){
+			List<V> sortedValues = new ArrayList<V>(memtable.values());
+			sortedValues.sort(BY_KEY_HASH);
+			
+			Run run = writeRun(sortedValues.iterator());
+			runs.add(run);
+			memtable.clear();
+			
+			LOG.log(Level.INFO, "wrote memtable of "+run.numEntries+" entries to "+run.file+". "+runs.size()+" runs now in "+directory);
+		}
+		
+		if (runs.size() >= maxRunsBeforeCompaction && pendingCompaction == null){
+			List<Run> runsToCompact = new ArrayList<Run>(runs);
+			Run compactedRun = new Run(nextRunFile());
+			
+			pendingCompaction = new PendingCompaction(runsToCompact, compactor.submit(() -> {
+				// only reads the runs being compacted, which are never changed, and writes a file nothing else knows about yet
+				
+				List<Iterator<V>> sources = new ArrayList<Iterator<V>>(runsToCompact.size());
+				for (Run run: runsToCompact){
+					sources.add(ioFactory.createFeeder(run.file.toUri()));
+				}
+				
+				return writeRun(compactedRun, new MergingIterator<K, V>(sources, merger));
+			}));
+		}
+	}
+	
+	private Run writeRun(Iterator<V> sortedValues) throws IOException{
+		return writeRun(new Run(nextRunFile()), sortedValues);
+	}
+	
+	private Run writeRun(Run run, Iterator<V> sortedValues) throws IOException{
+		try(Persister<V> persister = ioFactory.createPersister(run.file.toUri())){
+			while (sortedValues.hasNext()){
+				persister.consume(sortedValues.next());
+				run.numEntries++;
+			}
+		} finally{
+			if (sortedValues instanceof Closeable){
+				((Closeable)sortedValues).close();
+			}
+		}
+		return run;
+	}
+	
+	private Path nextRunFile(){
+		return directory.resolve("run_"+(nextRunId++)+".dat");
+	}
+	
+	/**
+	 * If the background compaction has finished (or <code>waitForCompletion</code> is set), replaces the runs it compacted
+	 * with its result and deletes them.
+	 */
+	private void completeCompaction(boolean waitForCompletion) throws IOException{
+		if (pendingCompaction == null || (!waitForCompletion && !pendingCompaction.compactedRun.isDone())){
+			return;
+		}
+		
+		PendingCompaction completedCompaction = pendingCompaction;
+		pendingCompaction = null;
+		
+		Run compactedRun;
+		try {
+			compactedRun = completedCompaction.compactedRun.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			
+			throw new InterruptedIOException("interrupted waiting for compaction of "+directory);
+		} catch (ExecutionException e) {
+			throw new IOException("unable to compact runs in "+directory, e.getCause());
+		}
+		
+		List<Run> compactedRuns = runs.subList(0, completedCompaction.runs.size()); // runs are only ever added to the end so these are the ones that were compacted
+		for (Run run: compactedRuns){
+			Files.deleteIfExists(run.file);
+		}
+		compactedRuns.clear();
+		runs.add(0, compactedRun);
+		
+		LOG.log(Level.INFO, "compacted runs into "+compactedRun.file+" with "+compactedRun.numEntries+" entries. "+runs.size()+" runs now in "+directory);
+	}
+	
+	/**
+	 * Writes out the memtable and waits for any compaction to finish. The contents can still be read once closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		try{
+			flush();
+			completeCompaction(true);
+		} finally{
+			compactor.shutdown();
+		}
+	}
+	
+	/**
+	 * An immutable file of values sorted by the hash code of their keys, with each key appearing at most once
+	 */
+	private static class Run {
+		
+		private final Path file;
+		private long numEntries;
+		
+		private Run(Path file){
+			this.file = file;
+			this.numEntries = 0;
+		}
+		
+		<K, V extends Keyable<K>> V find(K key, IOFactory<V> ioFactory) throws IOException{
+			int keyHash = key.hashCode();
+			
+			try(Feeder<V> feeder = ioFactory.createFeeder(file.toUri())){
+				while (feeder.hasNext()){
+					V value = feeder.next();
+					int valueHash = value.getKey().hashCode();
+					
+					if (valueHash > keyHash){
+						return null; // sorted so it can't be any further on
+					} else if (valueHash == keyHash && value.getKey().equals(key)){
+						return value;
+					}
+				}
+			}
+			return null;
+		}
+	}
+	
+	private static class PendingCompaction {
+		
+		private final List<Run> runs;
+		private final Future<Run> compactedRun;
+		
+		private PendingCompaction(List<Run> runs, Future<Run> compactedRun){
+			this.runs = runs;
+			this.compactedRun = compactedRun;
+		}
+	}
+	
+	/**
+	 * Merges iterators of values sorted by key hash into a single iterator in the same order, combining the values that
+	 * share a key. Sources are given oldest first, so that the merge function is always passed the older value first.
+	 * Any sources that are {@link Closeable} are closed once they have been read.
+	 */
+	static class MergingIterator<K, V extends Keyable<K>> implements Iterator<V>, Closeable {
+		
+		private final PriorityQueue<Cursor<V>> cursors;
+		private final BinaryOperator<V> merger;
+		private Iterator<V> currentGroup;
+		
+		MergingIterator(List<Iterator<V>> sources, BinaryOperator<V> merger){
+			this.cursors = new PriorityQueue<Cursor<V>>(Math.max(1, sources.size()));
+			this.merger = merger;
+			this.currentGroup = Collections.emptyIterator();
+			
+			for (int i = 0; i < sources.size(); i++){
+				Cursor<V> cursor = new Cursor<V>(sources.get(i), i);
+				
+				if (cursor.advance()){
+					cursors.add(cursor);
+				}
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (!currentGroup.hasNext() && !cursors.isEmpty()){
+				// take every value with the next hash, from the oldest source first, and merge those with the same key
+				
+				int hash = cursors.peek().hash;
+				Map<K, V> group = new LinkedHashMap<K, V>();
+				
+				while (!cursors.isEmpty() && cursors.peek().hash == hash){
+					Cursor<V> cursor = cursors.poll();
+					
+					group.merge(cursor.current.getKey(), cursor.current, merger);
+					
+					if (cursor.advance()){
+						cursors.add(cursor);
+					}
+				}
+				currentGroup = group.values().iterator();
+			}
+			return currentGroup.hasNext();
+		}
+		
+		@Override
+		public V next() {
+			if (!hasNext()){
+				throw new NoSuchElementException();
+			}
+			return currentGroup.next();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			while (!cursors.isEmpty()){
+				cursors.poll().close();
+			}
+		}
+		
+		private static class Cursor<V extends Keyable<?>> implements Comparable<Cursor<V>>, Closeable {
+			
+			private final Iterator<V> source;
+			private final int sourceIndex;
+			private V current;
+			private int hash;
+			
+			private Cursor(Iterator<V> source, int sourceIndex){
+				this.source = source;
+				this.sourceIndex = sourceIndex;
+			}
+			
+			private boolean advance(){
+				if (!source.hasNext()){
+					try {
+						close();
+					} catch (IOException e) {
+						throw new RuntimeException("Unable to close merged source", e);
+					}
+					return false;
+				}
+				current = source.next();
+				hash = current.getKey().hashCode();
+				
+				return true;
+			}
+			
+			@Override
+			public int compareTo(Cursor<V> other) {
+				int comparison = Integer.compare(hash, other.hash);
+				
+				return comparison != 0?comparison:Integer.compare(sourceIndex, other.sourceIndex);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				if (source instanceof Closeable){
+					((Closeable)source).close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,485 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A map of keys to long counters held in memory mapped files rather than on the java heap. The table is an open
+ * addressing (linear probing) hash table of fixed size slots, each holding the offset and length of the key's bytes, the
+ * key's hash and the counter. The key bytes themselves are appended to an arena made up of one or more fixed size mapped
+ * segments. Lookups and updates happen in place through the OS page cache and no java objects are kept per entry, so
+ * working sets that fit in RAM run at close to in memory speed and larger ones are paged in and out by the OS.
+ *
+ * Values are only created when they are returned from the map, using the {@link Codec}. As with {@link DiskBackedMap},
+ * changes made to a returned value are not stored unless it is put back. {@link #addTo(Object, long)} updates a counter
+ * without creating any values at all, and {@link #reduceAllEvents(Stream, BiFunction)} uses it for each event.
+ *
+ * Removed keys leave their bytes in the arena until the map is cleared.
+ *
+ * The table doubles (into a new file) once it is 70% full, up to 2^26 slots. The contents can still be
+ * read once the map is closed. Counters are updated in place in the mapped files without any locking.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+//@NotThreadSafe
+public class MappedHashMap<K, V extends SimpleMap.Keyable<K>> implements CounterMap<K, V> {
+	
+	private static final Logger LOG = Logger.getLogger(MappedHashMap.class.getName());
+	
+	static final int DEFAULT_ARENA_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int MAX_KEY_LENGTH = 64 * 1024;
+	private static final int MAX_CAPACITY = 1 << 26; // so that the table fits in a single mapping
+	private static final int MAX_LOAD_PERCENTAGE = 70;
+	
+	// slot layout. A key offset of 0 marks an empty slot so offsets are stored + 1
+	private static final int SLOT_SIZE = 24;
+	private static final int KEY_OFFSET = 0;
+	private static final int HASH_OFFSET = 8;
+	private static final int KEY_LENGTH_OFFSET = 12;
+	private static final int COUNT_OFFSET = 16;
+	
+	private final Path directory;
+	private final Codec<K, V> codec;
+	private final int arenaSegmentSize;
+	private final List<MappedByteBuffer> arenaSegments;
+	private final ByteBuffer encodedKey;
+	private long arenaEnd;
+	private MappedByteBuffer table;
+	private Path tableFile;
+	private int capacity;
+	private long size;
+	
+	MappedHashMap(Path directory, int initialCapacity, Codec<K, V> codec) throws IOException{
+		this(directory, initialCapacity, DEFAULT_ARENA_SEGMENT_SIZE, codec);
+	}
+	
+	MappedHashMap(Path directory, int initialCapacity, int arenaSegmentSize, Codec<K, V> codec) throws IOException{
+		this.directory = directory;
+		this.codec = codec;
+		this.arenaSegmentSize = arenaSegmentSize;
+		this.arenaSegments = new ArrayList<MappedByteBuffer>();
+		this.encodedKey = ByteBuffer.allocate(Math.min(MAX_KEY_LENGTH, arenaSegmentSize));
+		this.arenaEnd = 0;
+		this.capacity = Integer.highestOneBit(Math.max(2, Math.min(MAX_CAPACITY, initialCapacity) - 1)) << 1;
+		this.tableFile = directory.resolve("table_"+capacity+".dat");
+		this.table = map(tableFile, (long)capacity * SLOT_SIZE);
+		this.size = 0;
+	}
+	
+	private static MappedByteBuffer map(Path file, long size) throws IOException{
+		// the file is extended with zeros to the mapped size, so every slot starts empty
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			return channel.map(MapMode.READ_WRITE, 0, size);
+		}
+	}
+	
+	/**
+	 * Returns a new value holding the current counter of the key, or null if the key is not in the map.
+	 */
+	@Override
+	public V get(K key) {
+		int slot = findSlot(key);
+		
+		return slot >= 0?codec.create(key, table.getLong(slot + COUNT_OFFSET)):null;
+	}
+	
+	@Override
+	public V put(K key, V value) {
+		long count = codec.getCount(value);
+		int slot = findOrInsertSlot(key, count);
+		
+		if (slot >= 0){
+			long previousCount = table.getLong(slot + COUNT_OFFSET);
+			table.putLong(slot + COUNT_OFFSET, count);
+			
+			return codec.create(key, previousCount);
+		}
+		return null;
+	}
+	
+	@Override
+	public long addTo(K key, long delta){
+		int slot = findOrInsertSlot(key, delta);
+		
+		if (slot >= 0){
+			long count = table.getLong(slot + COUNT_OFFSET) + delta;
+			table.putLong(slot + COUNT_OFFSET, count);
+			
+			return count;
+		}
+		return delta;
+	}
+	
+	@Override
+	public V remove(K key){
+		int slot = findSlot(key);
+		
+		if (slot < 0){
+			return null;
+		}
+		V removedValue = codec.create(key, table.getLong(slot + COUNT_OFFSET));
+		
+		deleteSlot(slot / SLOT_SIZE);
+		size--;
+		
+		return removedValue;
+	}
+	
+	@Override
+	public Stream<V> processAllEvents(Stream<V> events, BiFunction<V, V, V> reduceFunction) {
+		return events.map(e -> reduceFunction.apply(e, get(e.getKey())));
+	}
+	
+	/**
+	 * Adds the count of each event to the counter of its key, so each key is encoded and probed once rather than once to
+	 * get it and again to put it back. The reduce function is not used as the values of this map are reduced by adding
+	 * their counters.
+	 * @return a stream containing a value holding the previous counter of each key that was already in the map, or null
+	 * for keys that were added
+	 */
+	@Override
+	public Stream<V> reduceAllEvents(Stream<V> events, BiFunction<V, V, V> reduceFunction) {
+		return events.map(e -> {
+			long previousSize = size;
+			long delta = codec.getCount(e);
+			long count = addTo(e.getKey(), delta);
+			
+			return size > previousSize?null:codec.create(e.getKey(), count - delta);
+		});
+	}
+	
+	@Override
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * Removes all the keys, keeping the table at its current capacity and reusing the key segments from the start.
+	 */
+	@Override
+	public void clear() {
+		for (int slotIndex = 0; slotIndex < capacity; slotIndex++){
+			table.putLong(slotIndex * SLOT_SIZE + KEY_OFFSET, 0);
+		}
+		arenaEnd = 0;
+		size = 0;
+	}
+	
+	/**
+	 * Creates an empty map of the same capacity in a new directory inside this map's directory.
+	 */
+	@Override
+	public MappedHashMap<K, V> createEmptyCopy(){
+		try {
+			return new MappedHashMap<K, V>(Files.createTempDirectory(directory, "copy"), capacity, arenaSegmentSize, codec);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create a copy of the table in "+directory, e);
+		}
+	}
+	
+	@Override
+	public Collection<V> values(){
+		return new AbstractCollection<V>(){
+			
+			@Override
+			public Iterator<V> iterator() {
+				return new Iterator<V>(){
+			
+					private int nextSlot = nextOccupiedSlot(0);
+			
+					@Override
+					public boolean hasNext() {
+						return nextSlot < capacity;
+					}
+			
+					@Override
+					public V next() {
+						if (!hasNext()){
+							throw new NoSuchElementException();
+						}
+						int slot = nextSlot * SLOT_SIZE;
+						long keyOffset = table.getLong(slot + KEY_OFFSET) - 1;
+				
+						K key = codec.decodeKey(getArenaSegment(keyOffset), getArenaPosition(keyOffset), table.getInt(slot + KEY_LENGTH_OFFSET));
+				
+						nextSlot = nextOccupiedSlot(nextSlot + 1);
+				
+						return codec.create(key, table.getLong(slot + COUNT_OFFSET));
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return (int)size;
+			}
+		};
+	}
+	
+	@Override
+	public Iterable<V> getAllValues() {
+		return values();
+	}
+			
+	private int nextOccupiedSlot(int slotIndex){
+		while (slotIndex < capacity && table.getLong(slotIndex * SLOT_SIZE + KEY_OFFSET) == 0){
+			slotIndex++;
+		}
+		return slotIndex;
+	}
+	
+	/**
+	 * Returns the byte offset of the key's slot in the table or -1 if it is not in the map. The encoded key is left in
+	 * {@link #encodedKey}.
+	 */
+	private int findSlot(K key){
+		int hash = hash(key);
+		encodeKey(key);
+		
+		int mask = capacity - 1;
+		for (int slotIndex = hash & mask;; slotIndex = (slotIndex + 1) & mask){
+			int slot = slotIndex * SLOT_SIZE;
+			long keyOffset = table.getLong(slot + KEY_OFFSET);
+			
+			if (keyOffset == 0){
+				return -1;
+			} else if (table.getInt(slot + HASH_OFFSET) == hash && keyEquals(keyOffset - 1, table.getInt(slot + KEY_LENGTH_OFFSET))){
+				return slot;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the byte offset of the key's slot in the table or, if it was not in the map, adds it with a counter of
+	 * <code>count</code> and returns -1.
+	 */
+	private int findOrInsertSlot(K key, long count){
+		if ((size + 1) * 100 > (long)capacity * MAX_LOAD_PERCENTAGE){
+			resize();
+		}
+		
+		int hash = hash(key);
+		encodeKey(key);
+		
+		int mask = capacity - 1;
+		for (int slotIndex = hash & mask;; slotIndex = (slotIndex + 1) & mask){
+			int slot = slotIndex * SLOT_SIZE;
+			long keyOffset = table.getLong(slot + KEY_OFFSET);
+			
+			if (keyOffset == 0){
+				table.putLong(slot + KEY_OFFSET, appendEncodedKey() + 1);
+				table.putInt(slot + HASH_OFFSET, hash);
+				table.putInt(slot + KEY_LENGTH_OFFSET, encodedKey.limit());
+				table.putLong(slot + COUNT_OFFSET, count);
+				size++;
+				
+				return -1;
+			} else if (table.getInt(slot + HASH_OFFSET) == hash && keyEquals(keyOffset - 1, table.getInt(slot + KEY_LENGTH_OFFSET))){
+				return slot;
+			}
+		}
+	}
+	
+	/**
+	 * Empties the slot, moving back into it any of the keys after it in the same run that would otherwise no longer be
+	 * found because they probed past it.
+	 */
+	private void deleteSlot(int slotIndex){
+		int mask = capacity - 1;
+		int emptySlotIndex = slotIndex;
+		
+		for (int nextSlotIndex = (slotIndex + 1) & mask; table.getLong(nextSlotIndex * SLOT_SIZE + KEY_OFFSET) != 0; nextSlotIndex = (nextSlotIndex + 1) & mask){
+			int nextSlot = nextSlotIndex * SLOT_SIZE;
+			int homeSlotIndex = table.getInt(nextSlot + HASH_OFFSET) & mask;
+			
+			// the key can move into the empty slot if that is no further from where it is than its home slot is
+			if (((nextSlotIndex - homeSlotIndex) & mask) >= ((nextSlotIndex - emptySlotIndex) & mask)){
+				int emptySlot = emptySlotIndex * SLOT_SIZE;
+				
+				table.putLong(emptySlot + KEY_OFFSET, table.getLong(nextSlot + KEY_OFFSET));
+				table.putInt(emptySlot + HASH_OFFSET, table.getInt(nextSlot + HASH_OFFSET));
+				table.putInt(emptySlot + KEY_LENGTH_OFFSET, table.getInt(nextSlot + KEY_LENGTH_OFFSET));
+				table.putLong(emptySlot + COUNT_OFFSET, table.getLong(nextSlot + COUNT_OFFSET));
+				
+				emptySlotIndex = nextSlotIndex;
+			}
+		}
+		table.putLong(emptySlotIndex * SLOT_SIZE + KEY_OFFSET, 0);
+	}
+	
+	private static int hash(Object key){
+		return (int)BucketIndex.ExtendibleHashDirectory.mix(key);
+	}
+	
+	private void encodeKey(K key){
+		encodedKey.clear();
+		try{
+			codec.encodeKey(key, encodedKey);
+		} catch (BufferOverflowException e){
+			throw new IllegalArgumentException("key "+key+" is longer than the maximum of "+encodedKey.capacity()+" bytes", e);
+		}
+		encodedKey.flip();
+	}
+	
+	private boolean keyEquals(long keyOffset, int keyLength){
+		if (keyLength != encodedKey.limit()){
+			return false;
+		}
+		ByteBuffer segment = getArenaSegment(keyOffset);
+		int position = getArenaPosition(keyOffset);
+		
+		int i = 0;
+		for (; i + Long.BYTES <= keyLength; i += Long.BYTES){
+			if (segment.getLong(position + i) != encodedKey.getLong(i)){
+				return false;
+			}
+		}
+		for (; i < keyLength; i++){
+			if (segment.get(position + i) != encodedKey.get(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Copies the encoded key to the end of the arena, starting a new segment if it does not fit in the current one.
+	 * @return the offset of the key in the arena
+	 */
+	private long appendEncodedKey(){
+		int keyLength = encodedKey.limit();
+		
+		if (getArenaPosition(arenaEnd) + keyLength > arenaSegmentSize){
+			arenaEnd = (arenaEnd / arenaSegmentSize + 1) * arenaSegmentSize; // keys never span segments
+		}
+		
+		int segmentIndex = (int)(arenaEnd / arenaSegmentSize);
+		if (segmentIndex == arenaSegments.size()){
+			Path segmentFile = directory.resolve("keys_"+segmentIndex+".dat");
+			try {
+				arenaSegments.add(map(segmentFile, arenaSegmentSize));
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to create key segment "+segmentFile, e);
+			}
+		}
+		
+		long keyOffset = arenaEnd;
+		ByteBuffer segment = getArenaSegment(keyOffset);
+		int position = getArenaPosition(keyOffset);
+		
+		for (int i = 0; i < keyLength; i++){
+			segment.put(position + i, encodedKey.get(i));
+		}
+		arenaEnd += keyLength;
+		
+		return keyOffset;
+	}
+	
+	private ByteBuffer getArenaSegment(long offset){
+		return arenaSegments.get((int)(offset / arenaSegmentSize));
+	}
+	
+	private int getArenaPosition(long offset){
+		return (int)(offset % arenaSegmentSize);
+	}
+	
+	/**
+	 * Moves every slot into a new table of twice the capacity. As the hash is kept in the slot, the keys themselves are
+	 * never read.
+	 */
+	private void resize(){
+		if (capacity == MAX_CAPACITY){
+			throw new IllegalStateException("Unable to grow the table in "+directory+" beyond "+MAX_CAPACITY+" slots");
+		}
+		
+		int newCapacity = capacity * 2;
+		Path newTableFile = directory.resolve("table_"+newCapacity+".dat");
+		
+		MappedByteBuffer newTable;
+		try {
+			newTable = map(newTableFile, (long)newCapacity * SLOT_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create table "+newTableFile, e);
+		}
+		
+		int newMask = newCapacity - 1;
+		for (int slotIndex = 0; slotIndex < capacity; slotIndex++){
+			int slot = slotIndex * SLOT_SIZE;
+			
+			if (table.getLong(slot + KEY_OFFSET) != 0){
+				int newSlotIndex = table.getInt(slot + HASH_OFFSET) & newMask;
+				
+				while (newTable.getLong(newSlotIndex * SLOT_SIZE + KEY_OFFSET) != 0){
+					newSlotIndex = (newSlotIndex + 1) & newMask;
+				}
+				
+				int newSlot = newSlotIndex * SLOT_SIZE;
+				newTable.putLong(newSlot + KEY_OFFSET, table.getLong(slot + KEY_OFFSET));
+				newTable.putInt(newSlot + HASH_OFFSET, table.getInt(slot + HASH_OFFSET));
+				newTable.putInt(newSlot + KEY_LENGTH_OFFSET, table.getInt(slot + KEY_LENGTH_OFFSET));
+				newTable.putLong(newSlot + COUNT_OFFSET, table.getLong(slot + COUNT_OFFSET));
+			}
+		}
+		
+		try {
+			Files.deleteIfExists(tableFile); // the old mapping stays valid until it is garbage collected
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Unable to delete old table "+tableFile, e);
+		}
+		
+		LOG.log(Level.INFO, "grew table in "+directory+" from "+capacity+" to "+newCapacity+" slots holding "+size+" keys");
+		
+		table = newTable;
+		tableFile = newTableFile;
+		capacity = newCapacity;
+	}
+	
+	/**
+	 * Flushes the table and keys to disk. The contents can still be read afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		table.force();
+		
+		for (MappedByteBuffer segment: arenaSegments){
+			segment.force();
+		}
+	}
+	
+	/**
+	 * Converts between the values of the map and the bytes of their keys and their counters.
+	 */
+	public static interface Codec<K, V> extends InMemoryCounterMap.Codec<K, V> {
+		
+		/**
+		 * Writes the bytes of the key at the buffer's position. Equal keys must always be written as the same bytes.
+		 * @throws BufferOverflowException if the key does not fit in the buffer
+		 */
+		void encodeKey(K key, ByteBuffer buffer);
+		
+		/**
+		 * Reads a key from the <code>length</code> bytes of the buffer starting at <code>start</code>, without changing
+		 * the buffer's position.
+		 */
+		K decodeKey(ByteBuffer buffer, int start, int length);
+	}
+}
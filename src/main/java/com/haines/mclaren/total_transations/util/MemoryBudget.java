@@ -0,0 +1,167 @@
+package com.haines.mclaren.total_transations.util;
+
+/**
+ * Keeps an estimate of the memory retained by the entries held in one stage of the pipeline, such as the window of an
+ * aggregator or a bucket of a {@link DiskBackedMap}, so that the stage can flush or spill once it reaches a budget in
+ * bytes rather than after a fixed number of entries. As the size of an entry is dominated by its key, which for users
+ * can be anything from a few bytes to a few hundred, an item count either runs out of memory or spills far too early.
+ *
+ * The size of an entry is estimated from the length of its key plus a fixed overhead for the objects that hold it (see
+ * {@link #estimateEntryBytes(Object)}). This is an estimate for tuning the budgets rather than an exact measure.
+ * @author haines
+ *
+ */
+//@NotThreadSafe
+public class MemoryBudget {
+	
+	/**
+	 * The map entry holding the value (32 bytes) and the value itself, a header with a key reference and a count (24 bytes)
+	 */
+	static final long ENTRY_OVERHEAD_BYTES = 56;
+	
+	/**
+	 * The header, hash and array reference of a {@link String} (24 bytes) and the header of its array (16 bytes)
+	 */
+	static final long STRING_OVERHEAD_BYTES = 40;
+	
+	/**
+	 * Used for keys whose size is not known
+	 */
+	static final long DEFAULT_KEY_BYTES = 16;
+	
+	private final String stage;
+	private final long maxBytes;
+	private final long entryOverheadBytes;
+	private long usedBytes;
+	private long peakBytes;
+	private long totalAddedBytes;
+	private long totalAddedEntries;
+	
+	public MemoryBudget(String stage, long maxBytes){
+		this(stage, maxBytes, ENTRY_OVERHEAD_BYTES);
+	}
+	
+	/**
+	 * @param entryOverheadBytes the bytes held for each entry other than its key, for stages that hold their entries more
+	 * compactly than a {@link java.util.HashMap} of value objects, such as an {@link InMemoryCounterMap}
+	 */
+	public MemoryBudget(String stage, long maxBytes, long entryOverheadBytes){
+		
+		if (maxBytes <= 0){
+			throw new IllegalArgumentException("the budget of "+stage+" must be positive but was "+maxBytes);
+		}
+		
+		this.stage = stage;
+		this.maxBytes = maxBytes;
+		this.entryOverheadBytes = entryOverheadBytes;
+	}
+	
+	/**
+	 * Returns the estimated number of bytes retained by an entry with the supplied key in a {@link java.util.HashMap} of
+	 * value objects.
+	 */
+	public static long estimateEntryBytes(Object key){
+		return ENTRY_OVERHEAD_BYTES + estimateKeyBytes(key);
+	}
+	
+	/**
+	 * Strings are assumed to take 2 bytes per character, as they do before java 9, so that the estimate errs on the side
+	 * of spilling early.
+	 */
+	static long estimateKeyBytes(Object key){
+		if (key instanceof CharSequence){
+			return STRING_OVERHEAD_BYTES + 2L * ((CharSequence)key).length();
+		}
+		return DEFAULT_KEY_BYTES;
+	}
+	
+	/**
+	 * Records that an entry with the supplied key is now held by the stage.
+	 */
+	public void add(Object key){
+		usedBytes += sample(key);
+		
+		peakBytes = Math.max(peakBytes, usedBytes);
+	}
+	
+	/**
+	 * Records that an entry with the supplied key is no longer held by the stage, such as when it has been evicted on its
+	 * own.
+	 */
+	public void remove(Object key){
+		usedBytes = Math.max(0, usedBytes - (entryOverheadBytes + estimateKeyBytes(key)));
+	}
+	
+	/**
+	 * Records the size of an entry towards the average entry size without counting it as held by the stage. Used by
+	 * stages that do not track which entries they hold, such as the buckets of a {@link DiskBackedMap}.
+	 * @return the estimated size of the entry
+	 */
+	public long sample(Object key){
+		long entryBytes = entryOverheadBytes + estimateKeyBytes(key);
+		
+		totalAddedBytes += entryBytes;
+		totalAddedEntries++;
+		
+		return entryBytes;
+	}
+	
+	/**
+	 * Records that the stage no longer holds any entries, such as when it has been flushed.
+	 */
+	public void clear(){
+		usedBytes = 0;
+	}
+	
+	public boolean isExceeded(){
+		return usedBytes > maxBytes;
+	}
+	
+	/**
+	 * Returns true if <code>numEntries</code> entries of the average size seen so far fit within the budget.
+	 */
+	public boolean hasCapacityFor(int numEntries){
+		return numEntries < getCapacityInEntries();
+	}
+	
+	/**
+	 * Returns how many entries of the average size seen so far fit within the budget. This is always at least 2 so that
+	 * a stage that spills by splitting, as the buckets of a {@link DiskBackedMap} do, can still split a full one.
+	 */
+	public long getCapacityInEntries(){
+		return Math.max(2, maxBytes / getAverageEntryBytes());
+	}
+	
+	/**
+	 * Returns the average estimated size of all the entries added or sampled so far, or the size of an entry with a small
+	 * key if there have been none.
+	 */
+	public long getAverageEntryBytes(){
+		if (totalAddedEntries == 0){
+			return entryOverheadBytes + DEFAULT_KEY_BYTES;
+		}
+		return totalAddedBytes / totalAddedEntries;
+	}
+	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+	
+	public long getPeakBytes() {
+		return peakBytes;
+	}
+	
+	@Override
+	public String toString(){
+		String capacity = "about "+getCapacityInEntries()+" entries of "+getAverageEntryBytes()+" bytes on average";
+		
+		if (peakBytes == 0){ // only sampled
+			return stage+": "+maxBytes+" bytes, "+capacity;
+		}
+		return stage+": "+usedBytes+" of "+maxBytes+" bytes used (peak "+peakBytes+", "+capacity+")";
+	}
+}
@@ -0,0 +1,412 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.haines.mclaren.total_transations.api.Deserializer;
+import com.haines.mclaren.total_transations.api.Serializer;
+import com.haines.mclaren.total_transations.io.Feeder;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+import com.haines.mclaren.total_transations.util.SimpleMap.Keyable;
+
+/**
+ * A {@link BucketStore} that packs the contents of all the buckets into a few large segment files rather than a file
+ * per bucket, so that reading or writing a bucket is a single positioned read or write on a channel that is already open
+ * rather than a file open, close and directory update each time. An index of where each bucket is (its segment, offset
+ * and length) is kept in memory.
+ *
+ * Buckets are appended to the newest segment and a new segment is started once it reaches <code>segmentSize</code>.
+ * Rewriting or deleting a bucket leaves its old copy behind as garbage. Once less than half of an older segment is still
+ * in use, its remaining buckets are copied to the newest segment and its file is deleted.
+ *
+ * The index is written out when the store is closed and read back (and removed) when a store is created in the same
+ * directory, so that a map closed with a manifest can be reopened.
+ *
+ * The buckets of different threads share the same segments, so the index and the segments' sizes are guarded by the
+ * store's lock. It is only held to look up or update the index and to reserve where a bucket will be appended: encoding,
+ * decoding and the channel reads and writes happen outside it, into a buffer of the calling thread. A segment is not
+ * compacted while any thread is still reading or writing it.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+class SegmentBucketStore<K, V extends Keyable<K>> implements BucketStore<K, V> {
+	
+	private static final Logger LOG = Logger.getLogger(SegmentBucketStore.class.getName());
+	
+	static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final String INDEX_FILE_NAME = "segments.idx";
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	
+	private final Path directory;
+	private final Serializer<V> serializer;
+	private final Deserializer<V> deserializer;
+	private final int segmentSize;
+	private final Map<Integer, Extent> index;
+	private final Map<Integer, Segment> segments;
+	private final ThreadLocal<ByteBuffer> buffers;
+	private Segment currentSegment;
+	private boolean closed;
+	
+	SegmentBucketStore(Path directory, Serializer<V> serializer, Deserializer<V> deserializer, int segmentSize) throws IOException{
+		
+		if (segmentSize <= 0){
+			throw new IllegalArgumentException("segment size must be positive but was "+segmentSize);
+		}
+		
+		this.directory = directory;
+		this.serializer = serializer;
+		this.deserializer = deserializer;
+		this.segmentSize = segmentSize;
+		this.index = new HashMap<Integer, Extent>();
+		this.segments = new TreeMap<Integer, Segment>();
+		this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+		this.closed = false;
+		
+		Path indexFile = directory.resolve(INDEX_FILE_NAME);
+		
+		if (Files.exists(indexFile)){
+			readIndex(indexFile);
+		} else{
+			this.currentSegment = openSegment(0);
+		}
+	}
+	
+	@Override
+	public Map<K, V> read(Node bucket) throws IOException {
+		Extent extent;
+		Segment segment;
+		boolean storeClosed;
+		
+		synchronized(this){
+			extent = index.get(bucket.getId());
+			
+			if (extent == null){
+				return new HashMap<K, V>();
+			}
+			segment = segments.get(extent.segment);
+			segment.numInFlight++;
+			storeClosed = closed;
+		}
+				
+		try{
+			return decode(readExtent(segment, extent, storeClosed));
+		} finally{
+			finishedWith(segment);
+		}
+	}
+	
+	@Override
+	public void write(Node bucket, Map<K, V> contents) throws IOException {
+		ByteBuffer payload = encode(contents);
+		Extent extent;
+		Segment segment;
+		
+		synchronized(this){
+			checkNotClosed();
+		
+			extent = reserve(payload.remaining());
+			segment = currentSegment;
+			segment.numInFlight++;
+		}
+		
+		boolean written = false;
+		try{
+			writeFully(segment, extent, payload);
+			written = true;
+		} finally{
+			synchronized(this){
+				segment.numInFlight--;
+				
+				if (written){
+					segment.liveBytes += extent.length;
+					release(index.put(bucket.getId(), extent));
+				}
+				compactIfMostlyGarbage(segment);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized boolean exists(Node bucket) {
+		return index.containsKey(bucket.getId());
+	}
+	
+	@Override
+	public synchronized void delete(Node bucket) throws IOException {
+		checkNotClosed();
+		
+		release(index.remove(bucket.getId()));
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed){
+			return;
+		}
+		closed = true;
+		
+		for (Segment segment: segments.values()){
+			segment.channel.force(false);
+		}
+		writeIndex(directory.resolve(INDEX_FILE_NAME));
+		
+		for (Segment segment: segments.values()){
+			segment.channel.close();
+		}
+	}
+	
+	private void checkNotClosed(){
+		if (closed){
+			throw new IllegalStateException("Unable to change the buckets in "+directory+" as the store is closed");
+		}
+	}
+	
+	private synchronized void finishedWith(Segment segment) throws IOException{
+		segment.numInFlight--;
+		
+		compactIfMostlyGarbage(segment);
+	}
+	
+	private ByteBuffer encode(Map<K, V> contents){
+		ByteBuffer buffer = buffers.get();
+		
+		while (true){
+			try{
+				buffer.clear();
+				buffer.putInt(contents.size());
+				
+				for (V item: contents.values()){
+					serializer.serialise(item, buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+				}
+				buffer.flip();
+				
+				return buffer;
+			} catch (BufferOverflowException e){
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2); // start again with a buffer big enough
+				buffers.set(buffer);
+			}
+		}
+	}
+	
+	private Map<K, V> decode(ByteBuffer payload){
+		Map<K, V> contents = new HashMap<K, V>();
+		int numItems = payload.getInt();
+		
+		for (int i = 0; i < numItems; i++){
+			V item = deserializer.deserialise(payload, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+			
+			contents.put(item.getKey(), item);
+		}
+		return contents;
+	}
+	
+	private ByteBuffer readExtent(Segment segment, Extent extent, boolean storeClosed) throws IOException{
+		ByteBuffer buffer = buffers.get();
+		
+		if (buffer.capacity() < extent.length){
+			buffer = ByteBuffer.allocate(Math.max(extent.length, buffer.capacity() * 2));
+			buffers.set(buffer);
+		}
+		buffer.clear();
+		buffer.limit(extent.length);
+		
+		if (storeClosed){
+			// the buckets can still be read once the store is closed, as the values of a closed map can, but without
+			// holding on to the files
+			
+			try(FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)){
+				readFully(channel, extent, buffer);
+			}
+		} else{
+			readFully(segment.channel, extent, buffer);
+		}
+		buffer.flip();
+		
+		return buffer;
+	}
+	
+	private static void readFully(FileChannel channel, Extent extent, ByteBuffer buffer) throws IOException{
+		while (buffer.hasRemaining()){
+			if (channel.read(buffer, extent.offset + buffer.position()) < 0){
+				throw new EOFException("segment "+extent.segment+" ended before the bucket at "+extent.offset+" of length "+extent.length);
+			}
+		}
+	}
+	
+	private static void writeFully(Segment segment, Extent extent, ByteBuffer payload) throws IOException{
+		while (payload.hasRemaining()){
+			segment.channel.write(payload, extent.offset + payload.position());
+		}
+	}
+		
+	/**
+	 * Reserves space for a bucket at the end of the newest segment, starting a new segment if it would not fit. The
+	 * caller writes the bucket there and only then points the index at it, so that nothing reads it half written.
+	 */
+	private Extent reserve(int length) throws IOException{
+		
+		if (currentSegment.size > 0 && currentSegment.size + length > segmentSize){
+			currentSegment = openSegment(currentSegment.id + 1);
+		}
+		
+		Extent extent = new Extent(currentSegment.id, currentSegment.size, length);
+		
+		currentSegment.size += length;
+		
+		return extent;
+	}
+	
+	/**
+	 * Marks the space of a bucket's previous copy as garbage, compacting its segment if it is now mostly garbage.
+	 */
+	private void release(Extent extent) throws IOException{
+		if (extent == null){
+			return;
+		}
+		
+		Segment segment = segments.get(extent.segment);
+		segment.liveBytes -= extent.length;
+		
+		compactIfMostlyGarbage(segment);
+	}
+	
+	private void compactIfMostlyGarbage(Segment segment) throws IOException{
+		// a write can release the previous copy of its bucket from the same segment it wrote to, which may already have
+		// compacted it by the time the write checks its own segment
+		
+		if (!closed && segments.get(segment.id) == segment && segment != currentSegment && segment.numInFlight == 0 && segment.liveBytes * 2 < segment.size){
+			compact(segment);
+		}
+	}
+	
+	private void compact(Segment segment) throws IOException{
+		List<Integer> bucketIds = new ArrayList<Integer>();
+		
+		for (Entry<Integer, Extent> entry: index.entrySet()){
+			if (entry.getValue().segment == segment.id){
+				bucketIds.add(entry.getKey());
+			}
+		}
+		
+		LOG.log(Level.INFO, "compacting segment "+segment.id+" by moving its "+bucketIds.size()+" remaining buckets ("+segment.liveBytes+" of "+segment.size+" bytes)");
+		
+		// rare enough that the buckets are moved while holding the lock
+		
+		for (int bucketId: bucketIds){
+			ByteBuffer payload = readExtent(segment, index.get(bucketId), false);
+			Extent extent = reserve(payload.remaining());
+			
+			writeFully(currentSegment, extent, payload);
+			currentSegment.liveBytes += extent.length;
+			index.put(bucketId, extent);
+		}
+		
+		segments.remove(segment.id);
+		segment.channel.close();
+		Files.delete(segment.file);
+	}
+	
+	private Segment openSegment(int id) throws IOException{
+		Path file = directory.resolve("segment_"+id+".dat");
+		Segment segment = new Segment(id, file, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+		
+		segments.put(id, segment);
+		
+		return segment;
+	}
+	
+	private void writeIndex(Path indexFile) throws IOException{
+		Path tmpIndexFile = indexFile.resolveSibling(INDEX_FILE_NAME+".tmp");
+		
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpIndexFile)))){
+			out.writeInt(segments.size());
+			
+			for (Segment segment: segments.values()){
+				out.writeInt(segment.id);
+				out.writeLong(segment.size);
+			}
+			
+			out.writeInt(index.size());
+			
+			for (Entry<Integer, Extent> entry: index.entrySet()){
+				out.writeInt(entry.getKey());
+				out.writeInt(entry.getValue().segment);
+				out.writeLong(entry.getValue().offset);
+				out.writeInt(entry.getValue().length);
+			}
+		}
+		Files.move(tmpIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private void readIndex(Path indexFile) throws IOException{
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))){
+			int numSegments = in.readInt();
+			
+			for (int i = 0; i < numSegments; i++){
+				currentSegment = openSegment(in.readInt()); // the segments are written in order so the last is the newest
+				currentSegment.size = in.readLong();
+			}
+			
+			int numBuckets = in.readInt();
+			
+			for (int i = 0; i < numBuckets; i++){
+				int bucketId = in.readInt();
+				Extent extent = new Extent(in.readInt(), in.readLong(), in.readInt());
+				
+				index.put(bucketId, extent);
+				segments.get(extent.segment).liveBytes += extent.length;
+			}
+		}
+		Files.delete(indexFile); // the segments will no longer match it once anything is written
+	}
+	
+	private static class Segment {
+		
+		private final int id;
+		private final Path file;
+		private final FileChannel channel;
+		private long size;
+		private long liveBytes;
+		private int numInFlight;
+		
+		private Segment(int id, Path file, FileChannel channel){
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+		}
+	}
+	
+	private static class Extent {
+		
+		private final int segment;
+		private final long offset;
+		private final int length;
+		
+		private Extent(int segment, long offset, int length){
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.haines.mclaren.total_transations.util;
 import java.io.Closeable;
 import java.io.Serializable;
 import java.util.Map;
+import java.util.Spliterator;
 import java.util.function.BiFunction;
 import java.util.stream.Stream;
 
@@ -35,6 +36,18 @@ public interface SimpleMap<K, V extends SimpleMap.Keyable<K>> extends Closeable{
 		return events.map(e -> put(e.getKey(), e));
 	}
 
+	/**
+	 * Reduces all the events into this map and puts the results back, as {@link #putAllEvents(Stream)} of
+	 * {@link #processAllEvents(Stream, BiFunction)} does. Maps that can reduce different parts of themselves
+	 * independently may do so in parallel, in which case the events may be applied before the returned stream is iterated.
+	 * @param events
+	 * @param reduceFunction
+	 * @return A stream containing any existing entries or null if there was no corresponding entry
+	 */
+	default Stream<V> reduceAllEvents(Stream<V> events, BiFunction<V, V, V> reduceFunction){
+		return putAllEvents(processAllEvents(events, reduceFunction));
+	}
+	
 	/**
 	 * Returns the total number of elements in this map
 	 * @return
@@ -47,6 +60,15 @@ public interface SimpleMap<K, V extends SimpleMap.Keyable<K>> extends Closeable{
 	 */
 	public Iterable<V> getAllValues();
 	
+	/**
+	 * Returns all the values stored in this map as a {@link Spliterator}, so that they can be read with a parallel
+	 * {@link Stream}. Maps that can load different parts of themselves independently split along those parts.
+	 * @return
+	 */
+	default Spliterator<V> valuesSpliterator(){
+		return getAllValues().spliterator();
+	}
+	
 	public static interface Keyable<K> extends Serializable {
 		K getKey();
 	}
@@ -0,0 +1,115 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A bounded, direct mapped cache of strings keyed on the raw bytes they were decoded from. This allows a deserializer
+ * to return the same {@link String} instance for a key it has seen recently without decoding or allocating anything,
+ * which for data with heavily repeating keys (such as users) removes most of the garbage created whilst parsing. When
+ * two different keys map to the same slot the latest one wins, so the memory used is fixed regardless of the key
+ * cardinality.
+ *
+ * Instances are not thread safe and are intended to be confined to the thread doing the parsing.
+ * @author haines
+ *
+ */
+//@NotThreadSafe
+public class StringInterner {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	
+	private final String[] strings;
+	private final byte[][] keys;
+	private final int[] hashes;
+	private final int mask;
+	private long hits;
+	private long misses;
+	
+	public StringInterner(int capacity){
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1; // round up to a power of 2 so we can mask rather than mod
+		
+		this.strings = new String[size];
+		this.keys = new byte[size][];
+		this.hashes = new int[size];
+		this.mask = size - 1;
+	}
+	
+	public StringInterner(){
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * The hash to supply to {@link #intern(ByteBuffer, int, int, int)}. This mixes in the bytes a word at a time so it is
+	 * cheap even for long keys.
+	 */
+	public static int hash(ByteBuffer buffer, int start, int end){
+		long hash = 0;
+		
+		int i = start;
+		for (; i + Long.BYTES <= end; i += Long.BYTES){
+			hash = (hash ^ buffer.getLong(i)) * 0x9E3779B97F4A7C15L;
+		}
+		for (; i < end; i++){
+			hash = (hash ^ buffer.get(i)) * 0x9E3779B97F4A7C15L;
+		}
+		
+		return (int)(hash ^ (hash >>> 32));
+	}
+	
+	/**
+	 * Returns the string represented by the UTF-8 bytes in the buffer between <code>start</code> (inclusive) and
+	 * <code>end</code> (exclusive). The position of the buffer is not changed.
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @param hash the hash of the bytes as computed by {@link #hash(ByteBuffer, int, int)}
+	 * @return
+	 */
+	public String intern(ByteBuffer buffer, int start, int end, int hash){
+		
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		
+		String existing = strings[slot];
+		if (existing != null && hashes[slot] == hash && matches(keys[slot], buffer, start, end)){
+			hits++;
+			return existing;
+		}
+		misses++;
+		
+		byte[] key = new byte[end - start];
+		for (int i = 0; i < key.length; i++){
+			key[i] = buffer.get(start + i);
+		}
+		
+		String value = new String(key, UTF8);
+		
+		strings[slot] = value;
+		keys[slot] = key;
+		hashes[slot] = hash;
+		
+		return value;
+	}
+	
+	private static boolean matches(byte[] key, ByteBuffer buffer, int start, int end){
+		if (key.length != end - start){
+			return false;
+		}
+		for (int i = 0; i < key.length; i++){
+			if (key[i] != buffer.get(start + i)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public long getHits(){
+		return hits;
+	}
+	
+	public long getMisses(){
+		return misses;
+	}
+}
@@ -0,0 +1,37 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.util.Collection;
+
+/**
+ * A {@link SimpleMap} that can be used as the window of an aggregator: its keys can be removed one at a time as they are
+ * evicted, its values read out when it is pushed downstream, and it can be cleared and swapped for an empty copy of
+ * itself whilst it is drained.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface WindowMap<K, V extends SimpleMap.Keyable<K>> extends SimpleMap<K, V> {
+	
+	/**
+	 * Removes the key from the map.
+	 * @return the value the key had, or null if it was not in the map
+	 */
+	V remove(K key);
+	
+	/**
+	 * Removes all the keys
+	 */
+	void clear();
+	
+	/**
+	 * Creates a new empty map of the same kind and capacity as this one, such as for a spare buffer to swap in whilst
+	 * this one is drained.
+	 */
+	WindowMap<K, V> createEmptyCopy();
+	
+	/**
+	 * Returns a view of the values in this map.
+	 */
+	Collection<V> values();
+}
@@ -0,0 +1,155 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+import com.haines.mclaren.total_transations.util.SimpleMap.Keyable;
+
+/**
+ * A {@link BucketStore} that hands writes off to a background thread so that the caller can carry on aggregating whilst
+ * the bucket is written to the underlying store. At most <code>maxBucketsInFlight</code> buckets are queued at once;
+ * once this is reached, further writes block until one completes so that the memory held by pending buckets is bounded.
+ *
+ * Reads of a bucket that is still waiting to be written are served from a copy of the pending contents rather than the
+ * underlying store. Writes are performed in the order they were submitted so later versions of a bucket always replace
+ * earlier ones. Any failure in the background thread is rethrown from the next call made on the store.
+ *
+ * Different buckets may be written from different threads, as happens when buckets are split in the background, but
+ * writes to the same bucket must come from a single thread so that their order is defined.
+ * @author haines
+ *
+ * @param <K>
+ * @param <V>
+ */
+class WriteBehindBucketStore<K, V extends Keyable<K>> implements BucketStore<K, V> {
+	
+	private static final Logger LOG = Logger.getLogger(WriteBehindBucketStore.class.getName());
+	
+	private final BucketStore<K, V> delegate;
+	private final ExecutorService writer;
+	private final Semaphore inFlight;
+	private final Map<Integer, Map<K, V>> pendingWrites;
+	private final AtomicReference<Exception> failure;
+	
+	WriteBehindBucketStore(BucketStore<K, V> delegate, int maxBucketsInFlight){
+		
+		if (maxBucketsInFlight <= 0){
+			throw new IllegalArgumentException("at least 1 bucket has to be allowed in flight but was "+maxBucketsInFlight);
+		}
+		
+		this.delegate = delegate;
+		this.writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "bucket_writer");
+			thread.setDaemon(true);
+			
+			return thread;
+		});
+		this.inFlight = new Semaphore(maxBucketsInFlight);
+		this.pendingWrites = new ConcurrentHashMap<Integer, Map<K, V>>();
+		this.failure = new AtomicReference<Exception>();
+	}
+	
+	@Override
+	public Map<K, V> read(Node bucket) throws IOException {
+		checkForFailure();
+		
+		Map<K, V> pendingContents = pendingWrites.get(bucket.getId());
+		
+		if (pendingContents != null){
+			// the writer thread only ever reads the pending map so it is safe to copy it whilst it is being written
+			return new HashMap<K, V>(pendingContents);
+		}
+		return delegate.read(bucket);
+	}
+	
+	@Override
+	public void write(Node bucket, Map<K, V> contents) throws IOException {
+		checkForFailure();
+		
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			
+			throw new InterruptedIOException("interrupted waiting to write bucket "+bucket.getId());
+		}
+		
+		pendingWrites.put(bucket.getId(), contents);
+		
+		writer.execute(() -> {
+			try{
+				delegate.write(bucket, contents);
+			} catch (IOException | RuntimeException e){
+				LOG.log(Level.SEVERE, "unable to write bucket "+bucket.getId(), e);
+				
+				failure.compareAndSet(null, e);
+			} finally{
+				pendingWrites.remove(bucket.getId(), contents); // a newer version may have been queued since
+				inFlight.release();
+			}
+		});
+	}
+	
+	@Override
+	public boolean exists(Node bucket) {
+		return pendingWrites.containsKey(bucket.getId()) || delegate.exists(bucket);
+	}
+	
+	@Override
+	public void delete(Node bucket) throws IOException {
+		// make sure that no queued write recreates the bucket after it has been deleted
+		
+		awaitPendingWrites();
+		
+		delegate.delete(bucket);
+	}
+	
+	/**
+	 * Blocks until every write submitted so far has completed.
+	 */
+	void awaitPendingWrites() throws IOException{
+		try {
+			writer.submit(() -> {}).get(); // writes are executed in order so once this has run all previous writes have too
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			
+			throw new InterruptedIOException("interrupted waiting for pending bucket writes");
+		} catch (ExecutionException e) {
+			throw new IOException("unable to wait for pending bucket writes", e);
+		}
+		
+		checkForFailure();
+	}
+	
+	private void checkForFailure() throws IOException{
+		Exception backgroundFailure = failure.get();
+		
+		if (backgroundFailure != null){
+			throw new IOException("a background bucket write failed", backgroundFailure);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try{
+			if (!writer.isShutdown()){
+				awaitPendingWrites();
+			}
+		} finally{
+			writer.shutdown();
+			
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.haines.mclaren.total_transations.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.api.Aggregator.AggregatorWindowedProducer;
+import com.haines.mclaren.total_transations.api.Consumer.SeperateThreadConsumer;
+import com.haines.mclaren.total_transations.domain.UserEvent;
+import com.haines.mclaren.total_transations.domain.UserEvent.FlyweightUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEvent.ImmutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEventCodec;
+import com.haines.mclaren.total_transations.domain.UserEventDeserializer;
+import com.haines.mclaren.total_transations.io.Feeder;
+import com.haines.mclaren.total_transations.util.CollectionUtil;
+import com.haines.mclaren.total_transations.util.EvictionPolicy;
+import com.haines.mclaren.total_transations.util.InMemoryCounterMap;
+import com.haines.mclaren.total_transations.util.KeyDictionary;
+import com.haines.mclaren.total_transations.util.MemoryBudget;
+
+public class AggregatorUnitTest {
+	
+	private static final String TEST_EVENTS = "haines,5\nmclaren,7\nhaines,11\nhaines,13\nmclaren,1\nandy,3\n";
+
+	private CapturingConsumer downstream;
+	private AggregatorWindowedProducer<UserEvent> candidate;
+	
+	@Before
+	public void before(){
+		downstream = new CapturingConsumer();
+		candidate = new AggregatorWindowedProducer<UserEvent>(-1, downstream);
+	}
+	
+	@Test
+	public void givenFlyweightEvents_whenConsumingAndClosing_thenEventsAggregatedByUser() throws IOException{
+		consumeTestEventsAndAssertAggregatedByUser();
+	}
+	
+	@Test
+	public void givenCounterBuffer_whenConsumingAndClosing_thenEventsAggregatedByUser() throws IOException{
+		
+		candidate = AggregatorWindowedProducer.createCountingProducer(-1, null, CollectionUtil.getMemoryBackedCounterMap(16, UserEventCodec.MUTABLE_CODEC), null, UserEvent::getNumTransactions, downstream);
+		
+		consumeTestEventsAndAssertAggregatedByUser();
+	}
+	
+	@Test
+	public void givenEncodedEventsAndDenseCounterBuffer_whenConsumingAndClosing_thenEventsAggregatedByUser() throws IOException{
+		
+		KeyDictionary<Serializable> users = new KeyDictionary<Serializable>();
+		
+		candidate = AggregatorWindowedProducer.createDenseCountingProducer(-1, null, CollectionUtil.getDenseCounterMap(users, 16, UserEventCodec.MUTABLE_CODEC), null, UserEvent::getUserId, UserEvent::getNumTransactions, downstream);
+		
+		consumeTestEventsAndAssertAggregatedByUser(UserEventDeserializer.createEncodingFlyweightDeserializer(users));
+		
+		assertThat(users.size(), is(equalTo(3)));
+	}
+	
+	private void consumeTestEventsAndAssertAggregatedByUser() throws IOException{
+		consumeTestEventsAndAssertAggregatedByUser(UserEventDeserializer.createFlyweightDeserializer());
+	}
+		
+	private void consumeTestEventsAndAssertAggregatedByUser(UserEventDeserializer<FlyweightUserEvent> deserializer) throws IOException{
+		
+		ByteBuffer buffer = ByteBuffer.wrap(TEST_EVENTS.getBytes(Charset.forName("UTF-8")));
+		
+		while(buffer.hasRemaining()){
+			candidate.consume(deserializer.deserialise(buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER));
+		}
+		
+		candidate.close();
+		
+		assertThat(downstream.aggregatedEvents.size(), is(equalTo(3)));
+		assertThat(downstream.aggregatedEvents.get("haines"), is(equalTo(29l)));
+		assertThat(downstream.aggregatedEvents.get("mclaren"), is(equalTo(8l)));
+		assertThat(downstream.aggregatedEvents.get("andy"), is(equalTo(3l)));
+	}
+	
+	@Test
+	public void givenWindowBudget_whenConsumingUsersWithLongNames_thenWindowPushedOnceBudgetExceeded() throws IOException{
+		String longName = String.join("", Collections.nCopies(10, "0123456789")); // 100 characters
+		long entryBytes = MemoryBudget.estimateEntryBytes(longName + "1");
+		
+		candidate = new AggregatorWindowedProducer<UserEvent>(-1, new MemoryBudget("window", entryBytes * 3), CollectionUtil.getMemoryBackMap(Serializable.class, MutableUserEvent.class), null, downstream);
+		
+		for (int i = 0; i < 10; i++){
+			candidate.consume(new ImmutableUserEvent(longName + i, 1));
+			
+			if (i == 1){
+				candidate.consume(new ImmutableUserEvent(longName + 0, 2)); // aggregated so takes no more of the budget
+			}
+		}
+		
+		assertThat(downstream.numPushes, is(equalTo(2))); // pushed on the 4th and 8th user
+		
+		candidate.close();
+		
+		assertThat(downstream.numPushes, is(equalTo(3)));
+		assertThat(downstream.aggregatedEvents.size(), is(equalTo(10)));
+		assertThat(downstream.aggregatedEvents.get(longName + 0), is(equalTo(3l)));
+	}
+	
+	@Test
+	public void givenDownstreamThreadWithFullQueue_whenConsumingAndClosing_thenWindowsWaitForRoomAndNothingLost() throws IOException, InterruptedException{
+		CountDownLatch started = new CountDownLatch(1);
+		SeperateThreadConsumer<Stream<UserEvent>> downstreamThread = new SeperateThreadConsumer<Stream<UserEvent>>(downstream, started, 1);
+		Thread thread = new Thread(downstreamThread, "test_downstream");
+		
+		thread.start();
+		started.await();
+		
+		candidate = AggregatorWindowedProducer.createCountingProducer(1, null, CollectionUtil.getMemoryBackedCounterMap(16, UserEventCodec.MUTABLE_CODEC), null, UserEvent::getNumTransactions, downstreamThread);
+		
+		for (int i = 0; i < 100; i++){
+			candidate.consume(new ImmutableUserEvent("user"+(i % 10), 1)); // pushes a window for nearly every event
+		}
+		candidate.close();
+		thread.join();
+		
+		assertThat(downstream.aggregatedEvents.size(), is(equalTo(10)));
+		
+		for (int i = 0; i < 10; i++){
+			assertThat(downstream.aggregatedEvents.get("user"+i), is(equalTo(10l)));
+		}
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void givenClosedDownstreamThread_whenPushingWindow_thenIllegalStateException() throws IOException{
+		SeperateThreadConsumer<Stream<UserEvent>> downstreamThread = new SeperateThreadConsumer<Stream<UserEvent>>(downstream, new CountDownLatch(1), 1);
+		downstreamThread.close();
+		
+		candidate = AggregatorWindowedProducer.createCountingProducer(1, null, CollectionUtil.getMemoryBackedCounterMap(16, UserEventCodec.MUTABLE_CODEC), null, UserEvent::getNumTransactions, downstreamThread);
+		
+		candidate.consume(new ImmutableUserEvent("haines", 1));
+		candidate.consume(new ImmutableUserEvent("mclaren", 1)); // the window of 1 is full so is pushed downstream
+	}
+	
+	@Test
+	public void givenLRUEvictionAndCounterBuffer_whenConsumingHotUserBetweenColdUsers_thenOnlyColdUsersPushedBeforeClose() throws IOException{
+		
+		candidate = AggregatorWindowedProducer.createCountingProducer(4, null, CollectionUtil.getMemoryBackedCounterMap(16, UserEventCodec.MUTABLE_CODEC), EvictionPolicy.Type.LRU.create(4), UserEvent::getNumTransactions, downstream);
+		
+		consumeHotUserBetweenColdUsersAndAssertHotUserOnlyPushedOnClose();
+	}
+	
+	@Test
+	public void givenTinyLFUEvictionAndWindowBudget_whenConsumingHotUserBetweenColdUsers_thenOnlyColdUsersPushedBeforeClose() throws IOException{
+		MemoryBudget windowBudget = new MemoryBudget("window", MemoryBudget.estimateEntryBytes("cold10") * 4);
+		
+		candidate = new AggregatorWindowedProducer<UserEvent>(-1, windowBudget, CollectionUtil.getMemoryBackMap(Serializable.class, MutableUserEvent.class), EvictionPolicy.Type.WINDOWED_TINY_LFU.create(4), downstream);
+		
+		consumeHotUserBetweenColdUsersAndAssertHotUserOnlyPushedOnClose();
+	}
+	
+	@Test
+	public void givenLRUEvictionAndWindowOfOne_whenConsumingNewUser_thenLatestUserKeptInWindowUntilClose() throws IOException{
+		
+		candidate = AggregatorWindowedProducer.createCountingProducer(1, null, CollectionUtil.getMemoryBackedCounterMap(16, UserEventCodec.MUTABLE_CODEC), EvictionPolicy.Type.LRU.create(1), UserEvent::getNumTransactions, downstream);
+		
+		candidate.consume(new ImmutableUserEvent("haines", 1));
+		candidate.consume(new ImmutableUserEvent("mclaren", 2)); // the policy chooses both users but only haines is evicted
+		
+		assertThat(downstream.aggregatedEvents, is(equalTo(Collections.singletonMap("haines", 1l))));
+		
+		candidate.consume(new ImmutableUserEvent("mclaren", 3));
+		candidate.close();
+		
+		assertThat(downstream.aggregatedEvents.size(), is(equalTo(2)));
+		assertThat(downstream.aggregatedEvents.get("mclaren"), is(equalTo(5l)));
+	}
+	
+	private void consumeHotUserBetweenColdUsersAndAssertHotUserOnlyPushedOnClose() throws IOException{
+		for (int i = 10; i < 50; i++){
+			candidate.consume(new ImmutableUserEvent("hot", 2));
+			candidate.consume(new ImmutableUserEvent("cold"+i, 1));
+		}
+		
+		assertThat(downstream.numPushes > 0, is(equalTo(true)));
+		assertThat(downstream.aggregatedEvents.containsKey("hot"), is(equalTo(false)));
+		
+		candidate.close();
+		
+		assertThat(downstream.aggregatedEvents.size(), is(equalTo(41)));
+		assertThat(downstream.aggregatedEvents.get("hot"), is(equalTo(80l)));
+		
+		for (int i = 10; i < 50; i++){
+			assertThat(downstream.aggregatedEvents.get("cold"+i), is(equalTo(1l)));
+		}
+	}
+	
+	@Test
+	public void givenCounterBufferPushedToAnotherThread_whenConsumingManyWindows_thenAllEventsAggregated() throws IOException, InterruptedException{
+		CountDownLatch started = new CountDownLatch(1);
+		SeperateThreadConsumer<Stream<UserEvent>> downstreamThread = new SeperateThreadConsumer<Stream<UserEvent>>(downstream, started, 16);
+		Thread thread = new Thread(downstreamThread, "test_downstream");
+		
+		thread.start();
+		started.await();
+		
+		candidate = AggregatorWindowedProducer.createCountingProducer(10, null, CollectionUtil.getMemoryBackedCounterMap(16, UserEventCodec.MUTABLE_CODEC), null, UserEvent::getNumTransactions, downstreamThread);
+		
+		for (int i = 0; i < 1000; i++){
+			candidate.consume(new ImmutableUserEvent("user"+(i % 50), 1)); // swaps buffers every 11 users
+		}
+		candidate.close();
+		thread.join();
+		
+		assertThat(downstream.numPushes > 2, is(equalTo(true)));
+		assertThat(downstream.aggregatedEvents.size(), is(equalTo(50)));
+		
+		for (int i = 0; i < 50; i++){
+			assertThat(downstream.aggregatedEvents.get("user"+i), is(equalTo(20l)));
+		}
+	}
+	
+	private static class CapturingConsumer implements Consumer<Stream<UserEvent>>{
+
+		private final Map<String, Long> aggregatedEvents = new HashMap<String, Long>();
+		private int numPushes;
+		
+		@Override
+		public void close() throws IOException {
+			// no op
+		}
+
+		@Override
+		public boolean consume(Stream<UserEvent> events) {
+			numPushes++;
+			events.forEach(e -> aggregatedEvents.merge(e.getUser(), e.getNumTransactions(), (v1, v2) -> v1 + v2));
+			
+			return true;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.haines.mclaren.total_transations.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.domain.UserEvent;
+import com.haines.mclaren.total_transations.domain.UserEvent.ImmutableUserEvent;
+
+public class DispatcherUnitTest {
+	
+	private static final int NUM_CONSUMERS = 4;
+	private static final int NUM_USERS = 1000;
+	
+	private List<RecordingConsumer> consumers;
+	
+	@Before
+	public void before(){
+		consumers = new ArrayList<RecordingConsumer>();
+		
+		for (int i = 0; i < NUM_CONSUMERS; i++){
+			consumers.add(new RecordingConsumer());
+		}
+	}
+	
+	@Test
+	public void givenPartitionedDispatch_whenDispatchingRepeatedUsers_thenEachUserAlwaysSentToSameConsumer(){
+		Dispatcher<UserEvent> candidate = Dispatcher.FACTORY.createPartitionedDispatch(consumers);
+		
+		for (int repeat = 0; repeat < 3; repeat++){
+			for (int i = 0; i < NUM_USERS; i++){
+				candidate.dispatchEvent(new ImmutableUserEvent("user"+i, 1));
+			}
+		}
+		
+		Map<Object, Integer> userConsumers = new HashMap<Object, Integer>();
+		
+		for (int consumer = 0; consumer < NUM_CONSUMERS; consumer++){
+			for (UserEvent event: consumers.get(consumer).events){
+				Integer previousConsumer = userConsumers.put(event.getAggregationValue(), consumer);
+				
+				if (previousConsumer != null){
+					assertThat(previousConsumer, is(equalTo(consumer)));
+				}
+				assertThat(Dispatcher.getPartition(event.getAggregationValue(), NUM_CONSUMERS), is(equalTo(consumer)));
+			}
+		}
+		assertThat(userConsumers.size(), is(equalTo(NUM_USERS)));
+	}
+	
+	@Test
+	public void givenPartitionedDispatch_whenDispatchingDistinctUsers_thenUsersSpreadOverAllConsumers(){
+		Dispatcher<UserEvent> candidate = Dispatcher.FACTORY.createPartitionedDispatch(consumers);
+		
+		for (int i = 0; i < NUM_USERS; i++){
+			candidate.dispatchEvent(new ImmutableUserEvent("user"+i, 1));
+		}
+		
+		for (RecordingConsumer consumer: consumers){
+			assertThat(consumer.events.size() > NUM_USERS / NUM_CONSUMERS / 2, is(equalTo(true)));
+		}
+	}
+	
+	@Test
+	public void givenRoundRobinDispatch_whenDispatchingEvents_thenEventsSentToEachConsumerInTurn(){
+		Dispatcher<UserEvent> candidate = Dispatcher.FACTORY.createRoundRobinDispatch(consumers);
+		
+		for (int i = 0; i < NUM_CONSUMERS * 2; i++){
+			candidate.dispatchEvent(new ImmutableUserEvent("user", 1));
+		}
+		
+		for (RecordingConsumer consumer: consumers){
+			assertThat(consumer.events.size(), is(equalTo(2)));
+		}
+	}
+	
+	private static class RecordingConsumer implements Consumer<UserEvent>{
+		
+		private final List<UserEvent> events = new ArrayList<UserEvent>();
+		
+		@Override
+		public boolean consume(UserEvent event) {
+			events.add(event);
+			
+			return true;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			// no op
+		}
+	}
+}
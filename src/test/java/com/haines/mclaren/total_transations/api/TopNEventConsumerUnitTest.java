@@ -6,6 +6,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.CoreMatchers.hasItems;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.stream.StreamSupport;
 
 import org.hamcrest.BaseMatcher;
@@ -81,6 +82,33 @@ public class TopNEventConsumerUnitTest {
 		assertThat(best, hasSize(5));
 	}
 
+	@Test
+	public void given3Partials_whenClosingAll_thenTopNMergedFromAllPartitions() throws IOException, InterruptedException{
+		List<Consumer<UserEvent>> partials = candidate.createPartials(3);
+		
+		partials.get(0).consume(createTestEvent("haines123", 345));
+		partials.get(0).consume(createTestEvent("haines124", 34));
+		partials.get(0).consume(createTestEvent("haines125", 45));
+		partials.get(1).consume(createTestEvent("haines126", 543));
+		partials.get(1).consume(createTestEvent("haines127", 65));
+		partials.get(1).consume(createTestEvent("haines128", 33));
+		partials.get(2).consume(createTestEvent("haines129", 65476));
+		partials.get(2).consume(createTestEvent("haines130", 4));
+		
+		for (Consumer<UserEvent> partial: partials){
+			partial.close();
+		}
+		
+		Iterable<UserEvent> best = candidate.waitAndGetBestNEvents();
+		
+		assertThat(best, hasAllItemsInOrder(createTestEvent("haines129", 65476), 
+											createTestEvent("haines126", 543),
+											createTestEvent("haines123", 345),
+											createTestEvent("haines127", 65),
+											createTestEvent("haines125", 45)));
+		assertThat(best, hasSize(5));
+	}
+	
 	private UserEvent createTestEvent(String user, int numTransactions) {
 		return new ImmutableUserEvent(user, numTransactions);
 	}
@@ -0,0 +1,106 @@
+package com.haines.mclaren.total_transations.domain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.haines.mclaren.total_transations.domain.UserEvent.FlyweightUserEvent;
+import com.haines.mclaren.total_transations.io.Feeder;
+
+/**
+ * Compares the byte at a time deserializer against the SWAR (word at a time) one, and the flyweight version which also
+ * interns the usernames. Each invocation parses a buffer of {@link #NUM_EVENTS} csv lines.
+ * @author haines
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserEventDeserializerBenchmark {
+	
+	private static final int NUM_EVENTS = 100_000;
+	
+	private static final long SEED = 1343456464;
+	
+	@Param({"8", "32"})
+	private int userNameLength;
+	
+	@Param({"1000", "1000000"})
+	private int numDistinctUsers;
+	
+	private ByteBuffer events;
+	private UserEventDeserializer<FlyweightUserEvent> flyweightDeserializer;
+	
+	@Setup
+	public void setup(){
+		Random rnd = new Random(SEED);
+		StringBuilder lines = new StringBuilder();
+		
+		for (int i = 0; i < NUM_EVENTS; i++){
+			String user = Integer.toString(rnd.nextInt(numDistinctUsers), Character.MAX_RADIX);
+			
+			for (int j = user.length(); j < userNameLength; j++){
+				lines.append('_');
+			}
+			lines.append(user).append(Feeder.CSV_FIELD_DELIMITER).append(Math.abs(rnd.nextInt())).append(Feeder.CSV_EVENT_DELIMITER);
+		}
+		
+		byte[] data = lines.toString().getBytes(Charset.forName("UTF-8"));
+		
+		events = ByteBuffer.allocateDirect(data.length);
+		events.put(data);
+		
+		flyweightDeserializer = UserEventDeserializer.createFlyweightDeserializer();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_EVENTS)
+	public void byteAtATime(Blackhole blackhole){
+		deserializeAll(UserEventDeserializer.IMMUTABLE_DESERIALIZER, blackhole);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_EVENTS)
+	public void swar(Blackhole blackhole){
+		deserializeAll(UserEventDeserializer.SWAR_IMMUTABLE_DESERIALIZER, blackhole);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_EVENTS)
+	public void swarFlyweight(Blackhole blackhole){
+		deserializeAll(flyweightDeserializer, blackhole);
+	}
+	
+	private void deserializeAll(UserEventDeserializer<?> deserializer, Blackhole blackhole){
+		events.clear();
+		
+		while(events.hasRemaining()){
+			blackhole.consume(deserializer.deserialise(events, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER));
+		}
+	}
+	
+	public static void main(String[] args) throws RunnerException{
+		new Runner(new OptionsBuilder().include(UserEventDeserializerBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -2,13 +2,17 @@ package com.haines.mclaren.total_transations.domain;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import org.junit.Test;
 
+import com.haines.mclaren.total_transations.domain.UserEvent.FlyweightUserEvent;
 import com.haines.mclaren.total_transations.io.Feeder;
 
 public class UserEventDeserializerUnitTest {
@@ -45,6 +49,67 @@ public class UserEventDeserializerUnitTest {
 		assertThat(event.getNumTransactions(), is(equalTo(1723019229l)));
 	}
 
+	@Test
+	public void givenFlyweightDeserializerAndRepeatedUsers_whenCallingDeserialize_thenSameInstancesReused(){
+		
+		UserEventDeserializer<FlyweightUserEvent> candidate = UserEventDeserializer.createFlyweightDeserializer();
+		ByteBuffer buffer = getByteBuffer("nc71n,2055697719\n574i6,435205670\nnc71n,1723019229\n");
+		
+		UserEvent event = candidate.deserialise(buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+		String firstUser = event.getUser();
+		
+		assertThat(firstUser, is(equalTo("nc71n")));
+		assertThat(event.getNumTransactions(), is(equalTo(2055697719l)));
+		
+		UserEvent nextEvent = candidate.deserialise(buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+		
+		assertThat(nextEvent, is(sameInstance(event)));
+		assertThat(nextEvent.getUser(), is(equalTo("574i6")));
+		assertThat(nextEvent.getNumTransactions(), is(equalTo(435205670l)));
+		
+		nextEvent = candidate.deserialise(buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+		
+		assertThat(nextEvent.getUser(), is(sameInstance(firstUser))); // interned rather than decoded again
+		assertThat(nextEvent.getNumTransactions(), is(equalTo(1723019229l)));
+	}
+	
+	@Test
+	public void givenTransactionsLargerThanAnInt_whenCallingDeserialize_thenLongReturned(){
+		UserEvent event = UserEventDeserializer.IMMUTABLE_DESERIALIZER.deserialise(getByteBuffer("nc71n,9876543210123\n"), Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+		
+		assertThat(event.getNumTransactions(), is(equalTo(9876543210123l)));
+	}
+	
+	@Test
+	public void givenSwarDeserializerAndMultipleUserEvents_whenCallingDeserialze_thenSameEventsAsByteAtATime(){
+		
+		// a mix of users and numbers shorter and longer than a word, whitespace and an unterminated final line
+		String events = "nc71n,2055697719\na,1\nthisisaverylongusername_123456789,12345678901234567\n574i6, 4352 05670\r\nsamelengths,12345678\n5i1a5,1723019229";
+		
+		for (ByteBuffer buffer: Arrays.asList(getByteBuffer(events), getDirectByteBuffer(events), getByteBuffer(events).order(ByteOrder.LITTLE_ENDIAN))){
+			ByteBuffer expectedBuffer = getByteBuffer(events);
+			
+			while(expectedBuffer.hasRemaining()){
+				UserEvent expected = UserEventDeserializer.IMMUTABLE_DESERIALIZER.deserialise(expectedBuffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+				UserEvent actual = UserEventDeserializer.SWAR_IMMUTABLE_DESERIALIZER.deserialise(buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER);
+				
+				assertThat(actual, is(equalTo(expected)));
+				assertThat(buffer.position(), is(equalTo(expectedBuffer.position())));
+			}
+			assertThat(buffer.hasRemaining(), is(equalTo(false)));
+		}
+	}
+	
+	private ByteBuffer getDirectByteBuffer(String events) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+		
+		buffer.put(events.getBytes(Charset.forName("UTF-8")));
+		
+		buffer.flip();
+		
+		return buffer;
+	}
+	
 	private ByteBuffer getByteBuffer(String events) {
 		ByteBuffer buffer = ByteBuffer.allocate(1024);
 		
@@ -4,7 +4,9 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.junit.Test;
 
@@ -52,4 +54,30 @@ public class UserEventSerializerUnitTest {
 		
 		assertThat(result, is(equalTo(EXPECTED_MULTI_ROW_USER_EVENT_LINE)));
 	}
+	
+	@Test
+	public void givenSerializerAndEdgeCaseEvents_whenCallingSerialize_thenSameAsStringEncoding(){
+		
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		
+		UserEventSerializer.SERIALIZER.serialise(new ImmutableUserEvent("h\u00e4ines", 0), buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER );
+		UserEventSerializer.SERIALIZER.serialise(new ImmutableUserEvent("max", Long.MAX_VALUE), buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER );
+		UserEventSerializer.SERIALIZER.serialise(new ImmutableUserEvent("min", Long.MIN_VALUE), buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER );
+		UserEventSerializer.SERIALIZER.serialise(new ImmutableUserEvent("negative", -1234567890123l), buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER );
+		
+		buffer.flip();
+		
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		
+		assertThat(new String(data, Charset.forName("UTF-8")), is(equalTo("h\u00e4ines,0\nmax,"+Long.MAX_VALUE+"\nmin,"+Long.MIN_VALUE+"\nnegative,-1234567890123\n")));
+	}
+
+	@Test(expected=BufferOverflowException.class)
+	public void givenBufferTooSmallForEvent_whenCallingSerialize_thenBufferOverflowExceptionThrown(){
+		
+		ByteBuffer buffer = ByteBuffer.allocate(10);
+		
+		UserEventSerializer.SERIALIZER.serialise(new ImmutableUserEvent("nc71n", 2055697719), buffer, Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER );
+	}
 }
@@ -4,6 +4,11 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -57,6 +62,96 @@ public class FeederUnitTest {
 		assertThat(candidate.hasNext(), is(equalTo(false)));
 	}
 
+	@Test
+	public void givenEventsFileLargerThanWindow_whenIterating_allEventsReturnedAcrossWindows() throws IOException, URISyntaxException{
+		
+		// 20 byte windows mean that most events straddle the edge of a window and have to be carried over to the next.
+		Feeder<ImmutableUserEvent> candidate = Feeder.FACTORY.createFileFeeder(loadTestFile("/userEvents_small.txt"), UserEventDeserializer.IMMUTABLE_DESERIALIZER, false, 20);
+		
+		assertAllSmallEvents(candidate);
+	}
+	
+	@Test
+	public void givenEventsFileLargerThanWindow_whenIteratingUsingMemoryMapping_allEventsReturnedAcrossWindows() throws IOException, URISyntaxException{
+		
+		Feeder<ImmutableUserEvent> candidate = Feeder.FACTORY.createFileFeeder(loadTestFile("/userEvents_small.txt"), UserEventDeserializer.IMMUTABLE_DESERIALIZER, true, 20);
+		
+		assertAllSmallEvents(candidate);
+	}
+	
+	@Test
+	public void givenBufferPool_whenIteratingFilesOneAfterAnother_thenWindowReusedAndAllEventsReturned() throws IOException, URISyntaxException{
+		
+		BufferPool pool = new BufferPool(2, true);
+		
+		for (int i = 0; i < 3; i++){
+			assertAllSmallEvents(Feeder.FACTORY.createFileFeeder(loadTestFile("/userEvents_small.txt"), UserEventDeserializer.IMMUTABLE_DESERIALIZER, 1024 * 1024, pool));
+		}
+		
+		// the window is only as big as the file and is given back on close for the next feeder to borrow
+		
+		assertThat(pool.getMisses(), is(equalTo(1L)));
+		assertThat(pool.getHits(), is(equalTo(2L)));
+		assertThat(pool.acquire(1).capacity() < 1024, is(equalTo(true)));
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void givenWindowSmallerThanAnEvent_whenIterating_thenExceptionThrown() throws IOException, URISyntaxException{
+		
+		Feeder<ImmutableUserEvent> candidate = Feeder.FACTORY.createFileFeeder(loadTestFile("/userEvents_small.txt"), UserEventDeserializer.IMMUTABLE_DESERIALIZER, false, 8);
+		
+		candidate.hasNext();
+	}
+	
+	@Test
+	public void givenEventsFile_whenSplittingIntoRanges_allEventsReturnedOnceInOrder() throws IOException, URISyntaxException{
+		
+		List<Feeder<ImmutableUserEvent>> feeders = Feeder.FACTORY.createFileRangeFeeders(loadTestFile("/userEvents_small.txt"), () -> UserEventDeserializer.IMMUTABLE_DESERIALIZER, false, 3);
+		
+		List<String> users = new ArrayList<String>();
+		for (Feeder<ImmutableUserEvent> feeder: feeders){
+			try{
+				while(feeder.hasNext()){
+					users.add(feeder.next().getUser());
+				}
+			} finally{
+				feeder.close();
+			}
+		}
+		
+		assertThat(feeders.size(), is(equalTo(3)));
+		assertThat(users, is(equalTo(Arrays.asList("5i1a5", "2ehsc", "7hcie", "nc71n", "574i6"))));
+	}
+	
+	@Test
+	public void givenEventsFile_whenStreamingInParallel_allEventsReturnedOnceInOrder() throws IOException, URISyntaxException{
+		
+		// a small window allows the spliterator to split the file into ranges
+		try(Stream<ImmutableUserEvent> events = Feeder.FACTORY.createFileStream(loadTestFile("/userEvents_small.txt"), Feeder.CSV_FIELD_DELIMITER, Feeder.CSV_EVENT_DELIMITER, () -> UserEventDeserializer.IMMUTABLE_DESERIALIZER, true, 20)){
+			
+			assertThat(events.isParallel(), is(equalTo(true)));
+			assertThat(events.map(e -> e.getUser()).collect(Collectors.toList()), is(equalTo(Arrays.asList("5i1a5", "2ehsc", "7hcie", "nc71n", "574i6"))));
+		}
+	}
+	
+	private void assertAllSmallEvents(Feeder<ImmutableUserEvent> candidate) throws IOException{
+		try{
+			assertThat(candidate.hasNext(), is(equalTo(true)));
+			assertEvent(candidate.next(), "5i1a5",1723019229);
+			assertThat(candidate.hasNext(), is(equalTo(true)));
+			assertEvent(candidate.next(), "2ehsc",1769713922);
+			assertThat(candidate.hasNext(), is(equalTo(true)));
+			assertEvent(candidate.next(), "7hcie",22409236);
+			assertThat(candidate.hasNext(), is(equalTo(true)));
+			assertEvent(candidate.next(), "nc71n",2055697719);
+			assertThat(candidate.hasNext(), is(equalTo(true)));
+			assertEvent(candidate.next(), "574i6",435205670);
+			assertThat(candidate.hasNext(), is(equalTo(false)));
+		} finally{
+			candidate.close();
+		}
+	}
+
 	private void assertEvent(ImmutableUserEvent event, String expectedUser, long expectedNumTransactions) {
 		assertThat(event.getUser(), is(equalTo(expectedUser)));
 		assertThat(event.getNumTransactions(), is(equalTo(expectedNumTransactions)));
@@ -7,6 +7,7 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -15,6 +16,7 @@ import org.junit.Test;
 
 import com.haines.mclaren.total_transations.domain.UserEvent;
 import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEventDeserializer;
 import com.haines.mclaren.total_transations.domain.UserEventSerializer;
 
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -72,6 +74,29 @@ public class PersisterUnitTest {
 		assertThat(contents, is(equalTo(EXPECTED_OUTPUT)));
 	}
 
+	@Test
+	public void givenMultipleEvents_whenBinaryCandidateConsumesThemAll_thenFeederReadsThemBackAcrossWindows() throws IOException, URISyntaxException{
+		Path testPath = getTestPath(TEST_OUTPUT);
+		Files.deleteIfExists(testPath);
+		Persister<UserEvent> candidate = Persister.FACTORY.createCSVPersister(testPath, UserEventSerializer.BINARY_SERIALIZER, false, 16);
+		
+		List<UserEvent> events = new ArrayList<UserEvent>(TEST_EVENTS);
+		events.add(new MutableUserEvent("h\u00e4ines", -5l));
+		
+		events.stream().forEach(e -> candidate.consume(e));
+		
+		candidate.close();
+		
+		assertThat(Files.size(testPath) < EXPECTED_OUTPUT.length(), is(equalTo(true)));
+		
+		List<UserEvent> readEvents = new ArrayList<UserEvent>();
+		try(Feeder<MutableUserEvent> feeder = Feeder.FACTORY.createBinaryFileFeeder(testPath, UserEventDeserializer.BINARY_MUTABLE_DESERIALIZER, 16)){ // small window so events straddle the window edges
+			feeder.forEachRemaining(readEvents::add);
+		}
+		
+		assertThat(readEvents, is(equalTo(events)));
+	}
+	
 	private static Path getTestPath(String pathName) throws URISyntaxException {
 		URI rootDir = PersisterUnitTest.class.getResource("/").toURI();
 		
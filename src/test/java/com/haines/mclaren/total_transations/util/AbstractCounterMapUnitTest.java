@@ -0,0 +1,116 @@
+package com.haines.mclaren.total_transations.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.SyntheticFeeder;
+import com.haines.mclaren.total_transations.domain.UserEvent;
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.io.Feeder;
+
+/**
+ * The tests that every {@link CounterMap} has to pass. Each implementation's test extends this, creating a map small
+ * enough that it has to grow, and only adds the tests for what is particular to that implementation.
+ */
+public abstract class AbstractCounterMapUnitTest {
+	
+	private static final long TEST_SEED = 9456723456l;
+	
+	private CounterMap<Serializable, MutableUserEvent> candidate;
+	
+	protected abstract CounterMap<Serializable, MutableUserEvent> createCandidate() throws Exception;
+	
+	@Before
+	public void createCounterMap() throws Exception{
+		candidate = createCandidate();
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGet_thenLatestValuesReturned() throws IOException{
+		Map<Serializable, MutableUserEvent> expectedEvents = new HashMap<Serializable, MutableUserEvent>();
+		
+		try(Feeder<UserEvent> events = new SyntheticFeeder(2500, TEST_SEED, Collections.emptyList(), 0.0, 5, SyntheticFeeder.LARGE_ALPHABET)){
+			while (events.hasNext()){
+				MutableUserEvent event = (MutableUserEvent)events.next().toMutableEvent();
+				
+				MutableUserEvent previousEvent = candidate.put(event.getKey(), event);
+				
+				assertThat(previousEvent, is(equalTo(expectedEvents.put(event.getKey(), event))));
+			}
+		}
+		
+		for (MutableUserEvent event: expectedEvents.values()){
+			assertThat(candidate.get(event.getKey()), is(equalTo(event)));
+		}
+		assertThat(candidate.get("unknownUser"), is(nullValue()));
+		assertThat(candidate.size(), is(equalTo((long)expectedEvents.size())));
+		
+		candidate.close();
+		
+		assertThat(CollectionUtil.loadAllElementsIntoMemoryMap(candidate), is(equalTo(expectedEvents)));
+	}
+	
+	@Test
+	public void givenExistingKey_whenCallingAddTo_thenCounterUpdatedInPlace(){
+		assertThat(candidate.addTo("user1", 5), is(equalTo(5L)));
+		assertThat(candidate.addTo("user1", 3), is(equalTo(8L)));
+		
+		for (int i = 0; i < 100; i++){
+			candidate.addTo("user"+i, 1); // causes the map to be resized a number of times
+		}
+		
+		assertThat(candidate.get("user1"), is(equalTo(new MutableUserEvent("user1", 9))));
+		assertThat(candidate.get("user99"), is(equalTo(new MutableUserEvent("user99", 1))));
+		assertThat(candidate.size(), is(equalTo(100L)));
+		assertThat(candidate.values().size(), is(equalTo(100)));
+	}
+	
+	@Test
+	public void givenClearedMap_whenAddingKeys_thenOnlyNewCountersReturned(){
+		for (int i = 0; i < 100; i++){
+			candidate.addTo("user"+i, i);
+		}
+		candidate.clear();
+		
+		assertThat(candidate.size(), is(equalTo(0L)));
+		assertThat(candidate.get("user1"), is(nullValue()));
+		
+		candidate.addTo("user1", 2);
+		
+		assertThat(CollectionUtil.loadAllElementsIntoMemoryMap(candidate), is(equalTo(Collections.singletonMap("user1", new MutableUserEvent("user1", 2)))));
+	}
+	
+	@Test
+	public void givenRemovedKeys_whenCallingGet_thenOnlyRemainingCountersReturned(){
+		for (int i = 0; i < 1000; i++){
+			candidate.addTo("user"+i, i);
+		}
+		
+		for (int i = 0; i < 1000; i += 2){
+			assertThat(candidate.remove("user"+i), is(equalTo(new MutableUserEvent("user"+i, i))));
+		}
+		
+		assertThat(candidate.remove("user0"), is(nullValue()));
+		assertThat(candidate.size(), is(equalTo(500L)));
+		
+		for (int i = 0; i < 1000; i++){
+			assertThat(candidate.get("user"+i), is(equalTo(i % 2 == 0?null:new MutableUserEvent("user"+i, i))));
+		}
+		assertThat(candidate.values().size(), is(equalTo(500)));
+		
+		candidate.addTo("user0", 7);
+		
+		assertThat(candidate.get("user0"), is(equalTo(new MutableUserEvent("user0", 7))));
+	}
+}
@@ -0,0 +1,60 @@
+package com.haines.mclaren.total_transations.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.Serializable;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEventCodec;
+
+public class DenseCounterMapUnitTest extends AbstractCounterMapUnitTest {
+	
+	private KeyDictionary<Serializable> dictionary;
+	private DenseCounterMap<Serializable, MutableUserEvent> candidate;
+	
+	@Override
+	protected CounterMap<Serializable, MutableUserEvent> createCandidate(){
+		dictionary = new KeyDictionary<Serializable>();
+		candidate = new DenseCounterMap<Serializable, MutableUserEvent>(dictionary, 4, UserEventCodec.MUTABLE_CODEC); // tiny so that it has to grow
+	
+		return candidate;
+	}
+	
+	@Test
+	public void givenEncodedKeys_whenCallingAddToById_thenCountersDecodedByName(){
+		int user1 = dictionary.encode("user1");
+		int user2 = dictionary.encode("user2");
+		
+		assertThat(candidate.addTo(user1, 5), is(equalTo(5L)));
+		assertThat(candidate.addTo(user1, 3), is(equalTo(8L)));
+		assertThat(candidate.addTo("user2", 1), is(equalTo(1L))); // the same counter as its id
+		assertThat(candidate.addTo(user2, 1), is(equalTo(2L)));
+		
+		assertThat(candidate.get("user1"), is(equalTo(new MutableUserEvent("user1", 8))));
+		assertThat(candidate.get("user2"), is(equalTo(new MutableUserEvent("user2", 2))));
+		assertThat(candidate.size(), is(equalTo(2L)));
+	}
+	
+	@Test
+	public void givenKeysEncodedFromManyThreads_whenDecoding_thenEachKeyHasOneDenseIdAndFirstInstanceReturned(){
+		String firstInstance = new String("user7");
+		int firstId = dictionary.encode(firstInstance);
+		
+		IntStream.range(0, 100_000).parallel().forEach(i -> dictionary.encode(new String("user"+(i % 5000))));
+		
+		assertThat(dictionary.size(), is(equalTo(5000)));
+		
+		for (int id = 0; id < 5000; id++){
+			assertThat(dictionary.lookup(dictionary.decode(id)), is(equalTo(id)));
+		}
+		assertThat(dictionary.encode("user7"), is(equalTo(firstId)));
+		assertThat(dictionary.decode(firstId), is(sameInstance((Serializable)firstInstance)));
+		assertThat(dictionary.lookup("unknownUser"), is(equalTo(KeyDictionary.NOT_ENCODED)));
+	}
+}
@@ -0,0 +1,143 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.haines.mclaren.total_transations.SyntheticFeeder;
+import com.haines.mclaren.total_transations.domain.UserEvent;
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserTransactionDomainFactory;
+import com.haines.mclaren.total_transations.domain.UserTransactionDomainFactory.SpillFormat;
+import com.haines.mclaren.total_transations.io.Feeder;
+import com.haines.mclaren.total_transations.io.Util;
+
+/**
+ * Compares the original hash tree layout of the {@link DiskBackedMap} against the extendible hashing directory. Each
+ * iteration fills a new map with {@link #NUM_EVENTS} synthetic events and then looks every one of them up again. At the
+ * end of each iteration the fill distribution of the leaf buckets is printed, as how evenly the buckets are filled decides
+ * how many of them there are and so how much IO is needed.
+ * @author haines
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiskBackedMapLayoutBenchmark {
+	
+	private static final int NUM_EVENTS = 50_000;
+	
+	private static final long SEED = 1343456464;
+	
+	@Param({"HASH_TREE", "EXTENDIBLE_HASHING"})
+	private DiskBackedMap.Layout layout;
+	
+	@Param({"256"})
+	private int maxBucketSize;
+	
+	private List<MutableUserEvent> events;
+	private Path workingDirectory;
+	private DiskBackedMap<Serializable, MutableUserEvent> map;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		events = new ArrayList<MutableUserEvent>(NUM_EVENTS);
+		workingDirectory = Files.createTempDirectory("diskBackedMapLayoutBenchmark");
+		
+		try(Feeder<UserEvent> feeder = new SyntheticFeeder(NUM_EVENTS, SEED, Collections.emptyList(), 0.0, 10, SyntheticFeeder.LARGE_ALPHABET)){
+			while (feeder.hasNext()){
+				events.add((MutableUserEvent)feeder.next().toMutableEvent());
+			}
+		}
+	}
+	
+	@Setup(Level.Iteration)
+	public void createMap() throws ClassNotFoundException, IOException{
+		map = CollectionUtil.getFileBackedMap(workingDirectory.resolve("map"), maxBucketSize, UserTransactionDomainFactory.createIOFactory(maxBucketSize * 64, SpillFormat.BINARY), DiskBackedMap.Options.DEFAULT.withResidentBuckets(16, EvictionPolicy.Type.LRU).withLayout(layout));
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_EVENTS * 2)
+	public void putThenGet(Blackhole blackhole){
+		for (MutableUserEvent event: events){
+			blackhole.consume(map.put(event.getKey(), event));
+		}
+		
+		for (MutableUserEvent event: events){
+			blackhole.consume(map.get(event.getKey()));
+		}
+	}
+	
+	@TearDown(Level.Iteration)
+	public void reportFillDistribution() throws IOException{
+		int[] bucketSizes = map.getLeafBucketSizes();
+		
+		map.close();
+		
+		System.out.println();
+		System.out.println(layout+": "+describeFillDistribution(bucketSizes, maxBucketSize));
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException{
+		Util.recursiveDelete(workingDirectory);
+	}
+	
+	static String describeFillDistribution(int[] bucketSizes, int maxBucketSize){
+		long total = 0;
+		int emptyBuckets = 0;
+		int maxSize = 0;
+		int[] quartiles = new int[4];
+		
+		for (int bucketSize: bucketSizes){
+			total += bucketSize;
+			maxSize = Math.max(maxSize, bucketSize);
+			
+			if (bucketSize == 0){
+				emptyBuckets++;
+			}
+			quartiles[Math.min(3, (bucketSize * 4) / maxBucketSize)]++;
+		}
+		
+		double mean = (double)total / bucketSizes.length;
+		double variance = 0;
+		
+		for (int bucketSize: bucketSizes){
+			variance += (bucketSize - mean) * (bucketSize - mean);
+		}
+		
+		return String.format("%d leaf buckets (%d empty) holding %d entries. mean fill: %.1f%%, std dev: %.1f, max: %d. buckets filled 0-25%%: %d, 25-50%%: %d, 50-75%%: %d, 75-100%%: %d",
+				bucketSizes.length, emptyBuckets, total, (mean * 100) / maxBucketSize, Math.sqrt(variance / bucketSizes.length), maxSize, quartiles[0], quartiles[1], quartiles[2], quartiles[3]);
+	}
+	
+	public static void main(String[] args) throws RunnerException{
+		new Runner(new OptionsBuilder().include(DiskBackedMapLayoutBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -2,6 +2,8 @@ package com.haines.mclaren.total_transations.util;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 import java.io.IOException;
@@ -10,10 +12,14 @@ import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -21,10 +27,15 @@ import org.junit.Test;
 import com.haines.mclaren.total_transations.SyntheticFeeder;
 import com.haines.mclaren.total_transations.domain.UserEvent;
 import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEventDeserializer;
+import com.haines.mclaren.total_transations.domain.UserEventSerializer;
 import com.haines.mclaren.total_transations.domain.UserTransactionDomainFactory;
+import com.haines.mclaren.total_transations.domain.UserTransactionDomainFactory.SpillFormat;
 import com.haines.mclaren.total_transations.io.Feeder;
 import com.haines.mclaren.total_transations.io.Util;
 import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.CacheStats;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.KeyFilterStats;
 import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
 
 public class DiskBackedMapUnitTest {
@@ -82,6 +93,45 @@ public class DiskBackedMapUnitTest {
 		assertThat(BucketBuffers.getBucketNumForKey(testNode, 34), is(equalTo(13)));
 	}
 	
+	@Test
+	public void givenExtendibleHashDirectory_whenSplittingNodes_thenOnlySplitNodeHalvedAndDirectoryDoubledWhenNeeded() throws IOException, URISyntaxException{
+		Node root = new Node(0, 2, getTmpLocation(), 0);
+		BucketIndex.ExtendibleHashDirectory candidateIndex = new BucketIndex.ExtendibleHashDirectory(root);
+		
+		int maxId = root.promoteToBranchNode(0);
+		candidateIndex.childrenAttached(root);
+		
+		assertThat(candidateIndex.getGlobalDepth(), is(equalTo(1)));
+		
+		// split the child the key 1234 is in. The directory doubles but the other child stays where it was
+		
+		Node splitNode = candidateIndex.getBucketForKey(1234);
+		Node otherNode = root.getChild(1 - candidateIndex.getChildIndexForKey(root, 1234));
+		
+		splitNode.promoteToBranchNode(maxId);
+		candidateIndex.childrenAttached(splitNode);
+		
+		assertThat(candidateIndex.getGlobalDepth(), is(equalTo(2)));
+		assertThat(candidateIndex.getBucketForKey(1234), is(equalTo(splitNode.getChild(candidateIndex.getChildIndexForKey(splitNode, 1234)))));
+		
+		for (int key = 0; key < 100; key++){
+			Node bucket = candidateIndex.getBucketForKey(key);
+			
+			assertThat(bucket.isLeaf(), is(equalTo(true)));
+			
+			if (candidateIndex.getChildIndexForKey(root, key) != candidateIndex.getChildIndexForKey(root, 1234)){
+				assertThat(bucket, is(equalTo(otherNode)));
+			}
+		}
+		
+		// splitting the shallower node does not need the directory to grow
+		
+		otherNode.promoteToBranchNode(maxId + 2);
+		candidateIndex.childrenAttached(otherNode);
+		
+		assertThat(candidateIndex.getGlobalDepth(), is(equalTo(2)));
+	}
+	
 	@Test
 	public void given4Events_whenCallingPut_thenEventsStoredSuccessfully(){
 		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 4)){
@@ -128,6 +178,299 @@ public class DiskBackedMapUnitTest {
 		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
 	}
 	
+	@Test
+	public void given2500Events_whenCallingPutAndGetAllWithBinarySpillFormat_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144, SpillFormat.BINARY));
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGetAllWithMultipleResidentBuckets_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withResidentBuckets(8, EvictionPolicy.Type.WINDOWED_TINY_LFU));
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGetAllWithWriteBehind_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144, SpillFormat.BINARY), DiskBackedMap.Options.DEFAULT.withResidentBuckets(4, EvictionPolicy.Type.LRU).withWriteBehind(2));
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+		
+		candidate.close();
+		
+		assertThat(CollectionUtil.loadAllElementsIntoMemoryMap(candidate).size(), is(equalTo((int)candidate.size())));
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGetAllWithBackgroundSplitting_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withBackgroundSplitting(true));
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGetWithBackgroundSplittingAndWriteBehind_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144, SpillFormat.BINARY), DiskBackedMap.Options.DEFAULT.withResidentBuckets(4, EvictionPolicy.Type.LRU).withWriteBehind(2).withBackgroundSplitting(true));
+		
+		Map<Serializable, MutableUserEvent> expectedEvents = new HashMap<Serializable, MutableUserEvent>();
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 2500)){
+			candidate.put(event.getAggregationValue(), event);
+			expectedEvents.put(event.getKey(), event);
+			
+			assertThat(candidate.get(event.getKey()), is(equalTo(event))); // may well be in a bucket that is still being split
+		}
+		
+		assertThat(candidate.size(), is(equalTo((long)expectedEvents.size())));
+		
+		candidate.close();
+		
+		assertThat(CollectionUtil.loadAllElementsIntoMemoryMap(candidate), is(equalTo(expectedEvents)));
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGetAllWithExtendibleHashing_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withLayout(DiskBackedMap.Layout.EXTENDIBLE_HASHING));
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+		
+		for (int bucketSize: candidate.getLeafBucketSizes()){
+			assertThat(bucketSize < 5, is(equalTo(true)));
+		}
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGetAllWithExtendibleHashingAndBackgroundSplitting_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144, SpillFormat.BINARY), DiskBackedMap.Options.DEFAULT.withResidentBuckets(4, EvictionPolicy.Type.LRU).withBackgroundSplitting(true).withLayout(DiskBackedMap.Layout.EXTENDIBLE_HASHING));
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+	}
+	
+	@Test
+	public void givenMultipleResidentBuckets_whenOnlyReadingEvents_thenBucketsEvictedWithoutBeingWritten() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withResidentBuckets(2, EvictionPolicy.Type.LRU));
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 100)){
+			candidate.put(event.getAggregationValue(), event);
+		}
+		
+		CacheStats writeStats = candidate.getCacheStats();
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 100)){
+			assertThat(candidate.get(event.getKey()), is(equalTo(event)));
+		}
+		
+		CacheStats readStats = candidate.getCacheStats();
+		
+		assertThat(readStats.getResidentBuckets(), is(equalTo(2)));
+		assertThat(readStats.getHits() > writeStats.getHits(), is(equalTo(true)));
+		assertThat(readStats.getEvictions() - writeStats.getEvictions() > 2, is(equalTo(true)));
+		assertThat(readStats.getCleanEvictions() - writeStats.getCleanEvictions(), is(equalTo(readStats.getEvictions() - writeStats.getEvictions() - 2))); // only the 2 buckets resident after writing are dirty
+	}
+	
+	@Test
+	public void givenKeyFilters_whenGettingUnknownKeys_thenBucketsNotLoaded() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withResidentBuckets(2, EvictionPolicy.Type.LRU).withKeyFilters(10));
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 100)){
+			candidate.put(event.getAggregationValue(), event);
+		}
+		
+		CacheStats writeStats = candidate.getCacheStats();
+		
+		for (int i = 0; i < 100; i++){
+			assertThat(candidate.get("unknownUser"+i), is(nullValue()));
+		}
+		
+		CacheStats readStats = candidate.getCacheStats();
+		KeyFilterStats filterStats = candidate.getKeyFilterStats();
+		
+		assertThat(filterStats.getSkippedLoads() > 50, is(equalTo(true)));
+		assertThat(readStats.getMisses() - writeStats.getMisses(), is(equalTo(filterStats.getFalsePositiveLoads()))); // only false positives touch the disk
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 100)){
+			assertThat(candidate.get(event.getKey()), is(equalTo(event)));
+		}
+	}
+	
+	@Test
+	public void givenClosedMap_whenReopening_thenContentsRestoredFromManifest() throws ClassNotFoundException, IOException, URISyntaxException{
+		reopenAndCheckContentsOfMap(DiskBackedMap.Options.DEFAULT.withResidentBuckets(4, EvictionPolicy.Type.LRU).withKeyFilters(10));
+	}
+	
+	@Test
+	public void givenClosedMapWithExtendibleHashing_whenReopening_thenContentsRestoredFromManifest() throws ClassNotFoundException, IOException, URISyntaxException{
+		reopenAndCheckContentsOfMap(DiskBackedMap.Options.DEFAULT.withLayout(DiskBackedMap.Layout.EXTENDIBLE_HASHING));
+	}
+	
+	@Test
+	public void given2500Events_whenCallingPutAndGetAllWithSegmentStorage_thenEventsReturnedSuccessfully() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getSegmentBackedMap(getTmpLocation(), 5, 4096, UserEventSerializer.BINARY_MUTABLE_SERIALIZER, UserEventDeserializer.BINARY_MUTABLE_DESERIALIZER, DiskBackedMap.Options.DEFAULT.withResidentBuckets(4, EvictionPolicy.Type.LRU).withWriteBehind(2));
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+	}
+	
+	@Test
+	public void given2500Events_whenStreamingValuesInParallelWithReadAhead_thenAllEventsReturned() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withResidentBuckets(4, EvictionPolicy.Type.LRU).withReadAhead(3));
+		
+		Map<Serializable, MutableUserEvent> expectedEvents = new HashMap<Serializable, MutableUserEvent>();
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 2500)){
+			candidate.put(event.getKey(), event);
+			expectedEvents.put(event.getKey(), event);
+		}
+		candidate.close();
+		
+		assertThat(candidate.valuesSpliterator().trySplit(), is(notNullValue())); // split by leaf bucket
+		
+		Map<Serializable, MutableUserEvent> actualEvents = StreamSupport.stream(candidate.valuesSpliterator(), true)
+																		.collect(Collectors.toConcurrentMap(e -> e.getKey(), e -> e));
+		
+		assertThat(actualEvents, is(equalTo(expectedEvents)));
+	}
+	
+	@Test
+	public void given2500EventsReducedTwice_whenReducingInParallel_thenTransactionsSummed() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 5, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withResidentBuckets(4, EvictionPolicy.Type.LRU).withParallelReduction(4));
+		
+		List<MutableUserEvent> events = new ArrayList<MutableUserEvent>();
+		Map<Serializable, Long> expectedTransactions = new HashMap<Serializable, Long>();
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 2500)){
+			events.add(event);
+		}
+		
+		for (int pass = 0; pass < 2; pass++){
+			long numPrevious = 0;
+			long expectedNumPrevious = 0;
+			
+			for (int i = 0; i < events.size(); i += 500){ // in batches so that the buckets are split between them
+				List<MutableUserEvent> batch = events.subList(i, i + 500);
+				
+				numPrevious += candidate.reduceAllEvents(batch.stream().map(e -> new MutableUserEvent(e.getUser(), e.getNumTransactions())), (e1, e2) -> e2 == null?e1:new MutableUserEvent(e1.getUser(), e1.getNumTransactions() + e2.getNumTransactions()))
+										.filter(previous -> previous != null)
+										.count();
+				
+				for (MutableUserEvent event: batch){
+					if (expectedTransactions.containsKey(event.getKey())){
+						expectedNumPrevious++;
+					}
+					expectedTransactions.merge(event.getKey(), event.getNumTransactions(), Long::sum);
+				}
+			}
+			
+			assertThat(numPrevious, is(equalTo(expectedNumPrevious)));
+			
+			candidate.put("residentUser"+pass, new MutableUserEvent("residentUser"+pass, 1)); // leaves a dirty bucket resident for the next pass to take over
+			expectedTransactions.put("residentUser"+pass, 1L);
+		}
+		
+		assertThat(candidate.size(), is(equalTo((long)expectedTransactions.size())));
+		
+		candidate.close();
+		
+		for (MutableUserEvent event: candidate.getAllValues()){
+			assertThat(event.getNumTransactions(), is(equalTo(expectedTransactions.remove(event.getKey()))));
+		}
+		assertThat(expectedTransactions.isEmpty(), is(equalTo(true)));
+	}
+	
+	@Test
+	public void given2500EventsInOneBatch_whenReducing_thenEachBucketLoadedAtMostOnceDespiteSplits() throws ClassNotFoundException, IOException, URISyntaxException{
+		Map<Integer, Integer> bucketLoads = new HashMap<Integer, Integer>();
+		
+		candidate = new DiskBackedMap<Serializable, MutableUserEvent>(new BucketBuffers<Serializable, MutableUserEvent>(getTmpLocation(), 5, new FileBucketStore<Serializable, MutableUserEvent>(UserTransactionDomainFactory.createIOFactory(6144)){
+			
+			@Override
+			public Map<Serializable, MutableUserEvent> read(Node bucket) throws IOException {
+				bucketLoads.merge(bucket.getId(), 1, Integer::sum);
+				
+				return super.read(bucket);
+			}
+		}));
+		
+		Map<Serializable, MutableUserEvent> expectedEvents = new HashMap<Serializable, MutableUserEvent>();
+		List<MutableUserEvent> events = new ArrayList<MutableUserEvent>();
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 2500)){
+			events.add(event);
+			expectedEvents.put(event.getKey(), event);
+		}
+		
+		candidate.reduceAllEvents(events.stream(), (e1, e2) -> e1).forEach(previous -> {});
+		
+		// only 1 bucket is resident so without regrouping the events of a split bucket, its children would be loaded many times
+		
+		assertThat(Collections.max(bucketLoads.values()), is(equalTo(1)));
+		
+		candidate.close();
+		
+		assertThat(CollectionUtil.loadAllElementsIntoMemoryMap(candidate), is(equalTo(expectedEvents)));
+	}
+	
+	@Test
+	public void given2500Events_whenPuttingWithBucketBudget_thenBucketsSplitByEstimatedSize() throws ClassNotFoundException, IOException, URISyntaxException{
+		candidate = CollectionUtil.getFileBackedMap(getTmpLocation(), 1000, UserTransactionDomainFactory.createIOFactory(6144), DiskBackedMap.Options.DEFAULT.withBucketBudget(2048));
+		
+		long totalEntryBytes = 0;
+		int numEvents = 0;
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 2500)){
+			totalEntryBytes += MemoryBudget.estimateEntryBytes(event.getKey());
+			numEvents++;
+		}
+		
+		addElementsAndCheckContentsOfMap(getRandomEvents(TEST_SEED, 2500));
+		
+		// the item count alone would have kept everything in a handful of buckets
+		
+		int[] leafBucketSizes = candidate.getLeafBucketSizes();
+		long maxEntriesPerBucket = 2048 / (totalEntryBytes / numEvents);
+		
+		assertThat(leafBucketSizes.length > 2500 / maxEntriesPerBucket, is(equalTo(true)));
+		
+		for (int leafBucketSize: leafBucketSizes){
+			assertThat(leafBucketSize <= maxEntriesPerBucket, is(equalTo(true)));
+		}
+	}
+	
+	private void reopenAndCheckContentsOfMap(DiskBackedMap.Options options) throws ClassNotFoundException, IOException, URISyntaxException{
+		Path mapLocation = getTmpLocation();
+		Map<Serializable, MutableUserEvent> expectedEvents = new HashMap<Serializable, MutableUserEvent>();
+		
+		candidate = CollectionUtil.getFileBackedMap(mapLocation, 5, UserTransactionDomainFactory.createIOFactory(6144), options);
+		
+		for (MutableUserEvent event: getRandomEvents(TEST_SEED, 2500)){
+			candidate.put(event.getKey(), event);
+			expectedEvents.put(event.getKey(), event);
+		}
+		candidate.close();
+		
+		candidate = CollectionUtil.openFileBackedMap(mapLocation, 5, UserTransactionDomainFactory.createIOFactory(6144), options);
+		
+		assertThat(candidate.size(), is(equalTo((long)expectedEvents.size())));
+		
+		for (MutableUserEvent event: expectedEvents.values()){
+			assertThat(candidate.get(event.getKey()), is(equalTo(event)));
+		}
+		assertThat(candidate.get("unknownUser"), is(nullValue()));
+		
+		// the reopened map can carry on being changed and reopened again
+		
+		MutableUserEvent newEvent = new MutableUserEvent("newUser", 1);
+		
+		candidate.put(newEvent.getKey(), newEvent);
+		expectedEvents.put(newEvent.getKey(), newEvent);
+		candidate.close();
+		
+		candidate = CollectionUtil.openFileBackedMap(mapLocation, 5, UserTransactionDomainFactory.createIOFactory(6144), options);
+		
+		assertThat(CollectionUtil.loadAllElementsIntoMemoryMap(candidate), is(equalTo(expectedEvents)));
+		assertThat(candidate.size(), is(equalTo((long)expectedEvents.size())));
+	}
+	
 	private void addElementsAndCheckContentsOfMap(Iterable<MutableUserEvent> events){
 		
 		long numEvents = 0;
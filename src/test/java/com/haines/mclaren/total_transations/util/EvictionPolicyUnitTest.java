@@ -0,0 +1,64 @@
+package com.haines.mclaren.total_transations.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Test;
+
+public class EvictionPolicyUnitTest {
+	
+	@Test
+	public void givenLRUPolicy_whenEvicting_thenLeastRecentlyUsedItemReturned(){
+		EvictionPolicy<Integer> candidate = EvictionPolicy.Type.LRU.create(3);
+		
+		candidate.add(1);
+		candidate.add(2);
+		candidate.add(3);
+		
+		candidate.recordAccess(1);
+		
+		assertThat(candidate.evict(), is(equalTo(2)));
+		assertThat(candidate.evict(), is(equalTo(3)));
+		assertThat(candidate.evict(), is(equalTo(1)));
+	}
+	
+	@Test
+	public void givenWindowedTinyLFUPolicy_whenScanningItemsUsedOnce_thenFrequentlyUsedItemsNotEvicted(){
+		EvictionPolicy<Integer> candidate = EvictionPolicy.Type.WINDOWED_TINY_LFU.create(4);
+		
+		// make 1 and 2 hot
+		for (int hot = 1; hot <= 2; hot++){
+			candidate.add(hot);
+			
+			for (int i = 0; i < 5; i++){
+				candidate.recordAccess(hot);
+			}
+		}
+		
+		// now scan through lots of items that are only used once, evicting as we go to keep to the capacity
+		int resident = 2;
+		for (int i = 100; i < 200; i++){
+			candidate.add(i);
+			
+			if (++resident > 4){
+				int evicted = candidate.evict();
+				resident--;
+				
+				assertThat(evicted, is(not(equalTo(1))));
+				assertThat(evicted, is(not(equalTo(2))));
+			}
+		}
+	}
+	
+	@Test
+	public void givenWindowedTinyLFUPolicyOfCapacity1_whenEvicting_thenPreviousItemReturned(){
+		EvictionPolicy<Integer> candidate = EvictionPolicy.Type.WINDOWED_TINY_LFU.create(1);
+		
+		candidate.add(1);
+		candidate.add(2);
+		
+		assertThat(candidate.evict(), is(equalTo(1)));
+	}
+}
@@ -0,0 +1,15 @@
+package com.haines.mclaren.total_transations.util;
+
+import java.io.Serializable;
+
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEventCodec;
+
+public class InMemoryCounterMapUnitTest extends AbstractCounterMapUnitTest {
+	
+	@Override
+	protected CounterMap<Serializable, MutableUserEvent> createCandidate(){
+		return new InMemoryCounterMap<Serializable, MutableUserEvent>(4, UserEventCodec.MUTABLE_CODEC); // tiny table so that it has to grow
+	}
+}
+		
\ No newline at end of file
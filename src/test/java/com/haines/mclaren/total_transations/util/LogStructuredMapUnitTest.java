@@ -0,0 +1,116 @@
+package com.haines.mclaren.total_transations.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.SyntheticFeeder;
+import com.haines.mclaren.total_transations.domain.UserEvent;
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserTransactionDomainFactory;
+import com.haines.mclaren.total_transations.domain.UserTransactionDomainFactory.SpillFormat;
+import com.haines.mclaren.total_transations.io.Feeder;
+
+public class LogStructuredMapUnitTest {
+	
+	private static final long TEST_SEED = 9456723456l;
+	
+	private static final BinaryOperator<MutableUserEvent> SUM_TRANSACTIONS = (older, newer) -> {
+		older.aggregate(newer);
+		
+		return older;
+	};
+	
+	private LogStructuredMap<Serializable, MutableUserEvent> candidate;
+	
+	@Before
+	public void before() throws IOException, URISyntaxException{
+		candidate = CollectionUtil.getLogStructuredMap(getTmpLocation(), 50, 3, UserTransactionDomainFactory.createIOFactory(6144, SpillFormat.BINARY), SUM_TRANSACTIONS, e -> new MutableUserEvent(e.getUser(), e.getNumTransactions()));
+	}
+	
+	private Path getTmpLocation() throws URISyntaxException {
+		return Paths.get(Paths.get(LogStructuredMapUnitTest.class.getResource("/").toURI()).toString(), "logStructuredMapTest");
+	}
+	
+	@Test
+	public void givenDeltasInSeveralRuns_whenCallingGet_thenDeltasMerged() throws IOException{
+		for (int i = 0; i < 200; i++){
+			candidate.put("user"+(i % 60), new MutableUserEvent("user"+(i % 60), 1)); // flushes every 50 distinct users so each user ends up in several runs
+		}
+		
+		assertThat(candidate.get("user0").getNumTransactions(), is(equalTo(4L)));
+		assertThat(candidate.get("user59").getNumTransactions(), is(equalTo(3L)));
+		assertThat(candidate.get("unknownUser"), is(nullValue()));
+		assertThat(candidate.size(), is(equalTo(60L)));
+		
+		candidate.close();
+		
+		assertThat(candidate.get("user0").getNumTransactions(), is(equalTo(4L)));
+	}
+	
+	@Test
+	public void givenDeltaInMemory_whenCallingPut_thenMergedDeltaReturned() throws IOException{
+		assertThat(candidate.put("user1", new MutableUserEvent("user1", 2)), is(nullValue()));
+		assertThat(candidate.put("user1", new MutableUserEvent("user1", 3)), is(equalTo(new MutableUserEvent("user1", 5))));
+		
+		candidate.close();
+	}
+	
+	@Test
+	public void givenDeltaOnlyInMemory_whenChangingValueFromGet_thenStoredDeltaUnchanged() throws IOException{
+		candidate.put("user1", new MutableUserEvent("user1", 2));
+		
+		candidate.get("user1").aggregate(new MutableUserEvent("user1", 10));
+		
+		assertThat(candidate.get("user1").getNumTransactions(), is(equalTo(2L)));
+		
+		candidate.close();
+	}
+	
+	@Test
+	public void given2500Events_whenProcessingInWindows_thenAllValuesAggregated() throws IOException{
+		Map<Serializable, Long> expectedTotals = new HashMap<Serializable, Long>();
+		List<MutableUserEvent> window = new ArrayList<MutableUserEvent>();
+		
+		try(Feeder<UserEvent> events = new SyntheticFeeder(2500, TEST_SEED, Collections.emptyList(), 0.0, 2, SyntheticFeeder.LARGE_ALPHABET)){
+			while (events.hasNext()){
+				UserEvent event = events.next();
+				
+				expectedTotals.merge(event.getKey(), event.getNumTransactions(), Long::sum);
+				window.add((MutableUserEvent)event.toMutableEvent());
+				
+				if (window.size() == 100 || !events.hasNext()){
+					// the same as the direct stream aggregator does with each window
+					
+					candidate.putAllEvents(candidate.processAllEvents(window.stream(), (e1, e2) -> e1)).forEach(previous -> {});
+					window.clear();
+				}
+			}
+		}
+		
+		candidate.close();
+		
+		Map<Serializable, Long> actualTotals = CollectionUtil.loadAllElementsIntoMemoryMap(candidate).values().stream()
+																											.collect(Collectors.toMap(e -> e.getKey(), e -> e.getNumTransactions()));
+		
+		assertThat(actualTotals, is(equalTo(expectedTotals)));
+		assertThat(candidate.size(), is(equalTo((long)expectedTotals.size())));
+	}
+}
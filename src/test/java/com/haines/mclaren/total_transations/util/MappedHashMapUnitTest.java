@@ -0,0 +1,53 @@
+package com.haines.mclaren.total_transations.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEventCodec;
+import com.haines.mclaren.total_transations.io.Util;
+
+public class MappedHashMapUnitTest extends AbstractCounterMapUnitTest {
+	
+	private MappedHashMap<Serializable, MutableUserEvent> candidate;
+	
+	@Override
+	protected CounterMap<Serializable, MutableUserEvent> createCandidate() throws IOException, URISyntaxException{
+		candidate = new MappedHashMap<Serializable, MutableUserEvent>(getTmpLocation(), 4, 64, UserEventCodec.MUTABLE_CODEC); // tiny table and key segments so that both have to grow
+		
+		return candidate;
+	}
+	
+	private Path getTmpLocation() throws URISyntaxException, IOException {
+		Path tmpPath = Paths.get(Paths.get(MappedHashMapUnitTest.class.getResource("/").toURI()).toString(), "mappedHashMapTest");
+		
+		Util.recursiveDelete(tmpPath);
+		
+		return Files.createDirectory(tmpPath);
+	}
+	
+	@Test
+	public void givenExistingAndNewKeys_whenReducingAllEvents_thenCountsAddedAndOnlyExistingKeysReturned(){
+		candidate.addTo("user1", 5);
+		
+		List<MutableUserEvent> previousEvents = candidate.reduceAllEvents(Stream.of(new MutableUserEvent("user1", 3), new MutableUserEvent("user2", 2), new MutableUserEvent("user1", 1)), (e1, e2) -> e1).collect(Collectors.toList());
+		
+		assertThat(previousEvents, is(equalTo(Arrays.asList(new MutableUserEvent("user1", 5), null, new MutableUserEvent("user1", 8)))));
+		assertThat(candidate.get("user1"), is(equalTo(new MutableUserEvent("user1", 9))));
+		assertThat(candidate.get("user2"), is(equalTo(new MutableUserEvent("user2", 2))));
+	}
+}
@@ -0,0 +1,153 @@
+package com.haines.mclaren.total_transations.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.domain.UserEventDeserializer;
+import com.haines.mclaren.total_transations.domain.UserEventSerializer;
+import com.haines.mclaren.total_transations.io.Util;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+
+public class SegmentBucketStoreUnitTest {
+	
+	private static final int TEST_SEGMENT_SIZE = 512;
+	private static final int NUM_BUCKETS = 20;
+	
+	private Path directory;
+	private SegmentBucketStore<Serializable, MutableUserEvent> candidate;
+	
+	@Before
+	public void before() throws IOException, URISyntaxException{
+		directory = Paths.get(Paths.get(SegmentBucketStoreUnitTest.class.getResource("/").toURI()).toString(), "segmentBucketStoreTest");
+		
+		Util.recursiveDelete(directory);
+		Files.createDirectory(directory);
+		
+		candidate = createStore();
+	}
+	
+	private SegmentBucketStore<Serializable, MutableUserEvent> createStore() throws IOException{
+		return new SegmentBucketStore<Serializable, MutableUserEvent>(directory, UserEventSerializer.BINARY_MUTABLE_SERIALIZER, UserEventDeserializer.BINARY_MUTABLE_DESERIALIZER, TEST_SEGMENT_SIZE);
+	}
+	
+	@Test
+	public void givenBucketsRewrittenManyTimes_whenReading_thenLatestContentsReturnedAndOldSegmentsCompacted() throws IOException{
+		Map<Integer, Map<Serializable, MutableUserEvent>> expectedBuckets = new HashMap<Integer, Map<Serializable, MutableUserEvent>>();
+		
+		for (int version = 1; version <= 10; version++){
+			for (int bucketId = 0; bucketId < NUM_BUCKETS; bucketId++){
+				Map<Serializable, MutableUserEvent> contents = createContents(bucketId, version);
+				
+				candidate.write(createNode(bucketId), contents);
+				expectedBuckets.put(bucketId, contents);
+			}
+		}
+		candidate.delete(createNode(0));
+		expectedBuckets.put(0, new HashMap<Serializable, MutableUserEvent>());
+		
+		for (int bucketId = 0; bucketId < NUM_BUCKETS; bucketId++){
+			assertThat(candidate.read(createNode(bucketId)), is(equalTo(expectedBuckets.get(bucketId))));
+		}
+		assertThat(candidate.exists(createNode(0)), is(equalTo(false)));
+		assertThat(candidate.exists(createNode(1)), is(equalTo(true)));
+		
+		// the live buckets would fill about 3 segments. Without compaction there would be about 10 times as many
+		
+		assertThat(countSegmentFiles() < 10, is(equalTo(true)));
+	}
+	
+	@Test
+	public void givenClosedStore_whenCreatingStoreInSameDirectory_thenBucketsReadFromIndex() throws IOException{
+		for (int bucketId = 0; bucketId < NUM_BUCKETS; bucketId++){
+			candidate.write(createNode(bucketId), createContents(bucketId, 1));
+		}
+		candidate.write(createNode(3), createContents(3, 2));
+		candidate.close();
+		
+		assertThat(candidate.read(createNode(3)), is(equalTo(createContents(3, 2)))); // can still be read once closed
+		
+		candidate = createStore();
+		
+		for (int bucketId = 0; bucketId < NUM_BUCKETS; bucketId++){
+			assertThat(candidate.read(createNode(bucketId)), is(equalTo(createContents(bucketId, bucketId == 3?2:1))));
+		}
+		
+		// and can carry on being written to
+		
+		candidate.write(createNode(NUM_BUCKETS), createContents(NUM_BUCKETS, 1));
+		
+		assertThat(candidate.read(createNode(NUM_BUCKETS)), is(equalTo(createContents(NUM_BUCKETS, 1))));
+	}
+	
+	@Test
+	public void givenThreadsRewritingTheirOwnBuckets_whenReading_thenEachThreadReadsItsLatestContents() throws Exception{
+		int numThreads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		
+		for (int thread = 0; thread < numThreads; thread++){
+			int firstBucketId = thread * NUM_BUCKETS;
+			
+			results.add(executor.submit(() -> {
+				for (int version = 1; version <= 50; version++){
+					for (int bucketId = firstBucketId; bucketId < firstBucketId + NUM_BUCKETS; bucketId++){
+						candidate.write(createNode(bucketId), createContents(bucketId, version));
+						
+						assertThat(candidate.read(createNode(bucketId)), is(equalTo(createContents(bucketId, version))));
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<Void> result: results){
+			result.get(); // rethrows any failed assertion
+		}
+		executor.shutdown();
+		
+		for (int bucketId = 0; bucketId < numThreads * NUM_BUCKETS; bucketId++){
+			assertThat(candidate.read(createNode(bucketId)), is(equalTo(createContents(bucketId, 50))));
+		}
+		assertThat(countSegmentFiles() < 20, is(equalTo(true)));
+	}
+	
+	private long countSegmentFiles() throws IOException{
+		try(Stream<Path> files = Files.list(directory)){
+			return files.filter(file -> file.getFileName().toString().startsWith("segment_")).count();
+		}
+	}
+	
+	private static Node createNode(int bucketId){
+		return new Node(bucketId, 11, Paths.get(bucketId+".dat"), 0);
+	}
+	
+	private static Map<Serializable, MutableUserEvent> createContents(int bucketId, int version){
+		Map<Serializable, MutableUserEvent> contents = new HashMap<Serializable, MutableUserEvent>();
+		
+		for (int i = 0; i < 3; i++){
+			String user = "user"+bucketId+"_"+i;
+			
+			contents.put(user, new MutableUserEvent(user, version));
+		}
+		return contents;
+	}
+}
@@ -0,0 +1,106 @@
+package com.haines.mclaren.total_transations.util;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.haines.mclaren.total_transations.domain.UserEvent.MutableUserEvent;
+import com.haines.mclaren.total_transations.util.DiskBackedMap.BucketBuffers.Node;
+
+public class WriteBehindBucketStoreUnitTest {
+	
+	private static final Node TEST_BUCKET = new Node(1, 11, Paths.get("1.dat"), 0);
+	
+	@Test
+	public void givenWriteInFlight_whenReadingBucket_thenPendingContentsReturned() throws IOException, InterruptedException{
+		CountDownLatch writeAllowed = new CountDownLatch(1);
+		BlockingBucketStore delegate = new BlockingBucketStore(writeAllowed);
+		
+		WriteBehindBucketStore<Serializable, MutableUserEvent> candidate = new WriteBehindBucketStore<Serializable, MutableUserEvent>(delegate, 2);
+		
+		Map<Serializable, MutableUserEvent> contents = new HashMap<Serializable, MutableUserEvent>();
+		contents.put("haines", new MutableUserEvent("haines", 5));
+		
+		candidate.write(TEST_BUCKET, contents);
+		
+		assertThat(candidate.exists(TEST_BUCKET), is(equalTo(true)));
+		assertThat(delegate.exists(TEST_BUCKET), is(equalTo(false)));
+		
+		Map<Serializable, MutableUserEvent> readContents = candidate.read(TEST_BUCKET);
+		
+		assertThat(readContents, is(equalTo(contents)));
+		assertThat(readContents, is(not(sameInstance(contents)))); // a copy so it can be changed whilst being written
+		
+		writeAllowed.countDown();
+		candidate.close();
+		
+		assertThat(delegate.read(TEST_BUCKET), is(equalTo(contents)));
+	}
+	
+	@Test(expected=IOException.class)
+	public void givenBackgroundWriteFails_whenCallingStore_thenIOExceptionThrown() throws IOException{
+		WriteBehindBucketStore<Serializable, MutableUserEvent> candidate = new WriteBehindBucketStore<Serializable, MutableUserEvent>(new BlockingBucketStore(null), 1);
+		
+		candidate.write(TEST_BUCKET, Collections.emptyMap()); // a null latch makes the write fail
+		
+		candidate.close();
+	}
+	
+	private static class BlockingBucketStore implements BucketStore<Serializable, MutableUserEvent>{
+		
+		private final CountDownLatch writeAllowed;
+		private final Map<Integer, Map<Serializable, MutableUserEvent>> buckets = new ConcurrentHashMap<Integer, Map<Serializable, MutableUserEvent>>();
+		
+		private BlockingBucketStore(CountDownLatch writeAllowed){
+			this.writeAllowed = writeAllowed;
+		}
+		
+		@Override
+		public Map<Serializable, MutableUserEvent> read(Node bucket) throws IOException {
+			Map<Serializable, MutableUserEvent> contents = buckets.get(bucket.getId());
+			
+			return contents == null?new HashMap<Serializable, MutableUserEvent>():new HashMap<Serializable, MutableUserEvent>(contents);
+		}
+		
+		@Override
+		public void write(Node bucket, Map<Serializable, MutableUserEvent> contents) throws IOException {
+			if (writeAllowed == null){
+				throw new IOException("test failure");
+			}
+			try {
+				writeAllowed.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			buckets.put(bucket.getId(), new HashMap<Serializable, MutableUserEvent>(contents));
+		}
+		
+		@Override
+		public boolean exists(Node bucket) {
+			return buckets.containsKey(bucket.getId());
+		}
+		
+		@Override
+		public void delete(Node bucket) throws IOException {
+			buckets.remove(bucket.getId());
+		}
+		
+		@Override
+		public void close() throws IOException {
+			// no op
+		}
+	}
+}